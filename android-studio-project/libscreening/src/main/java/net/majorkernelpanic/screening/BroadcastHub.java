@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.screening;
+
+import net.majorkernelpanic.screening.rtp.RtpSocket;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Runs one capture and encode pipeline per distinct stream configuration
+ * (see {@link MediaStream#getConfigKey()}) and fans the RTP packets it produces
+ * out to every {@link MediaStream} subscribed to it.
+ *
+ * A subscriber only uses its own {@link RtpSocket}, so each client keeps its
+ * own SSRC, sequence numbers and sender reports. The encoder is started with
+ * the first subscriber and stopped when the last one leaves.
+ */
+public class BroadcastHub {
+  public final static String TAG = "BroadcastHub";
+
+  private static final HashMap<String,Broadcast> sBroadcasts = new HashMap<String,Broadcast>();
+
+  /**
+   * The encoder of a broadcast is started and stopped while holding the lock of the
+   * broadcast only, the hub is only locked to look it up and count its subscribers.
+   */
+  private static class Broadcast {
+    MediaStream source;
+    // Guarded by the hub
+    int subscribers = 0;
+    // Guarded by the broadcast
+    boolean started = false;
+  }
+
+  // Only static methods
+  private BroadcastHub() {}
+
+  /**
+   * Forwards the packets of the broadcast matching the configuration of the stream
+   * to its {@link RtpSocket}, the broadcast is started if needed.
+   * Only subscribers of a broadcast being started wait for it.
+   * @param stream A configured stream, its destination must already be set on its packetizer
+   */
+  static void subscribe(MediaStream stream) throws IllegalStateException, IOException {
+    String key = stream.getConfigKey();
+    Broadcast broadcast;
+
+    synchronized (BroadcastHub.class) {
+      broadcast = sBroadcasts.get(key);
+      if (broadcast == null) {
+        broadcast = new Broadcast();
+        broadcast.source = stream.newBroadcastSource();
+        broadcast.source.mBroadcastSource = true;
+        sBroadcasts.put(key, broadcast);
+      }
+      broadcast.subscribers++;
+    }
+
+    synchronized (broadcast) {
+      if (!broadcast.started) {
+        try {
+          broadcast.source.start();
+        } catch (IOException e) {
+          leave(key, broadcast);
+          throw e;
+        } catch (RuntimeException e) {
+          leave(key, broadcast);
+          throw e;
+        }
+        broadcast.started = true;
+        Log.i(TAG, "Broadcast started: "+key);
+      }
+      broadcast.source.getPacketizer().getRtpSocket().addSink(stream.getPacketizer().getRtpSocket());
+    }
+
+    stream.mSubscription = key;
+    Log.d(TAG, "Subscribers of "+key+": "+getSubscriberCount(key));
+  }
+
+  /**
+   * Stops forwarding packets to the stream, the broadcast is stopped
+   * if the stream was its last subscriber.
+   */
+  static void unsubscribe(MediaStream stream) {
+    String key = stream.mSubscription;
+    stream.mSubscription = null;
+    Broadcast broadcast;
+    synchronized (BroadcastHub.class) {
+      broadcast = key == null ? null : sBroadcasts.get(key);
+    }
+    if (broadcast == null) return;
+
+    synchronized (broadcast) {
+      broadcast.source.getPacketizer().getRtpSocket().removeSink(stream.getPacketizer().getRtpSocket());
+      if (leave(key, broadcast) && broadcast.started) {
+        broadcast.source.stop();
+        broadcast.started = false;
+        Log.i(TAG, "Broadcast stopped: "+key);
+      }
+    }
+  }
+
+  /**
+   * Counts a subscriber out of the broadcast, which is removed from the hub with the last one.
+   * A new subscriber then starts a new broadcast, even while this one is being stopped.
+   * @return Whether it was the last subscriber
+   */
+  private static synchronized boolean leave(String key, Broadcast broadcast) {
+    broadcast.subscribers--;
+    Log.d(TAG, "Subscribers of "+key+": "+broadcast.subscribers);
+    if (broadcast.subscribers > 0) return false;
+    if (sBroadcasts.get(key) == broadcast) sBroadcasts.remove(key);
+    return true;
+  }
+
+  /** Returns the number of streams subscribed to the broadcast identified by the key. */
+  public static synchronized int getSubscriberCount(String key) {
+    Broadcast broadcast = sBroadcasts.get(key);
+    return broadcast == null ? 0 : broadcast.subscribers;
+  }
+
+  /**
+   * Returns the stream feeding the broadcast identified by the key,
+   * or null if no such broadcast is running.
+   */
+  public static synchronized MediaStream getSource(String key) {
+    Broadcast broadcast = sBroadcasts.get(key);
+    return broadcast == null ? null : broadcast.source;
+  }
+
+  /** Returns the streams feeding the broadcasts currently running. */
+  public static synchronized ArrayList<MediaStream> getSources() {
+    ArrayList<MediaStream> sources = new ArrayList<MediaStream>(sBroadcasts.size());
+    for (Broadcast broadcast : sBroadcasts.values()) {
+      sources.add(broadcast.source);
+    }
+    return sources;
+  }
+
+  /** Returns the number of encoders currently running on behalf of subscribers. */
+  public static synchronized int getBroadcastCount() {
+    return sBroadcasts.size();
+  }
+}
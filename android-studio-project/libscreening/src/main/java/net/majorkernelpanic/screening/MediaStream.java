@@ -21,7 +21,11 @@
 package net.majorkernelpanic.screening;
 
 import net.majorkernelpanic.screening.audio.AudioStream;
+import net.majorkernelpanic.screening.rtcp.ReceptionReport;
+import net.majorkernelpanic.screening.rtcp.RtcpReceiver;
 import net.majorkernelpanic.screening.rtp.AbstractPacketizer;
+import net.majorkernelpanic.screening.rtp.InterleavedWriter;
+import net.majorkernelpanic.screening.rtp.Timebase;
 import net.majorkernelpanic.screening.video.VideoStream;
 
 import android.annotation.SuppressLint;
@@ -76,9 +80,21 @@ public abstract class MediaStream implements Stream {
   protected final static byte sPipeApi;
 
   protected boolean mStreaming = false, mConfigured = false;
+
+  /** When set, the stream subscribes to a {@link BroadcastHub} instead of running its own encoder. */
+  protected boolean mShared = false;
+
+  /** Set by the {@link BroadcastHub} on the stream that feeds a broadcast, it has no destination of its own. */
+  boolean mBroadcastSource = false;
+
+  /** Key of the broadcast the stream is subscribed to, see {@link #getConfigKey()}. */
+  String mSubscription = null;
+
   protected int mRtpPort = 0, mRtcpPort = 0;
+  protected int mFecPort = 0;
   protected byte mChannelIdentifier = 0;
   protected OutputStream mOutputStream = null;
+  protected InterleavedWriter mInterleavedWriter = null;
   protected InetAddress mDestination;
 
   protected ParcelFileDescriptor[] mParcelFileDescriptors;
@@ -90,6 +106,7 @@ public abstract class MediaStream implements Stream {
   private int mSocketId;
 
   private int mTTL = 64;
+  private Timebase mTimebase = Timebase.getDefault();
 
   protected MediaRecorder mMediaRecorder;
   protected MediaCodec mMediaCodec;
@@ -161,6 +178,7 @@ public abstract class MediaStream implements Stream {
     mRtpPort = rtpPort;
     mRtcpPort = rtcpPort;
     mOutputStream = null;
+    mInterleavedWriter = null;
   }
 
   /**
@@ -173,6 +191,27 @@ public abstract class MediaStream implements Stream {
     mChannelIdentifier = channelIdentifier;
   }
 
+  /**
+   * Same as {@link #setOutputStream(OutputStream, byte)}, the writer should be
+   * shared by every stream sent over the same connection.
+   */
+  public void setInterleavedWriter(InterleavedWriter writer, byte channelIdentifier) {
+    mInterleavedWriter = writer;
+    mChannelIdentifier = channelIdentifier;
+  }
+
+  /**
+   * Sets the port to which the FEC packets protecting the stream are sent, if it has any
+   * (see {@link #getFecSessionDescription()}). Takes effect right away if the stream is streaming.
+   * @param port The destination port of the FEC packets, 0 to stop sending them
+   */
+  public synchronized void setFecDestinationPort(int port) {
+    mFecPort = port;
+    if (mStreaming && !mBroadcastSource) {
+      mPacketizer.getRtpSocket().setFecDestination(mDestination, port);
+    }
+  }
+
   /**
    * Sets the Time To Live of packets sent over the network.
    * @param ttl The time to live
@@ -201,6 +240,20 @@ public abstract class MediaStream implements Stream {
     return mPacketizer.getRtpSocket().getLocalPorts();
   }
 
+  /** Returns the source port of the FEC packets protecting the stream. */
+  public int getFecLocalPort() {
+    return mPacketizer.getRtpSocket().getFecLocalPort();
+  }
+
+  /**
+   * Sets the timebase of the RTP timestamps of the stream, shared by the streams of a
+   * {@link Session} so that they can be played in sync. Changes will take effect next time
+   * you call {@link #start()}.
+   */
+  public void setTimebase(Timebase timebase) {
+    mTimebase = timebase;
+  }
+
   /**
    * Sets the streaming method that will be used.
    *
@@ -216,6 +269,20 @@ public abstract class MediaStream implements Stream {
     mRequestedMode = mode;
   }
 
+  /**
+   * Shares the encoder of the stream with every other shared stream of the same kind and quality.
+   * The stream then only forwards the packets of the broadcast to its destination,
+   * see {@link BroadcastHub}. Changes will take effect next time you call {@link #start()}.
+   */
+  public void setShared(boolean shared) {
+    mShared = shared;
+  }
+
+  /** Indicates if the stream shares its encoder with other streams. */
+  public boolean isShared() {
+    return mShared;
+  }
+
   /**
    * Returns the streaming method in use, call this after
    * {@link #configure()} to get an accurate response.
@@ -239,6 +306,15 @@ public abstract class MediaStream implements Stream {
     return !mStreaming ? 0 : mPacketizer.getRtpSocket().getBitrate();
   }
 
+  public ReceptionReport getReceptionReport() {
+    return getRtcpReceiver().getLastReport();
+  }
+
+  /** Returns the receiver of the RTCP packets sent back by the destination of the stream. */
+  public RtcpReceiver getRtcpReceiver() {
+    return mPacketizer.getRtpSocket().getRtcpReceiver();
+  }
+
   /**
    * Indicates if the {@link MediaStream} is streaming.
    * @return A boolean indicating if the {@link MediaStream} is streaming
@@ -258,6 +334,7 @@ public abstract class MediaStream implements Stream {
     if (mPacketizer != null) {
       mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
       mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
+      mPacketizer.getRtpSocket().setInterleavedWriter(mInterleavedWriter, mChannelIdentifier);
     }
     mMode = mRequestedMode;
     mConfigured = true;
@@ -266,15 +343,33 @@ public abstract class MediaStream implements Stream {
   /** Starts the stream. */
   public synchronized void start() throws IllegalStateException, IOException {
     if (!mStreaming) {
-      if (mDestination==null)
-        throw new IllegalStateException("No destination ip address set for the stream !");
+      if (!mBroadcastSource) {
+        if (mDestination==null)
+          throw new IllegalStateException("No destination ip address set for the stream !");
 
-      if (mRtpPort<=0 || mRtcpPort<=0)
-        throw new IllegalStateException("No destination ports set for the stream !");
+        if (mRtpPort<=0 || mRtcpPort<=0)
+          throw new IllegalStateException("No destination ports set for the stream !");
+
+        mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
+        mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
+        mPacketizer.getRtpSocket().setInterleavedWriter(mInterleavedWriter, mChannelIdentifier);
+        mPacketizer.getRtpSocket().setFecDestination(mDestination, mFecPort);
+
+        // Over TCP the reports of the client are handed over by the RTSP connection
+        if (mOutputStream == null && mInterleavedWriter == null) {
+          getRtcpReceiver().start();
+        }
+      }
 
       mPacketizer.setTimeToLive(mTTL);
+      mPacketizer.getRtpSocket().setTimebase(mTimebase);
+
+      // Video streams only start sending with a key frame
+      mPacketizer.getRtpSocket().waitForKeyFrame();
 
-      if (mMode != MODE_MEDIARECORDER_API) {
+      if (mShared) {
+        BroadcastHub.subscribe(this);
+      } else if (mMode != MODE_MEDIARECORDER_API) {
         encodeWithMediaCodec();
       } else {
         encodeWithMediaRecorder();
@@ -289,7 +384,9 @@ public abstract class MediaStream implements Stream {
   public synchronized  void stop() {
     if (mStreaming) {
       try {
-        if (mMode==MODE_MEDIARECORDER_API) {
+        if (mShared) {
+          BroadcastHub.unsubscribe(this);
+        } else if (mMode==MODE_MEDIARECORDER_API) {
           mMediaRecorder.stop();
           mMediaRecorder.release();
           mMediaRecorder = null;
@@ -297,10 +394,15 @@ public abstract class MediaStream implements Stream {
           mPacketizer.stop();
         } else {
           mPacketizer.stop();
+          // Packets not sent yet may be slices of the output buffers of the encoder
+          mPacketizer.getRtpSocket().releaseBuffers();
           mMediaCodec.stop();
           mMediaCodec.release();
           mMediaCodec = null;
         }
+        // The buffers of the FIFO go back to the pool until the stream is restarted
+        mPacketizer.getRtpSocket().releaseBuffers();
+        getRtcpReceiver().stop();
       } catch (Exception e) {
         e.printStackTrace();
       }
@@ -308,6 +410,20 @@ public abstract class MediaStream implements Stream {
     }
   }
 
+  /**
+   * Returns a key identifying the encoder configuration of the stream.
+   * Streams with the same key produce the same bit stream and can share an encoder.
+   */
+  public String getConfigKey() {
+    return getClass().getName()+":"+mMode;
+  }
+
+  /**
+   * Creates the stream that will feed the broadcast this stream subscribes to.
+   * It must be of the same kind and configured with the same quality.
+   */
+  protected abstract MediaStream newBroadcastSource();
+
   protected abstract void encodeWithMediaRecorder() throws IOException;
 
   protected abstract void encodeWithMediaCodec() throws IOException;
@@ -319,6 +435,14 @@ public abstract class MediaStream implements Stream {
    */
   public abstract String getSessionDescription();
 
+  /**
+   * Returns the SDP description of the FEC packets protecting the stream, or null if it is not
+   * protected. They are a media of their own, only sent to the receivers that set it up.
+   */
+  public String getFecSessionDescription() {
+    return null;
+  }
+
   /**
    * Returns the SSRC of the underlying {@link net.majorkernelpanic.screening.rtp.RtpSocket}.
    * @return the SSRC of the stream
@@ -327,6 +451,11 @@ public abstract class MediaStream implements Stream {
     return getPacketizer().getSSRC();
   }
 
+  /** Returns the SSRC of the FEC packets protecting the stream. */
+  public int getFecSSRC() {
+    return getPacketizer().getRtpSocket().getFecSSRC();
+  }
+
   protected void createSockets() throws IOException {
 
     if (sPipeApi == PIPE_API_LS) {
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the session descriptions built by {@link Session#getSessionDescription()},
+ * so that a DESCRIBE for a session that was already described is answered without
+ * assembling the SDP again.
+ *
+ * Descriptions are keyed by the whole configuration of the session (see
+ * {@link Session#getDescriptionKey()}), so a change of quality, encoder or
+ * destination simply misses the cache. The cache is emptied with {@link #invalidate()}
+ * when the parameters of an encoder (SPS, PPS...) are determined again.
+ */
+public class SdpCache {
+  public final static String TAG = "SdpCache";
+
+  /** Maximum number of session descriptions kept. */
+  public static final int MAX_ENTRIES = 32;
+
+  private static final LinkedHashMap<String,String> sDescriptions = new LinkedHashMap<String,String>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  private static long sHits = 0, sMisses = 0;
+
+  // Only static methods
+  private SdpCache() {}
+
+  /** Returns the session description stored for the key, or null. */
+  public static synchronized String get(String key) {
+    String description = sDescriptions.get(key);
+    if (description != null) sHits++;
+    else sMisses++;
+    return description;
+  }
+
+  static synchronized void put(String key, String description) {
+    sDescriptions.put(key, description);
+  }
+
+  /** Drops every session description, they will be built again on the next request. */
+  public static synchronized void invalidate() {
+    if (!sDescriptions.isEmpty()) Log.d(TAG,"Session descriptions invalidated");
+    sDescriptions.clear();
+  }
+
+  /** Returns the number of session descriptions served from the cache. */
+  public static synchronized long getHitCount() {
+    return sHits;
+  }
+
+  /** Returns the number of session descriptions that had to be built. */
+  public static synchronized long getMissCount() {
+    return sMisses;
+  }
+}
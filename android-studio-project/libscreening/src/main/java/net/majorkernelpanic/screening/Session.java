@@ -22,6 +22,8 @@ package net.majorkernelpanic.screening;
 
 import net.majorkernelpanic.screening.audio.AudioQuality;
 import net.majorkernelpanic.screening.audio.AudioStream;
+import net.majorkernelpanic.screening.rtcp.ReceptionReport;
+import net.majorkernelpanic.screening.rtp.Timebase;
 import net.majorkernelpanic.screening.rtsp.RtspClient;
 import net.majorkernelpanic.screening.video.VideoQuality;
 import net.majorkernelpanic.screening.video.VideoStream;
@@ -76,10 +78,20 @@ public class Session {
    */
   public final static int ERROR_OTHER = 0x01;
 
+  /**
+   * Id of the track of the FEC packets protecting the video track, see {@link #hasFec()}.
+   * They are sent by the video track, a receiver that does not set the track up does not get them.
+   */
+  public final static int FEC_TRACK = 2;
+
   private String mOrigin;
   private String mDestination;
   private int mTimeToLive = 64;
+  // Description key of the tracks before they were configured, see getCachedSessionDescription()
+  private String mRequestedKey = null;
   private long mTimestamp;
+  // Shared by the tracks, so that players can keep them in sync
+  private final Timebase mTimebase = new Timebase();
 
   private AudioStream mAudioStream = null;
   private VideoStream mVideoStream = null;
@@ -87,6 +99,7 @@ public class Session {
   private Callback mCallback;
   private Handler mMainHandler;
 
+  private HandlerThread mThread;
   private Handler mHandler;
 
   /**
@@ -95,10 +108,10 @@ public class Session {
   public Session() {
     long uptime = System.currentTimeMillis();
 
-    HandlerThread thread = new HandlerThread("net.majorkernelpanic.screening.Session");
-    thread.start();
+    mThread = new HandlerThread("net.majorkernelpanic.screening.Session");
+    mThread.start();
 
-    mHandler = new Handler(thread.getLooper());
+    mHandler = new Handler(mThread.getLooper());
     mMainHandler = new Handler(Looper.getMainLooper());
     mTimestamp = (uptime/1000)<<32 & (((uptime-((uptime/1000)*1000))>>32)/1000); // NTP timestamp
     mOrigin = "127.0.0.1";
@@ -145,12 +158,14 @@ public class Session {
   void addAudioTrack(AudioStream track) {
     removeAudioTrack();
     mAudioStream = track;
+    track.setTimebase(mTimebase);
   }
 
   /** You probably don't need to use that directly, use the {@link SessionBuilder}. */
   void addVideoTrack(VideoStream track) {
     removeVideoTrack();
     mVideoStream = track;
+    track.setTimebase(mTimebase);
   }
 
   /** You probably don't need to use that directly, use the {@link SessionBuilder}. */
@@ -214,6 +229,17 @@ public class Session {
     mTimeToLive = ttl;
   }
 
+  /**
+   * Shares the encoders of the session with other sessions streaming
+   * the same audio and video configuration, see {@link BroadcastHub}. <br />
+   * Changes will be taken into account the next time you start the session.
+   * @param shared Whether encoders should be shared
+   */
+  public void setShared(boolean shared) {
+    if (mAudioStream != null) mAudioStream.setShared(shared);
+    if (mVideoStream != null) mVideoStream.setShared(shared);
+  }
+
   /**
    * Sets the configuration of the stream. <br />
    * You can call this method at any time and changes will take
@@ -252,36 +278,108 @@ public class Session {
    * @throws IllegalStateException Thrown when {@link #setDestination(String)} has never been called.
    */
   public String getSessionDescription() {
-    StringBuilder sessionDescription = new StringBuilder();
     if (mDestination==null) {
       throw new IllegalStateException("setDestination() has not been called !");
     }
+    String key = getDescriptionKey();
+    String description = SdpCache.get(key);
+    if (description == null) {
+      description = buildSessionDescription();
+      SdpCache.put(key, description);
+    }
+    // The key of the tracks as requested may differ from the key of their configuration
+    if (mRequestedKey != null && !mRequestedKey.equals(key)) {
+      SdpCache.put(mRequestedKey, description);
+    }
+    return description;
+  }
+
+  /**
+   * Returns the Session Description from the {@link SdpCache} without configuring the tracks,
+   * or null if the session must be configured first. When called before {@link #syncConfigure()},
+   * the description returned afterwards by {@link #getSessionDescription()} is found here next time.
+   * @throws IllegalStateException Thrown when {@link #setDestination(String)} has never been called.
+   */
+  public String getCachedSessionDescription() {
+    if (mDestination==null) {
+      throw new IllegalStateException("setDestination() has not been called !");
+    }
+    mRequestedKey = getDescriptionKey();
+    return SdpCache.get(mRequestedKey);
+  }
+
+  private String buildSessionDescription() {
+    StringBuilder sessionDescription = new StringBuilder();
     sessionDescription.append("v=0\r\n");
     // TODO: Add IPV6 support
     sessionDescription.append("o=- "+mTimestamp+" "+mTimestamp+" IN IP4 "+mOrigin+"\r\n");
     sessionDescription.append("s=Unnamed\r\n");
     sessionDescription.append("i=N/A\r\n");
-    sessionDescription.append("c=IN IP4 "+mDestination+"\r\n");
+    // The TTL is part of the connection address of a multicast session (RFC 4566)
+    sessionDescription.append("c=IN IP4 "+mDestination+(isMulticast() ? "/"+mTimeToLive : "")+"\r\n");
     // t=0 0 means the session is permanent (we don't know when it will stop)
     sessionDescription.append("t=0 0\r\n");
     sessionDescription.append("a=recvonly\r\n");
+    boolean fec = hasFec();
+    if (fec) {
+      // The video and the FEC packets protecting it (RFC 4756)
+      sessionDescription.append("a=group:FEC 1 "+FEC_TRACK+"\r\n");
+    }
     // Prevents two different sessions from using the same peripheral at the same time
     if (mAudioStream != null) {
       sessionDescription.append(mAudioStream.getSessionDescription());
       sessionDescription.append("a=control:trackID="+0+"\r\n");
+      // With a group, every media line needs an identification (RFC 5888)
+      if (fec) sessionDescription.append("a=mid:0\r\n");
     }
     if (mVideoStream != null) {
       sessionDescription.append(mVideoStream.getSessionDescription());
       sessionDescription.append("a=control:trackID="+1+"\r\n");
+      if (fec) {
+        sessionDescription.append("a=mid:1\r\n");
+        sessionDescription.append(mVideoStream.getFecSessionDescription());
+        sessionDescription.append("a=control:trackID="+FEC_TRACK+"\r\n");
+        sessionDescription.append("a=mid:"+FEC_TRACK+"\r\n");
+      }
     }
     return sessionDescription.toString();
   }
 
+  /**
+   * Returns a key identifying everything the session description depends on:
+   * the origin and destination of the session and the configuration of its tracks.
+   */
+  public String getDescriptionKey() {
+    StringBuilder key = new StringBuilder();
+    key.append(mOrigin).append('|').append(mDestination).append('|').append(mTimeToLive);
+    if (mAudioStream != null) {
+      key.append("|a=").append(mAudioStream.getConfigKey()).append(':').append(mAudioStream.getDestinationPorts()[0]);
+    }
+    if (mVideoStream != null) {
+      key.append("|v=").append(mVideoStream.getConfigKey()).append(':').append(mVideoStream.getDestinationPorts()[0]);
+    }
+    return key.toString();
+  }
+
   /** Returns the destination set with {@link #setDestination(String)}. */
   public String getDestination() {
     return mDestination;
   }
 
+  /** Returns the time to live set with {@link #setTimeToLive(int)}. */
+  public int getTimeToLive() {
+    return mTimeToLive;
+  }
+
+  /** Indicates if the destination of the session is a multicast group. */
+  public boolean isMulticast() {
+    try {
+      return mDestination != null && InetAddress.getByName(mDestination).isMulticastAddress();
+    } catch (UnknownHostException e) {
+      return false;
+    }
+  }
+
   /** Returns an approximation of the bandwidth consumed by the session in bit per second. */
   public long getBitrate() {
     long sum = 0;
@@ -290,6 +388,16 @@ public class Session {
     return sum;
   }
 
+  /**
+   * Returns the last loss, jitter and round trip time reported by the receiver of a track,
+   * or null if it has not reported anything yet.
+   * @param id The id of the track, 0 for audio and 1 for video
+   */
+  public ReceptionReport getReceptionReport(int id) {
+    Stream stream = getTrack(id);
+    return stream == null ? null : stream.getReceptionReport();
+  }
+
   /** Indicates if a track is currently running. */
   public boolean isStreaming() {
     return (mAudioStream!=null && mAudioStream.isStreaming()) || (mVideoStream!=null && mVideoStream.isStreaming());
@@ -428,7 +536,7 @@ public class Session {
   public void release() {
     removeAudioTrack();
     removeVideoTrack();
-    mHandler.getLooper().quit();
+    mThread.quit();
   }
 
   private void postSessionConfigured() {
@@ -501,10 +609,21 @@ public class Session {
   public boolean trackExists(int id) {
     if (id==0)
       return mAudioStream!=null;
+    else if (id==FEC_TRACK)
+      return hasFec();
     else
       return mVideoStream!=null;
   }
 
+  /**
+   * Indicates if the video track is protected by FEC packets, see {@link MediaStream#getFecSessionDescription()}.
+   * They are only sent to unicast destinations, over UDP.
+   */
+  public boolean hasFec() {
+    return mVideoStream!=null && mVideoStream.getFecSessionDescription()!=null && !isMulticast();
+  }
+
+  /** Returns the stream of a track, the FEC packets are sent by the video track. */
   public Stream getTrack(int id) {
     if (id==0)
       return mAudioStream;
@@ -73,6 +73,7 @@ public class SessionBuilder {
   private int mVideoEncoder = VIDEO_H263;
   private int mAudioEncoder = AUDIO_NONE;
   private int mTimeToLive = 64;
+  private int mKeyFrameInterval = VideoStream.DEFAULT_KEY_FRAME_INTERVAL;
   private String mOrigin = null;
   private String mDestination = null;
   private Session.Callback mCallback = null;
@@ -133,6 +134,7 @@ public class SessionBuilder {
     if (session.getVideoTrack() != null) {
       VideoStream video = session.getVideoTrack();
       video.setVideoQuality(mVideoQuality);
+      video.setKeyFrameInterval(mKeyFrameInterval);
       video.setDestinationPorts(5006);
 
       if (mContext != null)
@@ -231,6 +233,15 @@ public class SessionBuilder {
     return this;
   }
 
+  /**
+   * Sets the interval between two key frames of the video stream in seconds,
+   * see {@link VideoStream#setKeyFrameInterval(int)}.
+   */
+  public SessionBuilder setKeyFrameInterval(int seconds) {
+    mKeyFrameInterval = seconds;
+    return this;
+  }
+
   public SessionBuilder setCallback(Session.Callback callback) {
     mCallback = callback;
     return this;
@@ -271,6 +282,11 @@ public class SessionBuilder {
     return mAudioQuality;
   }
 
+  /** Returns the interval between two key frames set with {@link #setKeyFrameInterval(int)}. */
+  public int getKeyFrameInterval() {
+    return mKeyFrameInterval;
+  }
+
   /** Returns the time to live set with {@link #setTimeToLive(int)}. */
   public int getTimeToLive() {
     return mTimeToLive;
@@ -284,6 +300,7 @@ public class SessionBuilder {
     .setVideoQuality(mVideoQuality)
     .setVideoEncoder(mVideoEncoder)
     .setTimeToLive(mTimeToLive)
+    .setKeyFrameInterval(mKeyFrameInterval)
     .setAudioEncoder(mAudioEncoder)
     .setAudioQuality(mAudioQuality)
     .setContext(mContext)
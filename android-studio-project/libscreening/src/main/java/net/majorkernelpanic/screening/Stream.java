@@ -20,6 +20,9 @@
 
 package net.majorkernelpanic.screening;
 
+import net.majorkernelpanic.screening.rtcp.ReceptionReport;
+import net.majorkernelpanic.screening.rtp.InterleavedWriter;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
@@ -83,6 +86,12 @@ public interface Stream {
    */
   public void setOutputStream(OutputStream stream, byte channelIdentifier);
 
+  /**
+   * Same as {@link #setOutputStream(OutputStream, byte)}, the writer should be
+   * shared by every stream sent over the same connection.
+   */
+  public void setInterleavedWriter(InterleavedWriter writer, byte channelIdentifier);
+
   /**
    * Returns a pair of source ports, the first one is the
    * one used for RTP and the second one is used for RTCP.
@@ -106,6 +115,12 @@ public interface Stream {
    */
   public long getBitrate();
 
+  /**
+   * Returns the last report block sent back by the receiver of the stream,
+   * or null if it has not reported anything yet.
+   */
+  public ReceptionReport getReceptionReport();
+
   /**
    * Returns a description of the stream using SDP.
    * This method can only be called after {@link Stream#configure()}.
@@ -20,6 +20,8 @@
 
 package net.majorkernelpanic.screening.audio;
 
+import net.majorkernelpanic.screening.MediaStream;
+import net.majorkernelpanic.screening.SdpCache;
 import net.majorkernelpanic.screening.SessionBuilder;
 import net.majorkernelpanic.screening.rtp.AACADTSPacketizer;
 import net.majorkernelpanic.screening.rtp.AACLATMPacketizer;
@@ -151,6 +153,7 @@ public class AACStream extends AudioStream {
       }
       mPacketizer.setDestination(mDestination, mRtpPort, mRtcpPort);
       mPacketizer.getRtpSocket().setOutputStream(mOutputStream, mChannelIdentifier);
+      mPacketizer.getRtpSocket().setInterleavedWriter(mInterleavedWriter, mChannelIdentifier);
     }
 
     if (mMode == MODE_MEDIARECORDER_API) {
@@ -179,6 +182,13 @@ public class AACStream extends AudioStream {
     }
   }
 
+  @Override
+  protected MediaStream newBroadcastSource() {
+    AACStream source = (AACStream) newBroadcastSource(new AACStream());
+    source.mSettings = mSettings;
+    return source;
+  }
+
   @Override
   protected void encodeWithMediaRecorder() throws IOException {
     testADTS();
@@ -223,7 +233,9 @@ public class AACStream extends AudioStream {
                 Log.e(TAG,"An error occured with the AudioRecord API !");
               } else {
                 //Log.v(TAG,"Pushing raw audio to the decoder: len="+len+" bs: "+inputBuffers[bufferIndex].capacity());
-                mMediaCodec.queueInputBuffer(bufferIndex, 0, len, System.nanoTime()/1000, 0);
+                // The samples read were captured before the read returned, the first one a buffer earlier (16 bits mono)
+                long captured = System.nanoTime() - (len/2)*1000000000L/mQuality.samplingRate;
+                mMediaCodec.queueInputBuffer(bufferIndex, 0, len, captured/1000, 0);
               }
             }
           }
@@ -245,7 +257,7 @@ public class AACStream extends AudioStream {
   /** Stops the stream. */
   public synchronized void stop() {
     if (mStreaming) {
-      if (mMode==MODE_MEDIACODEC_API) {
+      if (mMode==MODE_MEDIACODEC_API && !mShared) {
         Log.d(TAG, "Interrupting threads...");
         mThread.interrupt();
         mAudioRecord.stop();
@@ -360,6 +372,9 @@ public class AACStream extends AudioStream {
       editor.commit();
     }
 
+    // The session descriptions built before this test may no longer be accurate
+    SdpCache.invalidate();
+
     if (!file.delete()) Log.e(TAG,"Temp file could not be erased");
   }
 }
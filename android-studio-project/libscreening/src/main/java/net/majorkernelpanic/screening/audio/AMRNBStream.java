@@ -20,6 +20,7 @@
 
 package net.majorkernelpanic.screening.audio;
 
+import net.majorkernelpanic.screening.MediaStream;
 import net.majorkernelpanic.screening.SessionBuilder;
 import net.majorkernelpanic.screening.rtp.AMRNBPacketizer;
 
@@ -71,6 +72,11 @@ public class AMRNBStream extends AudioStream {
     mMode = MODE_MEDIARECORDER_API;
   }
 
+  @Override
+  protected MediaStream newBroadcastSource() {
+    return newBroadcastSource(new AMRNBStream());
+  }
+
   /**
    * Returns a description of the stream using SDP. It can then be included in an SDP file.
    */
@@ -73,6 +73,25 @@ public abstract class AudioStream  extends MediaStream {
     mQuality = mRequestedQuality.clone();
   }
 
+  @Override
+  public String getConfigKey() {
+    return super.getConfigKey()+":"+mQuality.samplingRate+":"+mQuality.bitRate;
+  }
+
+  /**
+   * Configures a new stream of the same kind like this one, so that it can feed
+   * the broadcast this stream subscribes to.
+   */
+  protected AudioStream newBroadcastSource(AudioStream source) {
+    source.setAudioSource(mAudioSource);
+    source.setAudioQuality(mQuality.clone());
+    source.mQuality = mQuality.clone();
+    source.mRequestedMode = mMode;
+    source.mMode = mMode;
+    source.mConfigured = true;
+    return source;
+  }
+
   @Override
   protected void encodeWithMediaRecorder() throws IOException {
     // We need a local socket to forward data output by the microphone to the packetizer
@@ -26,7 +26,9 @@ import android.media.MediaCodecList;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
 
 @SuppressLint("InlinedApi")
@@ -44,6 +46,7 @@ public class CodecManager {
 
   private static Codec[] sEncoders = null;
   private static Codec[] sDecoders = null;
+  private static HashMap<String,String> sSurfaceEncoders = new HashMap<String,String>();
 
   static class Codec {
     public Codec(String name, Integer[] formats) {
@@ -154,4 +157,51 @@ public class CodecManager {
 
     return sDecoders;
   }
+
+  /**
+   * Finds an encoder that takes its input from a Surface and supports the given resolution
+   * and frame rate. Hardware encoders are preferred over the software ones.
+   * @return The name of the encoder, or null if there is none
+   */
+  @SuppressLint("NewApi")
+  public synchronized static String findSurfaceEncoder(String mimeType, int width, int height, int framerate) {
+    String key = mimeType+":"+width+"x"+height+"@"+framerate;
+    if (sSurfaceEncoders.containsKey(key)) return sSurfaceEncoders.get(key);
+
+    String found = null;
+    for (int j = 0; j < MediaCodecList.getCodecCount(); j++) {
+      MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(j);
+      if (!codecInfo.isEncoder()) continue;
+
+      String[] types = codecInfo.getSupportedTypes();
+      for (int i = 0; i < types.length; i++) {
+        if (!types[i].equalsIgnoreCase(mimeType)) continue;
+        try {
+          MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
+          boolean surface = false;
+          for (int k = 0; k < capabilities.colorFormats.length; k++) {
+            if (capabilities.colorFormats[k] == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) surface = true;
+          }
+          MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+          if (!surface || video == null || !video.isSizeSupported(width, height)) continue;
+          if (!video.areSizeAndRateSupported(width, height, framerate)) continue;
+
+          if (found == null || (isSoftware(found) && !isSoftware(codecInfo.getName()))) {
+            found = codecInfo.getName();
+          }
+        } catch (Exception e) {
+          Log.wtf(TAG,e);
+        }
+      }
+    }
+
+    Log.d(TAG, "Surface encoder for "+key+": "+found);
+    sSurfaceEncoders.put(key, found);
+    return found;
+  }
+
+  private static boolean isSoftware(String name) {
+    String lower = name.toLowerCase(Locale.US);
+    return lower.startsWith("omx.google.") || lower.startsWith("c2.android.");
+  }
 }
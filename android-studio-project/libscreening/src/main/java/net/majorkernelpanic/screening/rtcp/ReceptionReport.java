@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.rtcp;
+
+/**
+ * A report block sent by a receiver of an RTP session in a Receiver or Sender Report
+ * (RFC 3550, section 6.4.1), with the durations converted in ms.
+ */
+public class ReceptionReport {
+
+  /** SSRC of the receiver that sent the report. */
+  public final int reporter;
+
+  /** SSRC of the stream the report is about. */
+  public final int source;
+
+  /** Fraction of the packets lost since the previous report, between 0 and 1. */
+  public final float fractionLost;
+
+  /** Number of packets lost since the beginning of the reception. */
+  public final int cumulativeLost;
+
+  /** Highest sequence number received, with the number of sequence number cycles in the 16 high bits. */
+  public final long highestSequence;
+
+  /** Interarrival jitter in ms, -1 if the clock rate of the stream is unknown. */
+  public final float jitter;
+
+  /** Round trip time in ms, -1 if the receiver has not received any Sender Report yet. */
+  public final long rtt;
+
+  /** Time the report was received, see {@link android.os.SystemClock#elapsedRealtime()}. */
+  public final long time;
+
+  ReceptionReport(int reporter, int source, float fractionLost, int cumulativeLost,
+      long highestSequence, float jitter, long rtt, long time) {
+    this.reporter = reporter;
+    this.source = source;
+    this.fractionLost = fractionLost;
+    this.cumulativeLost = cumulativeLost;
+    this.highestSequence = highestSequence;
+    this.jitter = jitter;
+    this.rtt = rtt;
+    this.time = time;
+  }
+
+  @Override
+  public String toString() {
+    return "lost: "+Math.round(fractionLost*100)+"% ("+cumulativeLost+"), jitter: "+jitter+" ms, rtt: "+rtt+" ms";
+  }
+}
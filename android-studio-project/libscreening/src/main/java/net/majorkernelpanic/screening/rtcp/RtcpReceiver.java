@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.rtcp;
+
+import net.majorkernelpanic.screening.rtp.Timebase;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Receives the RTCP packets sent by the receivers of an RTP session, keeps track
+ * of its members (RFC 3550, section 6.3) and of what they report.
+ *
+ * A receiver becomes a member with its first Receiver Report or SDES packet, and
+ * leaves the session with a BYE packet or when it has not reported for
+ * {@link #DEFAULT_MEMBER_TIMEOUT} ms. The report blocks of Receiver Reports are
+ * turned into {@link ReceptionReport}, generic NACKs, PLIs and FIRs are handed
+ * over to a {@link FeedbackListener}. Sender Reports are ignored, they are our own when
+ * the session is sent to a multicast group.
+ *
+ * Packets are read from a UDP socket by a thread of the receiver, or handed over
+ * with {@link #onPacket(byte[], int, int)} when they are interleaved in an RTSP connection.
+ */
+public class RtcpReceiver implements Runnable {
+  public final static String TAG = "RtcpReceiver";
+
+  /** Time in ms after which a member that sent no RTCP packet is considered gone. */
+  public static final int DEFAULT_MEMBER_TIMEOUT = 30000;
+
+  /** Timeout in ms of a read of the socket. */
+  private static final int SO_TIMEOUT = 1000;
+
+  /** Maximum time in ms {@link #stop()} waits for the thread. */
+  private static final int STOP_TIMEOUT = 2*SO_TIMEOUT;
+
+  public static final int PT_SENDER_REPORT = 200;
+  public static final int PT_RECEIVER_REPORT = 201;
+  public static final int PT_SDES = 202;
+  public static final int PT_BYE = 203;
+  public static final int PT_RTPFB = 205;
+  public static final int PT_PSFB = 206;
+
+  /** Format of a generic NACK in a transport layer feedback message (RFC 4585). */
+  public static final int FMT_NACK = 1;
+
+  /** Format of a Picture Loss Indication in a payload specific feedback message (RFC 4585). */
+  public static final int FMT_PLI = 1;
+
+  /** Format of a Full Intra Request in a payload specific feedback message (RFC 5104). */
+  public static final int FMT_FIR = 4;
+
+  /** Notified, on the thread reading the packets, of what happens in the session. */
+  public interface Listener {
+    void onMemberJoined(RtcpReceiver receiver, int ssrc);
+
+    /** @param bye True if the member sent a BYE, false if it timed out */
+    void onMemberLeft(RtcpReceiver receiver, int ssrc, boolean bye);
+
+    void onReceptionReport(RtcpReceiver receiver, ReceptionReport report);
+  }
+
+  /** Notified of the feedback messages of the receivers (RFC 4585), on the thread reading the packets. */
+  public interface FeedbackListener {
+    /**
+     * A receiver lost a packet.
+     * @param ssrc The SSRC of the stream the packet belongs to
+     * @param sequence The sequence number of the packet
+     */
+    void onNack(RtcpReceiver receiver, int ssrc, int sequence);
+
+    /**
+     * A receiver can't decode the stream anymore and needs a key frame, it sent a PLI or a FIR.
+     * @param ssrc The SSRC of the stream
+     */
+    void onPictureLoss(RtcpReceiver receiver, int ssrc);
+  }
+
+  private final DatagramSocket mSocket;
+  private final boolean mOwnsSocket;
+  private volatile long mClockRate = 0;
+  private volatile ReceptionReport mLastReport = null;
+  // SSRC of the stream whose reports are kept, -1 for any stream
+  private volatile long mSource = -1;
+  // Time of the last packet of each member, by SSRC
+  private final HashMap<Integer,Long> mMembers = new HashMap<Integer,Long>();
+  private volatile int mMemberTimeout = DEFAULT_MEMBER_TIMEOUT;
+  private volatile Listener mListener = null;
+  private volatile FeedbackListener mFeedbackListener = null;
+  // The thread reading the socket, a thread that is not this one anymore returns
+  private volatile Thread mThread = null;
+
+  /**
+   * Listens to the RTCP packets sent to a port, and to a multicast group.
+   * @param group The multicast group to join, null for unicast
+   * @param port The RTCP port of the session
+   */
+  public RtcpReceiver(InetAddress group, int port) throws IOException {
+    MulticastSocket socket = new MulticastSocket(port);
+    if (group != null && group.isMulticastAddress()) {
+      socket.joinGroup(group);
+    }
+    socket.setSoTimeout(SO_TIMEOUT);
+    mSocket = socket;
+    mOwnsSocket = true;
+  }
+
+  /**
+   * Listens to the RTCP packets received by a socket that is also used to send, by a
+   * {@link SenderReport} usually. The socket is not closed by {@link #stop()}.
+   */
+  public RtcpReceiver(DatagramSocket socket) {
+    mSocket = socket;
+    mOwnsSocket = false;
+    try {
+      socket.setSoTimeout(SO_TIMEOUT);
+    } catch (SocketException ignore) {}
+  }
+
+  /** Only receives the packets handed over with {@link #onPacket(byte[], int, int)}. */
+  public RtcpReceiver() {
+    mSocket = null;
+    mOwnsSocket = false;
+  }
+
+  /** Sets the clock rate of the RTP stream in Hz, needed to convert the jitter in ms. */
+  public void setClockRate(long rate) {
+    mClockRate = rate;
+  }
+
+  /**
+   * Only keeps the reports about the stream given, the reports about other streams
+   * of the session (the FEC packets of RFC 5109 for instance) are ignored.
+   */
+  public void setSource(int ssrc) {
+    mSource = ssrc & 0xFFFFFFFFL;
+  }
+
+  /** Returns the last report received, or null. */
+  public ReceptionReport getLastReport() {
+    return mLastReport;
+  }
+
+  public void setListener(Listener listener) {
+    mListener = listener;
+  }
+
+  public void setFeedbackListener(FeedbackListener listener) {
+    mFeedbackListener = listener;
+  }
+
+  /** Sets the time in ms after which a member that sent no RTCP packet is considered gone. */
+  public void setMemberTimeout(int timeout) {
+    mMemberTimeout = timeout;
+  }
+
+  public int getLocalPort() {
+    return mSocket != null ? mSocket.getLocalPort() : -1;
+  }
+
+  /** Returns the number of receivers currently reporting. */
+  public int getMemberCount() {
+    synchronized (mMembers) {
+      return mMembers.size();
+    }
+  }
+
+  public synchronized void start() {
+    if (mThread == null && mSocket != null) {
+      mThread = new Thread(this, "RtcpReceiver");
+      mThread.start();
+    }
+  }
+
+  /**
+   * Stops reading the socket. A socket of the receiver is closed, a shared one is left to
+   * its owner. Either way the thread is waited for, a shared socket is read with a timeout.
+   * The thread is not interrupted, it may be sending a retransmission through an
+   * interruptible channel that would be closed.
+   */
+  public synchronized void stop() {
+    Thread thread = mThread;
+    mThread = null;
+    if (mOwnsSocket) mSocket.close();
+    if (thread != null) {
+      try {
+        thread.join(STOP_TIMEOUT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (thread.isAlive()) Log.w(TAG, "Thread still reading the socket");
+    }
+  }
+
+  /** Hands over an RTCP packet received some other way, interleaved in an RTSP connection. */
+  public void onPacket(byte[] buffer, int offset, int length) {
+    parse(buffer, offset, length);
+    expireMembers(SystemClock.elapsedRealtime());
+  }
+
+  @Override
+  public void run() {
+    // Its own buffer, should a new thread start before this one returns
+    byte[] buffer = new byte[SenderReport.MTU];
+    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    while (mThread == Thread.currentThread()) {
+      try {
+        packet.setLength(buffer.length);
+        mSocket.receive(packet);
+        parse(buffer, 0, packet.getLength());
+      } catch (SocketTimeoutException ignore) {
+      } catch (IOException e) {
+        // The socket was closed
+        break;
+      }
+      expireMembers(SystemClock.elapsedRealtime());
+    }
+    Log.d(TAG,"Thread stopped !");
+  }
+
+  /** Reads the packets of a compound RTCP packet. */
+  private void parse(byte[] buffer, int offset, int length) {
+    length += offset;
+    long now = SystemClock.elapsedRealtime();
+    long arrival = Timebase.toCompactNtp(System.nanoTime());
+    while (offset+8 <= length) {
+      // Version must be 2
+      if ((buffer[offset]&0xC0) != 0x80) return;
+      int count = buffer[offset]&0x1F;
+      int type = buffer[offset+1]&0xFF;
+      int size = 4*(((buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF))+1);
+      if (offset+size > length) return;
+      int ssrc = getInt(buffer, offset+4);
+
+      switch (type) {
+        case PT_RECEIVER_REPORT:
+          onMemberReport(ssrc, now);
+          for (int i=0; i<count && 8+24*i+24 <= size; i++) {
+            onReportBlock(ssrc, buffer, offset+8+24*i, arrival, now);
+          }
+          break;
+        case PT_SDES:
+          onMemberReport(ssrc, now);
+          break;
+        case PT_RTPFB:
+          if (count == FMT_NACK && size >= 12) {
+            onNack(getInt(buffer, offset+8), buffer, offset+12, size-12);
+          }
+          break;
+        case PT_PSFB:
+          if (count == FMT_PLI && size >= 12) {
+            onPictureLoss(getInt(buffer, offset+8));
+          } else if (count == FMT_FIR) {
+            // The SSRC of the stream is in each FCI entry, followed by a sequence number
+            for (int i=12; i+8 <= size; i+=8) {
+              onPictureLoss(getInt(buffer, offset+i));
+            }
+          }
+          break;
+        case PT_BYE:
+          for (int i=0; i<count && 4+4*i+4 <= size; i++) {
+            onMemberBye(getInt(buffer, offset+4+4*i));
+          }
+          break;
+      }
+      offset += size;
+    }
+  }
+
+  private void onMemberReport(int ssrc, long now) {
+    boolean joined;
+    synchronized (mMembers) {
+      joined = mMembers.put(ssrc, now) == null;
+    }
+    if (joined) {
+      Log.i(TAG,"Member "+Integer.toHexString(ssrc)+" joined the session");
+      Listener listener = mListener;
+      if (listener != null) listener.onMemberJoined(this, ssrc);
+    }
+  }
+
+  /** Reads a report block of 24 bytes (RFC 3550, section 6.4.1). */
+  private void onReportBlock(int reporter, byte[] buffer, int offset, long arrival, long now) {
+    int source = getInt(buffer, offset);
+    long expected = mSource;
+    if (expected >= 0 && (source & 0xFFFFFFFFL) != expected) return;
+    float fraction = (buffer[offset+4]&0xFF)/256f;
+    // The cumulative number of packets lost is a signed 24 bits integer
+    int lost = (buffer[offset+5]<<16) | (buffer[offset+6]&0xFF)<<8 | (buffer[offset+7]&0xFF);
+    long highest = getInt(buffer, offset+8)&0xFFFFFFFFL;
+    long jitter = getInt(buffer, offset+12)&0xFFFFFFFFL;
+    long lsr = getInt(buffer, offset+16)&0xFFFFFFFFL;
+    long dlsr = getInt(buffer, offset+20)&0xFFFFFFFFL;
+
+    // Both the time of the last SR and the delay since are in 1/65536 s
+    long rtt = -1;
+    if (lsr != 0) {
+      long delay = (arrival - lsr - dlsr) & 0xFFFFFFFFL;
+      if (delay < 0x80000000L) rtt = delay*1000/65536;
+    }
+    long clock = mClockRate;
+
+    ReceptionReport report = new ReceptionReport(reporter, source, fraction, lost, highest,
+        clock > 0 ? jitter*1000f/clock : -1, rtt, now);
+    mLastReport = report;
+    Listener listener = mListener;
+    if (listener != null) listener.onReceptionReport(this, report);
+  }
+
+  /**
+   * Reads the FCI entries of a generic NACK: the sequence number of a lost packet,
+   * and a bitmask of the 16 following packets also lost.
+   */
+  private void onNack(int ssrc, byte[] buffer, int offset, int length) {
+    FeedbackListener listener = mFeedbackListener;
+    if (listener == null) return;
+    for (int end = offset+length; offset+4 <= end; offset += 4) {
+      int pid = (buffer[offset]&0xFF)<<8 | (buffer[offset+1]&0xFF);
+      int blp = (buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF);
+      listener.onNack(this, ssrc, pid);
+      for (int i=0; i<16; i++) {
+        if ((blp & (1<<i)) != 0) listener.onNack(this, ssrc, (pid+i+1) & 0xFFFF);
+      }
+    }
+  }
+
+  private void onPictureLoss(int ssrc) {
+    FeedbackListener listener = mFeedbackListener;
+    if (listener != null) listener.onPictureLoss(this, ssrc);
+  }
+
+  private void onMemberBye(int ssrc) {
+    boolean left;
+    synchronized (mMembers) {
+      left = mMembers.remove(ssrc) != null;
+    }
+    if (left) {
+      Log.i(TAG,"Member "+Integer.toHexString(ssrc)+" left the session");
+      Listener listener = mListener;
+      if (listener != null) listener.onMemberLeft(this, ssrc, true);
+    }
+  }
+
+  private void expireMembers(long now) {
+    int timeout = mMemberTimeout;
+    if (timeout <= 0) return;
+    ArrayList<Integer> expired = null;
+    synchronized (mMembers) {
+      Iterator<Map.Entry<Integer,Long>> it = mMembers.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Integer,Long> member = it.next();
+        if (now-member.getValue() > timeout) {
+          it.remove();
+          if (expired == null) expired = new ArrayList<Integer>();
+          expired.add(member.getKey());
+        }
+      }
+    }
+    if (expired == null) return;
+
+    Listener listener = mListener;
+    for (int ssrc : expired) {
+      Log.i(TAG,"Member "+Integer.toHexString(ssrc)+" timed out");
+      if (listener != null) listener.onMemberLeft(this, ssrc, false);
+    }
+  }
+
+  private static int getInt(byte[] buffer, int offset) {
+    return (buffer[offset]&0xFF)<<24 | (buffer[offset+1]&0xFF)<<16 | (buffer[offset+2]&0xFF)<<8 | (buffer[offset+3]&0xFF);
+  }
+}
@@ -23,12 +23,16 @@ package net.majorkernelpanic.screening.rtcp;
 import static net.majorkernelpanic.screening.rtp.RtpSocket.TRANSPORT_TCP;
 import static net.majorkernelpanic.screening.rtp.RtpSocket.TRANSPORT_UDP;
 
+import net.majorkernelpanic.screening.rtp.InterleavedWriter;
+import net.majorkernelpanic.screening.rtp.Timebase;
+
 import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.nio.channels.IllegalSelectorException;
@@ -46,12 +50,14 @@ public class SenderReport {
   private DatagramPacket upack;
 
   private int mTransport;
-  private OutputStream mOutputStream = null;
+  private InterleavedWriter mWriter = null;
   private byte[] mBuffer = new byte[MTU];
   private int mSSRC, mPort = -1;
   private int mOctetCount = 0, mPacketCount = 0;
   private long interval, delta, now, oldnow;
-  private byte mTcpHeader[];
+  private byte mTcpPacket[];
+  private Timebase mTimebase = Timebase.getDefault();
+  private long mClock = 0, mOffset = 0;
 
   public SenderReport(int ssrc) throws IOException {
     super();
@@ -61,7 +67,9 @@ public class SenderReport {
   public SenderReport() {
 
     mTransport = TRANSPORT_UDP;
-    mTcpHeader = new byte[] {'$',0,0,PACKET_LENGTH};
+    mTcpPacket = new byte[4+PACKET_LENGTH];
+    mTcpPacket[0] = '$';
+    mTcpPacket[3] = PACKET_LENGTH;
 
     /*                   Version(2)  Padding(0)        */
     /*                   ^      ^      PT = 0          */
@@ -112,14 +120,26 @@ public class SenderReport {
     this.interval = interval;
   }
 
+  /**
+   * Sets how the RTP timestamps of the stream are computed, see {@link Timebase#toRtp(long, long, long)}.
+   * @param timebase The timebase of the stream
+   * @param clock The clock rate of the stream in Hz
+   * @param offset The random offset of the timestamps of the stream
+   */
+  public void setTimebase(Timebase timebase, long clock, long offset) {
+    mTimebase = timebase;
+    mClock = clock;
+    mOffset = offset;
+  }
+
   /**
    * Updates the number of packets sent, and the total amount of data sent.
    * @param length The length of the packet
-   * @param rtpts
-   *            The RTP timestamp.
+   * @param skew The timestamp of the packet in ns minus the time it was captured,
+   *            0 if its timestamp is its capture time
    * @throws IOException
    **/
-  public void update(int length, long rtpts) throws IOException {
+  public void update(int length, long skew) throws IOException {
     mPacketCount += 1;
     mOctetCount += length;
     setLong(mPacketCount, 20, 24);
@@ -129,8 +149,9 @@ public class SenderReport {
     delta += oldnow != 0 ? now-oldnow : 0;
     oldnow = now;
     if (interval>0 && delta>=interval) {
-      // We send a Sender Report
-      send(System.nanoTime(), rtpts);
+      // We send a Sender Report, the RTP timestamp is the one of a packet captured right now
+      long time = System.nanoTime();
+      send(Timebase.toNtp(time), mTimebase.toRtp(time+skew, mClock, mOffset));
       delta = 0;
     }
   }
@@ -157,9 +178,17 @@ public class SenderReport {
    * be specified with this method.
    */
   public void setOutputStream(OutputStream os, byte channelIdentifier) {
+    setInterleavedWriter(new InterleavedWriter(os), channelIdentifier);
+  }
+
+  /**
+   * Same as {@link #setOutputStream(OutputStream, byte)}, the writer should be
+   * shared by every socket sending packets over the same connection.
+   */
+  public void setInterleavedWriter(InterleavedWriter writer, byte channelIdentifier) {
     mTransport = TRANSPORT_TCP;
-    mOutputStream = os;
-    mTcpHeader[1] = channelIdentifier;
+    mWriter = writer;
+    mTcpPacket[1] = channelIdentifier;
   }
 
   public int getPort() {
@@ -174,6 +203,12 @@ public class SenderReport {
     return mSSRC;
   }
 
+  /** Returns the socket the reports are sent from, the receivers send their own reports to it. */
+  public DatagramSocket getSocket() {
+    return usock;
+  }
+
+
   /**
    * Resets the reports (total number of bytes sent, number of packets sent, etc.)
    */
@@ -196,26 +231,23 @@ public class SenderReport {
    * Sends the RTCP packet over the network.
    *
    * @param ntpts
-   *            the NTP timestamp.
+   *            the 64 bits NTP timestamp.
    * @param rtpts
    *            the RTP timestamp.
    */
   private void send(long ntpts, long rtpts) throws IOException {
-    long hb = ntpts/1000000000;
-    long lb = ( ( ntpts - hb*1000000000 ) * 4294967296L )/1000000000;
-    setLong(hb, 8, 12);
-    setLong(lb, 12, 16);
+    setLong(ntpts>>>32, 8, 12);
+    setLong(ntpts&0xFFFFFFFFL, 12, 16);
     setLong(rtpts, 16, 20);
     if (mTransport == TRANSPORT_UDP) {
       upack.setLength(PACKET_LENGTH);
       usock.send(upack);
     } else {
-      synchronized (mOutputStream) {
-        try {
-          mOutputStream.write(mTcpHeader);
-          mOutputStream.write(mBuffer, 0, PACKET_LENGTH);
-        } catch (Exception e) {}
-      }
+      System.arraycopy(mBuffer, 0, mTcpPacket, 4, PACKET_LENGTH);
+      try {
+        // The report is simply skipped if the connection is full
+        mWriter.write(mTcpPacket, 0, mTcpPacket.length);
+      } catch (Exception e) {}
     }
   }
 }
@@ -78,6 +78,9 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
     long oldts;
     BufferInfo bufferInfo;
 
+    // Presentation times are the capture times of the samples
+    socket.setCaptureClock(true);
+
     try {
       while (!Thread.interrupted()) {
         buffer = socket.requestBuffer();
@@ -90,9 +93,8 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
           oldts = ts;
           ts = bufferInfo.presentationTimeUs*1000;
 
-          // Seems to happen sometimes
+          // Seems to happen sometimes, the buffer is not committed and will be reused
           if (oldts>ts) {
-            socket.commitBuffer();
             continue;
           }
 
@@ -115,8 +117,6 @@ public class AACLATMPacketizer extends AbstractPacketizer implements Runnable {
 
           send(rtphl+length+4);
 
-        } else {
-          socket.commitBuffer();
         }
       }
     } catch (IOException e) {
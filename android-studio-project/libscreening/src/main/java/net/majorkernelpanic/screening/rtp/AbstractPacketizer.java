@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 /**
@@ -94,6 +95,23 @@ abstract public class AbstractPacketizer {
     socket.commitBuffer(length);
   }
 
+  /**
+   * Updates data for RTCP SR and sends a packet made of the first headerLength bytes
+   * of the buffer followed by the payload, which is not copied.
+   * See {@link RtpSocket#commitBuffer(int, ByteBuffer)}.
+   */
+  protected void send(int headerLength, ByteBuffer payload) throws IOException {
+    socket.commitBuffer(headerLength, payload);
+  }
+
+  /**
+   * Same as {@link #send(int, ByteBuffer)} for a payload that is a slice of a codec buffer,
+   * which is held until the packet is sent.
+   */
+  protected void send(int headerLength, ByteBuffer payload, CodecBuffer owner) throws IOException {
+    socket.commitBuffer(headerLength, payload, owner);
+  }
+
   /** For debugging purposes. */
   protected static String printBuffer(byte[] buffer, int start,int end) {
     String str = "";
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An output buffer of a {@link MediaCodec}, handed out by {@link MediaCodecInputStream#readBuffer()}
+ * so that packets can be sent straight from it.
+ *
+ * The buffer is reference counted: the reader holds the first reference, and the
+ * {@link RtpSocket} takes one for every packet committed with a slice of it. It is only
+ * given back to the codec once every reference is released, that is once the last
+ * packet that refers to it has been sent or dropped.
+ */
+@SuppressLint("NewApi")
+public class CodecBuffer {
+  public final static String TAG = "CodecBuffer";
+
+  private final MediaCodec mMediaCodec;
+  private final int mIndex;
+  private final ByteBuffer mData;
+  private final long mPresentationTimeUs;
+  private final int mFlags;
+  private final AtomicInteger mReferences = new AtomicInteger(1);
+
+  CodecBuffer(MediaCodec mediaCodec, int index, ByteBuffer buffer, BufferInfo info) {
+    mMediaCodec = mediaCodec;
+    mIndex = index;
+    mData = buffer.duplicate();
+    mData.limit(info.offset + info.size);
+    mData.position(info.offset);
+    mPresentationTimeUs = info.presentationTimeUs;
+    mFlags = info.flags;
+  }
+
+  /**
+   * Returns a new view of the data of the buffer, between its position and its limit.
+   * It must not be used once the buffer is released.
+   */
+  public ByteBuffer getData() {
+    return mData.duplicate();
+  }
+
+  /** Returns the presentation time of the buffer in us. */
+  public long getPresentationTimeUs() {
+    return mPresentationTimeUs;
+  }
+
+  /** Returns the flags of the buffer, see {@link BufferInfo#flags}. */
+  public int getFlags() {
+    return mFlags;
+  }
+
+  /** Takes a reference on the buffer. */
+  public void retain() {
+    if (mReferences.getAndIncrement() <= 0)
+      throw new IllegalStateException("The buffer was already released !");
+  }
+
+  /** Releases a reference, the buffer goes back to the codec with the last one. */
+  public void release() {
+    if (mReferences.decrementAndGet() != 0) return;
+    recycle();
+  }
+
+  /** Gives the buffer back to the codec, once the last reference is released. */
+  void recycle() {
+    try {
+      mMediaCodec.releaseOutputBuffer(mIndex, false);
+    } catch (IllegalStateException e) {
+      // The codec was stopped in the meantime
+      Log.w(TAG, "Output buffer "+mIndex+" could not be released: "+e.getMessage());
+    }
+  }
+}
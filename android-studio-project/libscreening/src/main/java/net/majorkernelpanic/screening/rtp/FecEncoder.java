@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import net.majorkernelpanic.screening.rtcp.ReceptionReport;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Generates the XOR parity packets of RFC 5109 (ULPFEC) for an {@link RtpSocket}.
+ *
+ * Packets are protected by groups of {@link #setGroupSize(int)} consecutive packets, or
+ * less when a group is closed at the end of each frame. One FEC packet is sent after each
+ * group with the payload type {@link #PAYLOAD_TYPE}: a receiver that lost a single packet
+ * of the group recovers it from the others. FEC packets are a stream of their own, with
+ * their own SSRC, sequence numbers and port, that only the receivers that set it up get.
+ *
+ * When the group size adapts to the loss reported by the receiver, no FEC packet is sent
+ * while the receiver loses nothing, and groups get smaller as the loss grows.
+ */
+public class FecEncoder {
+  public final static String TAG = "FecEncoder";
+
+  /** Payload type of the FEC packets, see the SDP of the stream. */
+  public static final int PAYLOAD_TYPE = 97;
+
+  /** Largest group protected by one FEC packet, with the 16 bits mask. */
+  public static final int MAX_GROUP_SIZE = 16;
+
+  /** Default number of packets protected by one FEC packet. */
+  public static final int DEFAULT_GROUP_SIZE = 8;
+
+  /** Length of the FEC header and of the level 0 header with the short mask. */
+  public static final int HEADER_LENGTH = 10+4;
+
+  private static final int RTP_HEADER_LENGTH = RtpSocket.RTP_HEADER_LENGTH;
+
+  private volatile int mGroupSize = DEFAULT_GROUP_SIZE;
+  private volatile boolean mPerFrame = false;
+  private volatile boolean mAdaptive = true;
+  private ReceptionReport mLastReport = null;
+  private int mAdaptedSize = -1;
+
+  // State of the group being protected, only used by the packetizer thread
+  private final byte[] mParity = new byte[RtpSocket.MTU];
+  private int mCount = 0, mBase, mMask, mTimestamp, mLengthRecovery, mProtectionLength;
+  private int mByte0, mByte1;
+  private long mPackets = 0;
+
+  /**
+   * Sets the number of packets protected by one FEC packet, the overhead is one packet per group.
+   * @param size Between 1 and {@link #MAX_GROUP_SIZE}, 0 disables FEC
+   */
+  public void setGroupSize(int size) {
+    if (size < 0 || size > MAX_GROUP_SIZE)
+      throw new IllegalArgumentException("The group size must be in [0,"+MAX_GROUP_SIZE+"] !");
+    mGroupSize = size;
+  }
+
+  public int getGroupSize() {
+    return mGroupSize;
+  }
+
+  /** If set, groups are also closed at the end of each frame, a frame is then recovered without waiting for the next one. */
+  public void setPerFrame(boolean perFrame) {
+    mPerFrame = perFrame;
+  }
+
+  /** If set, the group size follows the loss reported by the receiver, see {@link #adapt(ReceptionReport)}. */
+  public void setAdaptive(boolean adaptive) {
+    mAdaptive = adaptive;
+  }
+
+  /** Returns the number of FEC packets generated. */
+  public long getPacketCount() {
+    return mPackets;
+  }
+
+  /**
+   * Picks the group size from the last loss reported by the receiver:
+   * no FEC below 0.5%, then groups of 16, 8, 4 and 2 packets above 2%, 5% and 10%.
+   * Until the receiver reports anything, the size set with {@link #setGroupSize(int)} is used.
+   */
+  void adapt(ReceptionReport report) {
+    if (!mAdaptive || report == null || report == mLastReport) return;
+    mLastReport = report;
+    float loss = report.fractionLost;
+    int size = loss < 0.005f ? 0 : loss < 0.02f ? 16 : loss < 0.05f ? 8 : loss < 0.10f ? 4 : 2;
+    if (size != mAdaptedSize) {
+      Log.d(TAG, "Loss: "+Math.round(loss*100)+"%, "+(size == 0 ? "FEC disabled" : "one FEC packet every "+size+" packets"));
+      mAdaptedSize = size;
+    }
+  }
+
+  private int getCurrentGroupSize() {
+    return mAdaptive && mAdaptedSize >= 0 ? mAdaptedSize : mGroupSize;
+  }
+
+  /** Indicates if packets are protected, a group may still be open otherwise. */
+  boolean isEnabled() {
+    return mCount > 0 || getCurrentGroupSize() > 0;
+  }
+
+  /**
+   * Adds a packet, with its sequence number already set, to the group being protected.
+   * @param buffer The packet, or its header if the payload is not inline
+   * @param inline The number of bytes of the packet in the buffer
+   * @param payload The rest of the packet, or null
+   * @param length The length of the packet
+   * @param endOfFrame Whether the packet is the last one of a frame
+   * @return True if the group is complete, its FEC packet must then be written with {@link #write(byte[])}
+   */
+  boolean protect(byte[] buffer, int inline, ByteBuffer payload, int length, boolean endOfFrame) {
+    int sequence = (buffer[2]&0xFF)<<8 | (buffer[3]&0xFF);
+    if (mCount > 0 && ((sequence-mBase) & 0xFFFF) >= MAX_GROUP_SIZE) {
+      // Can't be described by the mask, the group is abandoned
+      reset();
+    }
+    if (mCount == 0) {
+      mBase = sequence;
+      mMask = 0;
+      mByte0 = mByte1 = mTimestamp = mLengthRecovery = 0;
+    }
+
+    mByte0 ^= buffer[0];
+    mByte1 ^= buffer[1];
+    mTimestamp ^= (buffer[4]&0xFF)<<24 | (buffer[5]&0xFF)<<16 | (buffer[6]&0xFF)<<8 | (buffer[7]&0xFF);
+    mLengthRecovery ^= length-RTP_HEADER_LENGTH;
+    mMask |= 1 << (15-((sequence-mBase) & 0xFFFF));
+
+    // The parity covers everything after the RTP header, shorter packets are padded with zeros
+    byte[] parity = mParity;
+    int i = 0;
+    for (int j=RTP_HEADER_LENGTH; j<inline; j++) {
+      parity[i++] ^= buffer[j];
+    }
+    if (payload != null) {
+      for (int j=payload.position(), end=j+length-inline; j<end; j++) {
+        parity[i++] ^= payload.get(j);
+      }
+    }
+    if (i > mProtectionLength) mProtectionLength = i;
+
+    mCount++;
+    int size = getCurrentGroupSize();
+    return mCount >= (size > 0 ? size : 1) || mCount >= MAX_GROUP_SIZE || (mPerFrame && endOfFrame);
+  }
+
+  /**
+   * Writes the FEC packet of the group after the RTP header of the buffer, and starts a new group.
+   * The sequence number, the timestamp and the SSRC of the packet are left to the caller.
+   * @return The length of the FEC packet
+   */
+  int write(byte[] buffer) {
+    int length = mProtectionLength;
+    buffer[1] = (byte) PAYLOAD_TYPE;
+
+    int pos = RTP_HEADER_LENGTH;
+    // E = 0, L = 0 (16 bits mask), then the recovery of P, X and CC
+    buffer[pos] = (byte) (mByte0 & 0x3F);
+    buffer[pos+1] = (byte) mByte1;
+    buffer[pos+2] = (byte) (mBase>>8);
+    buffer[pos+3] = (byte) mBase;
+    buffer[pos+4] = (byte) (mTimestamp>>24);
+    buffer[pos+5] = (byte) (mTimestamp>>16);
+    buffer[pos+6] = (byte) (mTimestamp>>8);
+    buffer[pos+7] = (byte) mTimestamp;
+    buffer[pos+8] = (byte) (mLengthRecovery>>8);
+    buffer[pos+9] = (byte) mLengthRecovery;
+
+    // Level 0 header: protection length and mask
+    buffer[pos+10] = (byte) (length>>8);
+    buffer[pos+11] = (byte) length;
+    buffer[pos+12] = (byte) (mMask>>8);
+    buffer[pos+13] = (byte) mMask;
+
+    System.arraycopy(mParity, 0, buffer, pos+HEADER_LENGTH, length);
+    reset();
+    mPackets++;
+    return RTP_HEADER_LENGTH+HEADER_LENGTH+length;
+  }
+
+  /** Abandons the group being protected. */
+  void reset() {
+    for (int i=0; i<mProtectionLength; i++) mParity[i] = 0;
+    mProtectionLength = 0;
+    mCount = 0;
+  }
+}
@@ -20,10 +20,12 @@
 
 package net.majorkernelpanic.screening.rtp;
 
-import android.annotation.SuppressLint;
+import android.media.MediaCodec;
+import android.os.Debug;
 import android.util.Log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -34,6 +36,10 @@ import java.io.IOException;
  *   Must be fed with an InputStream containing H.264 NAL units preceded by their length (4 bytes).
  *   The stream must start with mpeg4 or 3gpp header, it will be skipped.
  *
+ *   When fed with a {@link MediaCodecInputStream}, the output buffers of the encoder are
+ *   read directly: packets are sent as slices of those buffers, without any copy, and each
+ *   buffer goes back to the encoder once its last packet has been sent.
+ *
  */
 public class H264Packetizer extends AbstractPacketizer implements Runnable {
   public final static String TAG = "H264Packetizer";
@@ -45,11 +51,21 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
   private byte[] sps = null, pps = null, stapa = null;
   byte[] header = new byte[5];
   private int count = 0;
-  private int streamType = 1;
+  // CPU time of the thread and bytes of NAL units sent since the last report
+  private long cpuTime = 0, bytes = 0, lastReport = 0;
+
+  /** Interval in ns between two logs of the CPU time spent per megabit sent. */
+  private static final long CPU_REPORT_INTERVAL = 10000000000L;
 
   public H264Packetizer() {
     super();
     socket.setClockFrequency(90000);
+    // Nothing is sent before the SPS, the PPS and an IDR
+    socket.setStartOnKeyFrame(true);
+    // Packets of a key frame lost are sent again rather than waiting for the next one
+    socket.setRetransmission(true);
+    // Isolated losses are recovered without waiting for a retransmission
+    socket.setFecEncoder(new FecEncoder());
   }
 
   public void start() {
@@ -103,23 +119,33 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
     Log.d(TAG,"H264 packetizer started !");
     stats.reset();
     count = 0;
+    boolean direct = is instanceof MediaCodecInputStream;
 
-    if (is instanceof MediaCodecInputStream) {
-      streamType = 1;
+    if (direct) {
       socket.setCacheSize(0);
+      socket.setCaptureClock(true);
     } else {
-      streamType = 0;
       socket.setCacheSize(400);
+      socket.setCaptureClock(false);
     }
 
+    bytes = 0;
+    cpuTime = Debug.threadCpuTimeNanos();
+    lastReport = System.nanoTime();
+
     try {
       while (!Thread.interrupted()) {
 
         oldtime = System.nanoTime();
         // We read a NAL units from the input stream and we send them
-        send();
+        if (direct) {
+          sendBuffer();
+        } else {
+          send();
+        }
         // We measure how long it took to receive NAL units from the phone
         duration = System.nanoTime() - oldtime;
+        if (oldtime - lastReport >= CPU_REPORT_INTERVAL) reportCpuTime();
 
         stats.push(duration);
         // Computes the average duration of a NAL unit
@@ -137,66 +163,29 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
    * Reads a NAL unit in the FIFO and sends it.
    * If it is too big, we split it in FU-A units (RFC 3984).
    */
-  @SuppressLint("NewApi")
   private void send() throws IOException, InterruptedException {
     int sum = 1, len = 0, type;
+    boolean reference;
 
-    if (streamType == 0) {
-      // NAL units are preceeded by their length, we parse the length
-      fill(header,0,5);
-      ts += delay;
-      naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
-      if (naluLength>100000 || naluLength<0) resync();
-    } else if (streamType == 1) {
-      // NAL units are preceeded with 0x00000001
-      fill(header,0,5);
-      ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-      //ts += delay;
-      naluLength = is.available()+1;
-      if (!(header[0]==0 && header[1]==0 && header[2]==0)) {
-        // Turns out, the NAL units are not preceeded with 0x00000001
-        Log.e(TAG, "NAL units are not preceeded by 0x00000001");
-        streamType = 2;
-        return;
-      }
-    } else {
-      // Nothing preceededs the NAL units
-      fill(header,0,1);
-      header[4] = header[0];
-      ts = ((MediaCodecInputStream)is).getLastBufferInfo().presentationTimeUs*1000L;
-      //ts += delay;
-      naluLength = is.available()+1;
-    }
+    // NAL units are preceeded by their length, we parse the length
+    fill(header,0,5);
+    ts += delay;
+    naluLength = header[3]&0xFF | (header[2]&0xFF)<<8 | (header[1]&0xFF)<<16 | (header[0]&0xFF)<<24;
+    if (naluLength>100000 || naluLength<0) resync();
+    bytes += naluLength;
 
-    // Parses the NAL unit type
+    // Parses the NAL unit type, and whether other NAL units depend on it (nal_ref_idc)
     type = header[4]&0x1F;
-
-    // The stream already contains NAL unit type 7 or 8, we don't need
-    // to add them to the stream ourselves
-    if (type == 7 || type == 8) {
-      Log.v(TAG,"SPS or PPS present in the stream.");
-      count++;
-      if (count>4) {
-        sps = null;
-        pps = null;
-      }
-    }
-
-    // We send two packets containing NALU type 7 (SPS) and 8 (PPS)
-    // Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
-    if (type == 5 && sps != null && pps != null) {
-      buffer = socket.requestBuffer();
-      socket.markNextPacket();
-      socket.updateTimestamp(ts);
-      System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
-      super.send(rtphl+stapa.length);
-    }
+    reference = (header[4]&0x60) != 0;
+    sendParameterSets(type);
 
     //Log.d(TAG,"- Nal unit length: " + naluLength + " delay: "+delay/1000000+" type: "+type);
 
     // Small NAL unit => Single NAL unit
     if (naluLength<=MAXPACKETSIZE-rtphl-2) {
       buffer = socket.requestBuffer();
+      if (type == 5 || type == 7) socket.markKeyFrame();
+      if (!reference) socket.markNonReference();
       buffer[rtphl] = header[4];
       len = fill(buffer, rtphl+1,  naluLength-1);
       socket.updateTimestamp(ts);
@@ -215,6 +204,8 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
 
       while (sum < naluLength) {
         buffer = socket.requestBuffer();
+        if ((type == 5 || type == 7) && sum == 1) socket.markKeyFrame();
+        if (!reference) socket.markNonReference();
         buffer[rtphl] = header[0];
         buffer[rtphl+1] = header[1];
         socket.updateTimestamp(ts);
@@ -233,6 +224,167 @@ public class H264Packetizer extends AbstractPacketizer implements Runnable {
     }
   }
 
+  /**
+   * Reads the next output buffer of the encoder and sends the NAL units it contains.
+   * A buffer may hold several NAL units (SPS, PPS, SEI and the slices of a frame), they are split
+   * on their start codes. The packets are slices of the buffer, which is given back to the
+   * encoder once they are all sent.
+   */
+  private void sendBuffer() throws IOException, InterruptedException {
+    CodecBuffer codecBuffer = ((MediaCodecInputStream) is).readBuffer();
+    if (codecBuffer == null) throw new IOException("End of stream");
+    try {
+      ByteBuffer data = codecBuffer.getData();
+      if ((codecBuffer.getFlags() & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+        // The SPS and the PPS have no timestamp of their own, they go in the STAP-A sent before each IDR
+        readParameterSets(data);
+        return;
+      }
+      ts = codecBuffer.getPresentationTimeUs()*1000L;
+      int from = data.position(), end = data.limit();
+      // A NAL unit is only sent once the next one is found, the last one ends the access unit
+      int pending = 0, pendingLength = 0;
+      while (from < end) {
+        int next = StartCodeScanner.find(data, from, end);
+        int stop = StartCodeScanner.trim(data, from, next < 0 ? end : next);
+        // Nothing but zero bytes before the first start code, some encoders write none
+        if (stop > from) {
+          if (pendingLength > 0) sendNal(codecBuffer, data, pending, pendingLength, false);
+          pending = from;
+          pendingLength = stop-from;
+        }
+        if (next < 0) break;
+        from = next+3;
+      }
+      if (pendingLength > 0) sendNal(codecBuffer, data, pending, pendingLength, true);
+    } finally {
+      // The packets queued hold their own reference on the buffer
+      codecBuffer.release();
+    }
+  }
+
+  /**
+   * Reads the SPS and the PPS of the codec config buffer of the encoder,
+   * they replace the ones found when the stream was configured.
+   */
+  private void readParameterSets(ByteBuffer data) {
+    byte[] sps = null, pps = null;
+    int from = data.position(), end = data.limit();
+    while (from < end) {
+      int next = StartCodeScanner.find(data, from, end);
+      int stop = StartCodeScanner.trim(data, from, next < 0 ? end : next);
+      if (stop > from) {
+        int type = data.get(from)&0x1F;
+        byte[] nal = new byte[stop-from];
+        for (int i=0; i<nal.length; i++) nal[i] = data.get(from+i);
+        if (type == 7) sps = nal;
+        else if (type == 8) pps = nal;
+      }
+      if (next < 0) break;
+      from = next+3;
+    }
+    if (sps != null && pps != null) setStreamParameters(pps, sps);
+  }
+
+  /**
+   * Sends a NAL unit of a codec buffer, in a single NAL unit packet or
+   * split in FU-A units (RFC 3984). The payloads are slices of the buffer.
+   * @param offset The position of the NAL unit header in the data
+   * @param length The length of the NAL unit, its header included
+   * @param last Whether it is the last NAL unit of the access unit, its last packet gets the marker bit
+   */
+  private void sendNal(CodecBuffer owner, ByteBuffer data, int offset, int length, boolean last) throws IOException, InterruptedException {
+    byte nal = data.get(offset);
+    int type = nal&0x1F;
+    boolean reference = (nal&0x60) != 0;
+    bytes += length;
+    sendParameterSets(type);
+
+    // Small NAL unit => Single NAL unit
+    if (length<=MAXPACKETSIZE-rtphl-2) {
+      buffer = socket.requestBuffer();
+      if (type == 5 || type == 7) socket.markKeyFrame();
+      if (!reference) socket.markNonReference();
+      socket.updateTimestamp(ts);
+      if (last) socket.markNextPacket();
+      super.send(rtphl, slice(data, offset, length), owner);
+    }
+    // Large NAL unit => Split nal unit
+    else {
+      // FU indicator with the NRI of the NAL unit, and FU header with the start bit
+      byte indicator = (byte) ((nal & 0x60) + 28);
+      byte fuHeader = (byte) ((nal & 0x1F) + 0x80);
+      int sum = 1, len;
+
+      while (sum < length) {
+        len = Math.min(length-sum, MAXPACKETSIZE-rtphl-2);
+        buffer = socket.requestBuffer();
+        if ((type == 5 || type == 7) && sum == 1) socket.markKeyFrame();
+        if (!reference) socket.markNonReference();
+        buffer[rtphl] = indicator;
+        buffer[rtphl+1] = fuHeader;
+        socket.updateTimestamp(ts);
+        sum += len;
+        // Last packet before next NAL
+        if (sum >= length) {
+          // End bit on
+          buffer[rtphl+1] += 0x40;
+          if (last) socket.markNextPacket();
+        }
+        super.send(rtphl+2, slice(data, offset+sum-len, len), owner);
+        // Switch start bit
+        fuHeader &= 0x7F;
+      }
+    }
+  }
+
+  /** Returns a view of length bytes of the data, starting at offset. */
+  private static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+    ByteBuffer view = data.duplicate();
+    view.limit(offset+length);
+    view.position(offset);
+    return view;
+  }
+
+  /**
+   * Keeps track of the SPS and PPS found in the stream, and when it lacks them,
+   * sends ours in a STAP-A packet before each IDR.
+   */
+  private void sendParameterSets(int type) throws IOException, InterruptedException {
+    // The stream already contains NAL unit type 7 or 8, we don't need
+    // to add them to the stream ourselves
+    if (type == 7 || type == 8) {
+      Log.v(TAG,"SPS or PPS present in the stream.");
+      count++;
+      if (count>4) {
+        sps = null;
+        pps = null;
+      }
+    }
+
+    // We send two packets containing NALU type 7 (SPS) and 8 (PPS)
+    // Those should allow the H264 stream to be decoded even if no SDP was sent to the decoder.
+    if (type == 5 && sps != null && pps != null) {
+      buffer = socket.requestBuffer();
+      socket.markKeyFrame();
+      socket.markNextPacket();
+      socket.updateTimestamp(ts);
+      System.arraycopy(stapa, 0, buffer, rtphl, stapa.length);
+      super.send(rtphl+stapa.length);
+    }
+  }
+
+  /** Logs the CPU time spent by the packetizer per megabit of NAL units sent. */
+  private void reportCpuTime() {
+    long now = Debug.threadCpuTimeNanos();
+    if (bytes > 0) {
+      Log.d(TAG, "CPU time: "+(now-cpuTime)*125/bytes+" us/Mbit ("+(is instanceof MediaCodecInputStream ? "direct" : "copied")+")");
+    }
+    cpuTime = now;
+    bytes = 0;
+    lastReport = oldtime;
+  }
+
   private int fill(byte[] buffer, int offset,int length) throws IOException {
     int sum = 0, len;
     while (sum<length) {
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.screening.rtp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Writes RTP and RTCP packets interleaved in a TCP connection (RFC 2326, section 10.12).
+ *
+ * Each call to {@link #write(byte[], int, int)} hands over a whole frame worth of packets,
+ * already framed with their '$' header, that is written in one go. A blocking OutputStream
+ * is locked during the write, so sockets sharing the stream never mix their frames.
+ *
+ * With a SocketChannel, possibly in non-blocking mode, the writer must be shared by every
+ * socket of the connection: what the channel does not accept right away is kept and written
+ * first as soon as the channel is writable, see {@link Listener}, and a frame is dropped whole
+ * while some data is still pending.
+ * RTSP responses are queued apart and never dropped: they are written as soon as the
+ * frame being written is complete, before any new frame.
+ */
+public class InterleavedWriter {
+
+  /** Maximum number of bytes handed over in one call to {@link #write(byte[], int, int)}. */
+  public static final int MAX_WRITE_LENGTH = 65536;
+
+  /** Maximum number of bytes of responses waiting to be written, see {@link #append(byte[], int, int)}. */
+  public static final int MAX_APPEND_LENGTH = 16384;
+
+  /** Notified when data is left pending, so that {@link #flush()} is called once the channel is writable. */
+  public interface Listener {
+    void onPending(InterleavedWriter writer);
+  }
+
+  private final OutputStream mOutput;
+  private final SocketChannel mChannel;
+  // The rest of the frame being written
+  private final ByteBuffer mPending;
+  // Responses waiting for the frame to be written, in write mode
+  private final ByteBuffer mAppended;
+  private long mDropped = 0;
+  private volatile Listener mListener = null;
+
+  public InterleavedWriter(OutputStream output) {
+    mOutput = output;
+    mChannel = null;
+    mPending = null;
+    mAppended = null;
+  }
+
+  public InterleavedWriter(SocketChannel channel) {
+    mOutput = null;
+    mChannel = channel;
+    mPending = ByteBuffer.allocateDirect(MAX_WRITE_LENGTH);
+    mPending.limit(0);
+    mAppended = ByteBuffer.allocate(MAX_APPEND_LENGTH);
+  }
+
+  public void setListener(Listener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Writes interleaved packets.
+   * @param buffer Packets preceded by their '$' header
+   * @param offset The offset of the first packet in the buffer
+   * @param length The total length, at most {@link #MAX_WRITE_LENGTH}
+   * @return False if nothing was written because the data of the last write is still pending
+   */
+  public boolean write(byte[] buffer, int offset, int length) throws IOException {
+    if (mChannel == null) {
+      synchronized (mOutput) {
+        mOutput.write(buffer, offset, length);
+        mOutput.flush();
+      }
+      return true;
+    }
+    synchronized (this) {
+      if (!flush()) {
+        mDropped++;
+        return false;
+      }
+      mPending.clear();
+      mPending.put(buffer, offset, length);
+      mPending.flip();
+      mChannel.write(mPending);
+      if (!mPending.hasRemaining()) return true;
+    }
+    notifyPending();
+    return true;
+  }
+
+  /**
+   * Writes data that must not be dropped, like an RTSP response. With a SocketChannel
+   * it is queued after the frame being written, and before any new frame, see {@link #flush()}.
+   * Frames are dropped rather than the data while the client does not read.
+   * @return False if the client did not read the {@link #MAX_APPEND_LENGTH} bytes already queued
+   */
+  public boolean append(byte[] buffer, int offset, int length) throws IOException {
+    if (mChannel == null) return write(buffer, offset, length);
+    synchronized (this) {
+      if (mAppended.remaining() < length) return false;
+      mAppended.put(buffer, offset, length);
+      if (flush()) return true;
+    }
+    notifyPending();
+    return true;
+  }
+
+  /** Returns true if some data could not be written yet, see {@link #flush()}. */
+  public synchronized boolean hasPending() {
+    return mChannel != null && (mPending.hasRemaining() || mAppended.position() > 0);
+  }
+
+  /**
+   * Writes the rest of the frame left pending by the last write, if any, then the data appended.
+   * @return True if nothing is pending anymore
+   */
+  public synchronized boolean flush() throws IOException {
+    if (mChannel == null) return true;
+    if (mPending.hasRemaining()) {
+      mChannel.write(mPending);
+      // A frame is never interrupted, the packets would be cut
+      if (mPending.hasRemaining()) return false;
+    }
+    if (mAppended.position() > 0) {
+      mAppended.flip();
+      mChannel.write(mAppended);
+      mAppended.compact();
+    }
+    return mAppended.position() == 0;
+  }
+
+  private void notifyPending() {
+    Listener listener = mListener;
+    if (listener != null) listener.onPending(this);
+  }
+
+  /** Returns the number of writes refused because the connection could not keep up. */
+  public synchronized long getDroppedWrites() {
+    return mDropped;
+  }
+}
@@ -65,23 +65,10 @@ public class MediaCodecInputStream extends InputStream {
 
     try {
       if (mBuffer==null) {
-        while (!Thread.interrupted() && !mClosed) {
-          mIndex = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
-          if (mIndex>=0 ){
-            //Log.d(TAG,"Index: "+mIndex+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
-            mBuffer = mMediaCodec.getOutputBuffer(mIndex);
-            mBuffer.position(0);
-            break;
-          } else if (mIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-            Log.v(TAG,"Output buffers have changed...");
-          } else if (mIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            Log.i(TAG, "Output format has changed to: " + mMediaCodec.getOutputFormat().toString());
-          } else if (mIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-            Log.v(TAG,"No buffer available...");
-          } else {
-            Log.e(TAG,"Message: "+mIndex);
-            //return 0;
-          }
+        mIndex = dequeue();
+        if (mIndex>=0) {
+          mBuffer = mMediaCodec.getOutputBuffer(mIndex);
+          mBuffer.position(0);
         }
       }
 
@@ -102,6 +89,44 @@ public class MediaCodecInputStream extends InputStream {
     return min;
   }
 
+  /**
+   * Returns the next output buffer of the codec without copying it, it goes back to the
+   * codec once {@link CodecBuffer#release()} has been called for every reference on it.
+   * It must not be mixed with {@link #read(byte[], int, int)}.
+   * @return The buffer, or null if the stream was closed or the thread interrupted
+   */
+  public CodecBuffer readBuffer() {
+    try {
+      int index = dequeue();
+      if (index>=0) {
+        return new CodecBuffer(mMediaCodec, index, mMediaCodec.getOutputBuffer(index), mBufferInfo);
+      }
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+    return null;
+  }
+
+  /** Waits for an output buffer, returns its index or -1 if the stream was closed or the thread interrupted. */
+  private int dequeue() {
+    while (!Thread.interrupted() && !mClosed) {
+      int index = mMediaCodec.dequeueOutputBuffer(mBufferInfo, 500000);
+      if (index>=0 ){
+        //Log.d(TAG,"Index: "+index+" Time: "+mBufferInfo.presentationTimeUs+" size: "+mBufferInfo.size);
+        return index;
+      } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+        Log.v(TAG,"Output buffers have changed...");
+      } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+        Log.i(TAG, "Output format has changed to: " + mMediaCodec.getOutputFormat().toString());
+      } else if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+        Log.v(TAG,"No buffer available...");
+      } else {
+        Log.e(TAG,"Message: "+index);
+      }
+    }
+    return -1;
+  }
+
   public int available() {
     if (mBuffer != null)
       return mBufferInfo.size - mBuffer.position();
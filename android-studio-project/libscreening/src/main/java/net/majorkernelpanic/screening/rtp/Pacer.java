@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.screening.rtp;
+
+/**
+ * Paces the packets sent by an {@link RtpSocket} with a token bucket.
+ *
+ * The bucket is filled at a rate such that an average frame at the target bitrate
+ * is sent over a part (the spread) of the frame interval. When more data is queued,
+ * like a large IDR frame, the rate is raised so that the queue still drains within
+ * the same part of the frame interval. A frame thus never leaves as one burst, and
+ * never delays the next one.
+ *
+ * Pacing is disabled until {@link #configure(int, int)} is called with a bitrate.
+ */
+public class Pacer {
+
+  /** Default part of the frame interval over which a frame is spread. */
+  public static final float DEFAULT_SPREAD = 0.5f;
+
+  /** Default size of the bucket in bytes, a few packets can be sent back to back. */
+  public static final int DEFAULT_BURST_SIZE = 4*RtpSocket.MTU;
+
+  private volatile int mBitrate = 0, mFramerate = 0;
+  private volatile float mSpread = DEFAULT_SPREAD;
+  private volatile int mBurstSize = DEFAULT_BURST_SIZE;
+
+  // Only used by the sending thread
+  private long mTokens = 0, mLast = 0;
+
+  private volatile long mRate = 0;
+  private volatile long mQueueDelay = 0, mMaxQueueDelay = 0;
+
+  /**
+   * Sets the target bitrate and the frame rate of the stream.
+   * @param bitrate The bitrate in bit per second, 0 disables pacing
+   * @param framerate The frame rate in frame per second
+   */
+  public void configure(int bitrate, int framerate) {
+    mBitrate = bitrate;
+    mFramerate = framerate > 0 ? framerate : 1;
+  }
+
+  /**
+   * Sets the part of the frame interval over which the packets of a frame are spread.
+   * @param spread A value between 0 (exclusive) and 1
+   */
+  public void setSpread(float spread) {
+    if (spread <= 0 || spread > 1)
+      throw new IllegalArgumentException("The spread must be in ]0,1] !");
+    mSpread = spread;
+  }
+
+  /** Sets the number of bytes that can be sent back to back. */
+  public void setBurstSize(int bytes) {
+    mBurstSize = bytes;
+  }
+
+  /** Returns the number of bytes that can be sent back to back. */
+  public int getBurstSize() {
+    return mBurstSize;
+  }
+
+  /** Returns the pacing rate last applied in bit per second, 0 if pacing is disabled. */
+  public long getPacingRate() {
+    return mRate*8;
+  }
+
+  /** Returns the average time in ms spent by packets in the FIFO before being sent. */
+  public long getQueueDelay() {
+    return mQueueDelay/1000000;
+  }
+
+  /** Returns the maximum time in ms spent by a packet in the FIFO since the last reset. */
+  public long getMaxQueueDelay() {
+    return mMaxQueueDelay/1000000;
+  }
+
+  public void reset() {
+    mTokens = 0;
+    mLast = 0;
+    mQueueDelay = 0;
+    mMaxQueueDelay = 0;
+  }
+
+  /**
+   * Takes the tokens needed to send a packet.
+   * @param length The length of the packet
+   * @param queued The number of bytes waiting to be sent, this packet included
+   * @return The time in ns to wait before sending the packet
+   */
+  long reserve(int length, long queued) {
+    if (mBitrate <= 0) {
+      mRate = 0;
+      return 0;
+    }
+
+    long now = System.nanoTime();
+    long window = (long) (mSpread*1000000000L/mFramerate);
+    long rate = Math.max((long) (mBitrate/8/mSpread), queued*1000000000L/window);
+    mRate = rate;
+
+    if (mLast != 0) {
+      mTokens = Math.min(mBurstSize, mTokens + (now-mLast)*rate/1000000000L);
+    } else {
+      mTokens = mBurstSize;
+    }
+    mLast = now;
+
+    mTokens -= length;
+    return mTokens >= 0 ? 0 : -mTokens*1000000000L/rate;
+  }
+
+  /** Records the time spent in the FIFO by a packet that is being sent. */
+  void onSent(long queueDelay) {
+    mQueueDelay = (7*mQueueDelay + queueDelay)/8;
+    if (queueDelay > mMaxQueueDelay) mMaxQueueDelay = queueDelay;
+  }
+}
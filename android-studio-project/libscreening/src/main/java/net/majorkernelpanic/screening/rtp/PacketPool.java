@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.screening.rtp;
+
+import java.util.ArrayDeque;
+
+/**
+ * Process-wide pool of the packet buffers used by the FIFO of every {@link RtpSocket}.
+ *
+ * A socket leases a buffer the first time a slot of its FIFO is used, keeps it while
+ * it streams and gives all of them back when its stream stops. Buffers given back are
+ * kept for the next lease, and the number of buffers leased at the same time is capped:
+ * past the cap, a lease fails and the socket drops the packet.
+ */
+public class PacketPool {
+  public final static String TAG = "PacketPool";
+
+  /** Default maximum number of buffers leased at the same time. */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private static final ArrayDeque<byte[]> sFree = new ArrayDeque<byte[]>();
+  private static int sCapacity = DEFAULT_CAPACITY;
+  private static int sLeased = 0, sHighWaterMark = 0;
+  private static long sLeaseFailures = 0;
+
+  // Only static methods
+  private PacketPool() {}
+
+  /**
+   * Sets the maximum number of buffers leased at the same time, each one is {@link RtpSocket#MTU} bytes long.
+   * Buffers already leased are not reclaimed if the capacity is lowered.
+   */
+  public static synchronized void setCapacity(int capacity) {
+    sCapacity = capacity;
+    while (sFree.size() > 0 && sLeased + sFree.size() > capacity) {
+      sFree.poll();
+    }
+  }
+
+  /** Returns the maximum number of buffers leased at the same time. */
+  public static synchronized int getCapacity() {
+    return sCapacity;
+  }
+
+  /** Returns the number of buffers currently leased. */
+  public static synchronized int getLeasedCount() {
+    return sLeased;
+  }
+
+  /** Returns the maximum number of buffers leased at the same time since the last reset. */
+  public static synchronized int getHighWaterMark() {
+    return sHighWaterMark;
+  }
+
+  /** Returns the number of leases that failed because the pool was exhausted. */
+  public static synchronized long getLeaseFailures() {
+    return sLeaseFailures;
+  }
+
+  /** Resets the high-water mark and the lease failure count. */
+  public static synchronized void resetStatistics() {
+    sHighWaterMark = sLeased;
+    sLeaseFailures = 0;
+  }
+
+  /** Returns a buffer of {@link RtpSocket#MTU} bytes, or null if the pool is exhausted. */
+  static synchronized byte[] lease() {
+    if (sLeased >= sCapacity) {
+      sLeaseFailures++;
+      return null;
+    }
+    byte[] buffer = sFree.poll();
+    if (buffer == null) buffer = new byte[RtpSocket.MTU];
+    if (++sLeased > sHighWaterMark) sHighWaterMark = sLeased;
+    return buffer;
+  }
+
+  /** Gives a buffer obtained with {@link #lease()} back to the pool. */
+  static synchronized void giveBack(byte[] buffer) {
+    sLeased--;
+    if (sLeased + sFree.size() < sCapacity) sFree.push(buffer);
+  }
+}
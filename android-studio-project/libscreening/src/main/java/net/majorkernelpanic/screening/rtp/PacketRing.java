@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package net.majorkernelpanic.screening.rtp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring of slot indexes.
+ *
+ * The producer (the packetizer thread) claims a slot, fills it and commits it.
+ * Committed slots are only published to the consumer (the sender thread of the
+ * {@link RtpSocket}) at the end of a frame, or every {@link #BATCH_SIZE} packets,
+ * so a whole FU-A fragmented NAL unit is handed over at once. The consumer then
+ * drains every published slot without any synchronization. Threads are only
+ * parked and woken up when the ring is empty or full, and only after waiting
+ * {@link #SPINS} times for the other thread: busy on a multi-core CPU, by yielding
+ * to it on a single core, where parking costs more than a context switch.
+ */
+class PacketRing {
+
+  /** Maximum number of committed slots before they are published. */
+  public static final int BATCH_SIZE = 32;
+
+  /** Number of times a thread waits for the other one before parking. */
+  public static final int SPINS = 100;
+
+  private static final boolean MULTI_CORE = Runtime.getRuntime().availableProcessors() > 1;
+
+  private final int mCapacity;
+  private final int mMask;
+
+  // Written by the consumer, read by the producer
+  private final AtomicLong mHead = new AtomicLong();
+  // Written by the producer, read by the consumer
+  private final AtomicLong mTail = new AtomicLong();
+
+  // Producer side only
+  private long mWrite = 0;
+  // Consumer side only
+  private long mRead = 0;
+
+  private volatile Thread mWaitingProducer = null;
+  private volatile Thread mWaitingConsumer = null;
+  private volatile boolean mWokenUp = false;
+
+  /** @param capacity The number of slots, must be a power of two. */
+  public PacketRing(int capacity) {
+    if (Integer.bitCount(capacity) != 1)
+      throw new IllegalArgumentException("The capacity must be a power of two !");
+    mCapacity = capacity;
+    mMask = capacity-1;
+  }
+
+  public int getCapacity() {
+    return mCapacity;
+  }
+
+  /**
+   * Returns the index of the slot the producer should fill next.
+   * Calling it again before {@link #commit(boolean)} returns the same slot.
+   * @param block Whether to wait for the consumer when the ring is full
+   * @return The slot index, or -1 if the ring is full and block is false
+   */
+  public int claim(boolean block) throws InterruptedException {
+    while (mWrite - mHead.get() >= mCapacity) {
+      if (!block) return -1;
+      // The consumer can only free slots that have been published
+      flush();
+      if (spin(true)) break;
+      mWaitingProducer = Thread.currentThread();
+      if (mWrite - mHead.get() >= mCapacity) {
+        LockSupport.parkNanos(this, 1000000L);
+      }
+      mWaitingProducer = null;
+      if (Thread.interrupted()) throw new InterruptedException();
+    }
+    return (int) (mWrite & mMask);
+  }
+
+  /**
+   * Hands the claimed slot over to the consumer.
+   * @param endOfFrame If true, every committed slot is published right away
+   */
+  public void commit(boolean endOfFrame) {
+    mWrite++;
+    if (endOfFrame || mWrite - mTail.get() >= BATCH_SIZE) {
+      flush();
+    }
+  }
+
+  /** Publishes all committed slots. */
+  public void flush() {
+    if (mTail.get() == mWrite) return;
+    // A full barrier here, so that a consumer about to park cannot miss the new slots
+    mTail.set(mWrite);
+    Thread consumer = mWaitingConsumer;
+    if (consumer != null) LockSupport.unpark(consumer);
+  }
+
+  /**
+   * Waits until some slots are published.
+   * @param timeout The maximum time to wait in ns
+   * @return The number of slots that can be consumed, 0 on timeout
+   */
+  public int await(long timeout) throws InterruptedException {
+    long available = mTail.get() - mRead;
+    if (available > 0) return (int) available;
+    if (spin(false)) return (int) (mTail.get() - mRead);
+
+    long deadline = System.nanoTime() + timeout;
+    mWaitingConsumer = Thread.currentThread();
+    try {
+      while ((available = mTail.get() - mRead) <= 0) {
+        if (mWokenUp) return 0;
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) return 0;
+        LockSupport.parkNanos(this, remaining);
+        if (Thread.interrupted()) throw new InterruptedException();
+      }
+    } finally {
+      mWaitingConsumer = null;
+    }
+    return (int) available;
+  }
+
+  /**
+   * Waits a little for the other thread before parking.
+   * @param producer Whether the producer waits for a free slot, or the consumer for a published one
+   * @return True if the wait is over, the consumer also stops waiting once woken up
+   */
+  private boolean spin(boolean producer) {
+    for (int i=0; i<SPINS; i++) {
+      if (producer ? mWrite - mHead.get() < mCapacity : mTail.get() - mRead > 0 || mWokenUp) return true;
+      if (!MULTI_CORE) Thread.yield();
+    }
+    return false;
+  }
+
+  /**
+   * Makes the consumer return from {@link #await(long)} as on a timeout, now or
+   * on its next call, until the ring is cleared. The thread is not interrupted.
+   */
+  public void wakeUp() {
+    mWokenUp = true;
+    Thread consumer = mWaitingConsumer;
+    if (consumer != null) LockSupport.unpark(consumer);
+  }
+
+  /** Returns the index of the next slot to consume. */
+  public int peek() {
+    return (int) (mRead & mMask);
+  }
+
+  /** Gives the slot returned by {@link #peek()} back to the producer. */
+  public void release() {
+    // A full barrier here, so that a producer about to park cannot miss the free slot
+    mHead.set(++mRead);
+    Thread producer = mWaitingProducer;
+    if (producer != null) {
+      // Woken up once rather than for every slot released, the permit is kept if it is not parked yet
+      mWaitingProducer = null;
+      LockSupport.unpark(producer);
+    }
+  }
+
+  /** Empties the ring, neither the producer nor the consumer may be using it. */
+  public void clear() {
+    mWrite = 0;
+    mRead = 0;
+    mHead.set(0);
+    mTail.set(0);
+    mWokenUp = false;
+  }
+
+  /** Returns the number of slots committed by the producer and not yet consumed. */
+  public int size() {
+    return (int) (mTail.get() - mHead.get());
+  }
+}
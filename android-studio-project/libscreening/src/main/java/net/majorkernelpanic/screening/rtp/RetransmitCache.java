@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps a copy of the last packets sent by an {@link RtpSocket}, so that the packets
+ * a receiver reports lost with a generic NACK (RFC 4585, section 6.2.1) can be sent again.
+ *
+ * Packets are stored by sequence number in a ring of {@link #DEFAULT_CAPACITY} entries,
+ * a packet being overwritten by the one sent {@link #DEFAULT_CAPACITY} packets later.
+ * Packets older than {@link #setMaxAge(int)} ms are not sent again, the receiver
+ * would have given up on them already.
+ */
+public class RetransmitCache {
+
+  /** Default number of packets kept, must be a power of two. */
+  public static final int DEFAULT_CAPACITY = 256;
+
+  /** Default time in ms after which a packet is not sent again. */
+  public static final int DEFAULT_MAX_AGE = 1000;
+
+  private final int mMask;
+  private final byte[][] mPackets;
+  private final int[] mLengths;
+  private final int[] mSequences;
+  private final long[] mTimes;
+  private volatile long mMaxAge = DEFAULT_MAX_AGE*1000000L;
+
+  private long mHits = 0, mMisses = 0, mBytes = 0;
+
+  public RetransmitCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /** @param capacity The number of packets kept, must be a power of two. */
+  public RetransmitCache(int capacity) {
+    if (Integer.bitCount(capacity) != 1)
+      throw new IllegalArgumentException("The capacity must be a power of two !");
+    mMask = capacity-1;
+    mPackets = new byte[capacity][];
+    mLengths = new int[capacity];
+    mSequences = new int[capacity];
+    mTimes = new long[capacity];
+    Arrays.fill(mSequences, -1);
+  }
+
+  /** Sets the time in ms after which a packet is not sent again. */
+  public void setMaxAge(int maxAge) {
+    mMaxAge = maxAge*1000000L;
+  }
+
+  /**
+   * Keeps a copy of a packet that was just sent.
+   * @param buffer The packet, or its header if the payload is not inline
+   * @param inline The number of bytes of the packet in the buffer
+   * @param payload The rest of the packet, or null
+   * @param length The length of the packet
+   */
+  synchronized void put(byte[] buffer, int inline, ByteBuffer payload, int length) {
+    int sequence = (buffer[2]&0xFF)<<8 | (buffer[3]&0xFF);
+    int index = sequence & mMask;
+    byte[] packet = mPackets[index];
+    if (packet == null) packet = mPackets[index] = new byte[RtpSocket.MTU];
+    System.arraycopy(buffer, 0, packet, 0, inline);
+    if (payload != null) payload.duplicate().get(packet, inline, length-inline);
+    mLengths[index] = length;
+    mSequences[index] = sequence;
+    mTimes[index] = System.nanoTime();
+  }
+
+  /**
+   * Copies a packet that was sent not long ago.
+   * @param sequence The sequence number of the packet
+   * @param buffer A buffer of at least {@link RtpSocket#MTU} bytes
+   * @return The length of the packet, or -1 if it is not in the cache anymore
+   */
+  synchronized int get(int sequence, byte[] buffer) {
+    int index = sequence & mMask;
+    if (mSequences[index] != sequence || System.nanoTime()-mTimes[index] > mMaxAge) {
+      mMisses++;
+      return -1;
+    }
+    int length = mLengths[index];
+    System.arraycopy(mPackets[index], 0, buffer, 0, length);
+    mHits++;
+    mBytes += length;
+    return length;
+  }
+
+  /** Returns the number of lost packets that were sent again. */
+  public synchronized long getHitCount() {
+    return mHits;
+  }
+
+  /** Returns the number of lost packets that were not in the cache anymore. */
+  public synchronized long getMissCount() {
+    return mMisses;
+  }
+
+  /** Returns the number of bytes sent again. */
+  public synchronized long getRetransmittedBytes() {
+    return mBytes;
+  }
+}
@@ -20,6 +20,7 @@
 
 package net.majorkernelpanic.screening.rtp;
 
+import net.majorkernelpanic.screening.rtcp.RtcpReceiver;
 import net.majorkernelpanic.screening.rtcp.SenderReport;
 
 import android.os.SystemClock;
@@ -29,15 +30,40 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.NotYetConnectedException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A basic implementation of an RTP socket.
  * It implements a buffering mechanism, relying on a FIFO of buffers and a Thread.
  * That way, if a packetizer tries to send many packets too quickly, the FIFO will
  * grow and packets will be sent one by one smoothly.
+ * The FIFO is a lock-free {@link PacketRing}, packets are handed over to the
+ * sending thread frame by frame.
+ *
+ * Unicast packets are sent with a connected {@link DatagramChannel}: the header and
+ * the payload of a packet are written from direct buffers with a single gather write,
+ * and the payload can be a view on the output buffer of an encoder, see
+ * {@link #commitBuffer(int, ByteBuffer)}. A {@link MulticastSocket} is only opened
+ * for multicast destinations.
+ *
+ * A socket can also act as the source of a broadcast: every packet committed to it
+ * is then copied to the sockets added with {@link #addSink(RtpSocket)}. Each sink
+ * keeps its own SSRC, sequence numbers and {@link SenderReport}.
+ *
+ * A socket of a video stream can wait for a key frame before sending anything,
+ * see {@link #setStartOnKeyFrame(boolean)}, so that players never receive a
+ * stream starting in the middle of a frame.
  */
 public class RtpSocket implements Runnable {
   public static final String TAG = "RtpSocket";
@@ -51,95 +77,258 @@ public class RtpSocket implements Runnable {
   public static final int RTP_HEADER_LENGTH = 12;
   public static final int MTU = 1300;
 
-  private MulticastSocket mSocket;
-  private DatagramPacket[] mPackets;
+  /** Payload type of the media packets. */
+  public static final int PAYLOAD_TYPE = 96;
+
+  /** Default maximum time in ms a packet may wait between its capture and its sending. */
+  public static final int DEFAULT_LATENCY_BUDGET = 500;
+
+  /** Reason of a drop: the FIFO was full when the packet was committed. */
+  public static final int DROP_QUEUE_FULL = 0;
+
+  /** Reason of a drop: a frame not used as a reference by other frames missed its deadline. */
+  public static final int DROP_LATE_NON_REFERENCE = 1;
+
+  /** Reason of a drop: a reference frame missed its deadline, frames are dropped up to the next key frame. */
+  public static final int DROP_LATE_REFERENCE = 2;
+
+  /** Reason of a drop: the TCP connection the packets are interleaved in could not keep up. */
+  public static final int DROP_CONNECTION_FULL = 3;
+
+  private DatagramChannel mChannel;
+  private ByteBuffer mStaging;
+  private final ByteBuffer[] mGather = new ByteBuffer[2];
+
+  private MulticastSocket mSocket = null;
+  private boolean mMulticast = false;
+  private int mTTL = 64;
+
+  private DatagramPacket mPacket = null;
   private byte[][] mBuffers;
+  private int[] mLengths;
+  private ByteBuffer[] mPayloads;
+  // The codec buffers the payloads are slices of, released once the packets are sent
+  private CodecBuffer[] mOwners;
+  private int[] mHeaderLengths;
   private long[] mTimestamps;
+  private long[] mCommitTimes;
+  private boolean[] mKeyFrames;
+  private boolean[] mNonReference;
 
   private SenderReport mReport;
+  private RtcpReceiver mReceiver;
+  private volatile boolean mRetransmission = false;
+  private volatile RetransmitCache mRetransmitCache = null;
+  // Only used by the thread of the receiver
+  private byte[] mRetransmitBuffer = null;
+  private volatile FecEncoder mFec = null;
+  // FEC packets have a port, an SSRC and sequence numbers of their own (RFC 5109, section 14.1)
+  private volatile DatagramChannel mFecChannel = null;
+  private volatile int mFecPort = 0;
+  private final int mFecSsrc = new Random().nextInt();
+  private int mFecSeq = 0;
+  private boolean[] mFecPackets;
 
-  private Semaphore mBufferRequested, mBufferCommitted;
-  private Thread mThread;
+  private PacketRing mRing;
+  private volatile Thread mThread;
+  // Set while the sending thread is being stopped, it is never interrupted
+  private volatile boolean mStopping = false;
+  // Held while packets are forwarded to the socket, and while its buffers are released
+  private final Object mLeaseLock = new Object();
 
   private int mTransport;
   private long mCacheSize;
   private long mClock = 0;
-  private long mOldTimestamp = 0;
+  private Timebase mTimebase = Timebase.getDefault();
+  private final long mRtpOffset = new Random().nextInt() & 0xFFFFFFFFL;
   private int mSsrc, mSeq = 0, mPort = -1;
-  private int mBufferCount, mBufferIn, mBufferOut;
-  private int mCount = 0;
-  private byte mTcpHeader[];
-  protected OutputStream mOutputStream = null;
+  private int mBufferCount, mBufferIn;
+  private boolean mKeyFrame = false, mNonRef = false;
+  private InterleavedWriter mWriter = null;
+  private byte mChannelIdentifier;
+  // Packets of the frame being sent over TCP, and whether the frame is being dropped
+  private byte[] mTcpFrame = null;
+  private int mTcpLength = 0;
+  private boolean mTcpDropping = false;
 
   private AverageBitrate mAverageBitrate;
+  private Pacer mPacer;
+
+  private final CopyOnWriteArrayList<RtpSocket> mSinks = new CopyOnWriteArrayList<RtpSocket>();
+  private RtpSocket mSource = null;
+
+  private boolean mStartOnKeyFrame = false;
+  private volatile boolean mWaitingForKeyFrame = false;
+  private volatile long mGateClosedAt = 0, mTimeToFirstFrame = -1;
+  private SyncFrameListener mSyncFrameListener = null;
+
+  private volatile long mLatencyBudget = DEFAULT_LATENCY_BUDGET*1000000L;
+  private volatile boolean mCaptureClock = false;
+  private final AtomicLongArray mDroppedFrames = new AtomicLongArray(4);
+  // Timestamp of the last frame dropped by the producer, and by the sending thread
+  private long mDroppedIn = -1, mDroppedOut = -1;
+  private boolean mSkipToKeyFrame = false;
+
+  /** Implemented by encoders able to produce a key frame on demand. */
+  public interface SyncFrameListener {
+    /** Called when the socket needs a key frame to start sending. */
+    public void onSyncFrameRequested();
+  }
 
   /**
    * This RTP socket implements a buffering mechanism relying on a FIFO of buffers and a Thread.
+   * The FIFO never blocks the packetizer: when it is full, or when packets wait longer than
+   * the latency budget, whole frames are dropped instead (see {@link #getDroppedFrames(int)}).
+   * The buffers of the FIFO are leased from the {@link PacketPool} as they are first needed.
    * @throws IOException
    */
   public RtpSocket() {
     mCacheSize = 0;
-    mBufferCount = 300; // TODO: readjust that when the FIFO is full
-    mBuffers = new byte[mBufferCount][];
-    mPackets = new DatagramPacket[mBufferCount];
+    mBufferCount = 256;
+    mRing = new PacketRing(mBufferCount);
+    // One more buffer, filled by the packetizer and then discarded while the FIFO is full
+    int slots = mBufferCount+1;
+    mBuffers = new byte[slots][];
+    mLengths = new int[slots];
+    mPayloads = new ByteBuffer[slots];
+    mOwners = new CodecBuffer[slots];
+    mHeaderLengths = new int[slots];
+    mTimestamps = new long[slots];
     mReport = new SenderReport();
+    mReceiver = new RtcpReceiver(mReport.getSocket());
+    mReceiver.setFeedbackListener(new RtcpReceiver.FeedbackListener() {
+      @Override
+      public void onNack(RtcpReceiver receiver, int ssrc, int sequence) {
+        if (ssrc == mSsrc) retransmit(sequence);
+      }
+
+      @Override
+      public void onPictureLoss(RtcpReceiver receiver, int ssrc) {
+        if (ssrc == mSsrc) requestSyncFrame();
+      }
+    });
     mAverageBitrate = new AverageBitrate();
+    mPacer = new Pacer();
+    mCommitTimes = new long[slots];
+    mKeyFrames = new boolean[slots];
+    mNonReference = new boolean[slots];
+    mFecPackets = new boolean[slots];
     mTransport = TRANSPORT_UDP;
-    mTcpHeader = new byte[] {'$',0,0,0};
 
     resetFifo();
 
-    for (int i=0; i<mBufferCount; i++) {
-      mBuffers[i] = new byte[MTU];
-      mPackets[i] = new DatagramPacket(mBuffers[i], 1);
-
-      /*                                        Version(2)  Padding(0)                               */
-      /*                                        ^           ^          Extension(0)                  */
-      /*                                        |           |          ^                             */
-      /*                                        | -----------          |                             */
-      /*                                        | |---------------------                             */
-      /*                                        | ||  -----------------------> Source Identifier(0)  */
-      /*                                        | ||  |                                              */
-      mBuffers[i][0] = (byte) Integer.parseInt("10000000",2);
-
-      /* Payload Type */
-      mBuffers[i][1] = (byte) 96;
-
-      /* Byte 2,3        ->  Sequence Number         */
-      /* Byte 4,5,6,7    ->  Timestamp               */
-      /* Byte 8,9,10,11  ->  Sync Source Identifier  */
-    }
+    mBuffers[mBufferCount] = new byte[MTU];
+    initHeader(mBuffers[mBufferCount]);
 
     try {
-      mSocket = new MulticastSocket();
+      mChannel = DatagramChannel.open();
+      mChannel.socket().bind(null);
     } catch (Exception e) {
       throw new RuntimeException(e.getMessage());
     }
+    mStaging = ByteBuffer.allocateDirect(MTU);
+  }
+
+  private void initHeader(byte[] buffer) {
+    /*                                        Version(2)  Padding(0)                               */
+    /*                                        ^           ^          Extension(0)                  */
+    /*                                        |           |          ^                             */
+    /*                                        | -----------          |                             */
+    /*                                        | |---------------------                             */
+    /*                                        | ||  -----------------------> Source Identifier(0)  */
+    /*                                        | ||  |                                              */
+    buffer[0] = (byte) Integer.parseInt("10000000",2);
+
+    /* Payload Type */
+    buffer[1] = (byte) PAYLOAD_TYPE;
+
+    /* Byte 2,3        ->  Sequence Number         */
+    /* Byte 4,5,6,7    ->  Timestamp               */
+    /* Byte 8,9,10,11  ->  Sync Source Identifier  */
+    setLong(buffer, mSsrc, 8, 12);
+  }
+
+  /**
+   * Leases the buffer of a slot of the FIFO from the {@link PacketPool} if it has none yet.
+   * @return False if the pool is exhausted
+   */
+  private boolean lease(int slot) {
+    if (mBuffers[slot] != null) return true;
+    byte[] buffer = PacketPool.lease();
+    if (buffer == null) return false;
+    initHeader(buffer);
+    mBuffers[slot] = buffer;
+    return true;
+  }
+
+  /**
+   * Stops the sending thread and gives the buffers of the FIFO back to the {@link PacketPool}.
+   * Packets not sent yet are dropped. It must be called once the packetizer is stopped,
+   * buffers are leased again if the socket is used afterwards.
+   */
+  public void releaseBuffers() {
+    synchronized (mLeaseLock) {
+      Thread thread = mThread;
+      if (thread != null) {
+        // An interrupted write would close the channel, and over TCP the RTSP connection
+        mStopping = true;
+        mRing.wakeUp();
+        LockSupport.unpark(thread);
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } finally {
+          mStopping = false;
+        }
+      }
+      int released = 0;
+      for (int i=0; i<mBufferCount; i++) {
+        if (mBuffers[i] != null) {
+          PacketPool.giveBack(mBuffers[i]);
+          mBuffers[i] = null;
+          released++;
+        }
+        releasePayload(i);
+      }
+      // Neither the packetizer nor the sending thread use the FIFO anymore
+      mRing.clear();
+      mDroppedIn = -1;
+      resetFifo();
+      if (released > 0) Log.d(TAG, "SSRC "+Integer.toHexString(mSsrc)+": "+released+" buffers released");
+    }
   }
 
   private void resetFifo() {
-    mCount = 0;
-    mBufferIn = 0;
-    mBufferOut = 0;
-    mTimestamps = new long[mBufferCount];
-    mBufferRequested = new Semaphore(mBufferCount);
-    mBufferCommitted = new Semaphore(0);
+    mTcpLength = 0;
+    mTcpDropping = false;
+    mDroppedOut = -1;
+    mSkipToKeyFrame = false;
     mReport.reset();
     mAverageBitrate.reset();
+    mPacer.reset();
   }
 
-  /** Closes the underlying socket. */
+  /** Closes the underlying sockets. */
   public void close() {
-    mSocket.close();
+    mReceiver.stop();
+    mReport.close();
+    try {
+      mChannel.close();
+      if (mFecChannel != null) mFecChannel.close();
+    } catch (IOException ignore) {}
+    if (mSocket != null) mSocket.close();
   }
 
   /** Sets the SSRC of the stream. */
   public void setSSRC(int ssrc) {
     this.mSsrc = ssrc;
-    for (int i=0;i<mBufferCount;i++) {
-      setLong(mBuffers[i], ssrc,8,12);
+    for (int i=0;i<mBuffers.length;i++) {
+      if (mBuffers[i] != null) setLong(mBuffers[i], ssrc,8,12);
     }
     mReport.setSSRC(mSsrc);
+    mReceiver.setSource(mSsrc);
   }
 
   /** Returns the SSRC of the stream. */
@@ -150,6 +339,102 @@ public class RtpSocket implements Runnable {
   /** Sets the clock frequency of the stream in Hz. */
   public void setClockFrequency(long clock) {
     mClock = clock;
+    mReceiver.setClockRate(clock);
+    mReport.setTimebase(mTimebase, mClock, mRtpOffset);
+  }
+
+  /**
+   * Sets the timebase the RTP timestamps are computed with, the streams of a
+   * session share one. Must not be called while packets are being committed.
+   */
+  public void setTimebase(Timebase timebase) {
+    mTimebase = timebase;
+    mReport.setTimebase(mTimebase, mClock, mRtpOffset);
+  }
+
+  public Timebase getTimebase() {
+    return mTimebase;
+  }
+
+  /**
+   * Returns the receiver of the RTCP packets sent back by the client. It reads the
+   * socket of the sender reports once started, or is handed over the interleaved packets.
+   */
+  public RtcpReceiver getRtcpReceiver() {
+    return mReceiver;
+  }
+
+  /**
+   * If set, the packets sent over unicast UDP are kept for a while in a {@link RetransmitCache},
+   * and sent again when the receiver reports them lost with a generic NACK.
+   */
+  public void setRetransmission(boolean retransmission) {
+    mRetransmission = retransmission;
+  }
+
+  /** Returns the cache of the packets that may be sent again, null if none was sent yet. */
+  public RetransmitCache getRetransmitCache() {
+    return mRetransmitCache;
+  }
+
+  /**
+   * Protects the packets sent over UDP with the XOR parity packets of RFC 5109,
+   * see {@link FecEncoder}. They are only sent once the receiver has set a port up for them
+   * with {@link #setFecDestination(InetAddress, int)}. The packets forwarded to sinks are
+   * protected by each sink.
+   * @param fec The FEC encoder, null to disable FEC
+   */
+  public void setFecEncoder(FecEncoder fec) {
+    mFec = fec;
+  }
+
+  /** Returns the FEC encoder of the socket, or null. */
+  public FecEncoder getFecEncoder() {
+    return mFec;
+  }
+
+  /**
+   * Sets the port to which the FEC packets are sent, at the address of the RTP packets.
+   * They are only sent over unicast UDP, to a receiver that has set a port up for them.
+   * @param dest The destination address of the stream
+   * @param port The destination port of the FEC packets, 0 to stop sending them
+   */
+  public void setFecDestination(InetAddress dest, int port) {
+    if (port <= 0 || dest == null || dest.isMulticastAddress()) {
+      mFecPort = 0;
+      return;
+    }
+    try {
+      DatagramChannel channel = openFecChannel();
+      if (channel.isConnected()) channel.disconnect();
+      channel.connect(new InetSocketAddress(dest, port));
+    } catch (IOException e) {
+      throw new RuntimeException(e.getMessage());
+    }
+    mFecPort = port;
+  }
+
+  /** Returns the SSRC of the FEC packets. */
+  public int getFecSSRC() {
+    return mFecSsrc;
+  }
+
+  /** Returns the local port from which the FEC packets are sent. */
+  public int getFecLocalPort() {
+    try {
+      return openFecChannel().socket().getLocalPort();
+    } catch (IOException e) {
+      throw new RuntimeException(e.getMessage());
+    }
+  }
+
+  private synchronized DatagramChannel openFecChannel() throws IOException {
+    if (mFecChannel == null) {
+      DatagramChannel channel = DatagramChannel.open();
+      channel.socket().bind(null);
+      mFecChannel = channel;
+    }
+    return mFecChannel;
   }
 
   /** Sets the size of the FIFO in ms. */
@@ -157,9 +442,100 @@ public class RtpSocket implements Runnable {
     mCacheSize = cacheSize;
   }
 
+  /**
+   * If set, packets are dropped until the first packet of a key frame is committed,
+   * see {@link #markKeyFrame()} and {@link #waitForKeyFrame()}.
+   */
+  public void setStartOnKeyFrame(boolean startOnKeyFrame) {
+    mStartOnKeyFrame = startOnKeyFrame;
+    mWaitingForKeyFrame = startOnKeyFrame;
+  }
+
+  /** Sets the listener that will be asked for a key frame when the socket needs one. */
+  public void setSyncFrameListener(SyncFrameListener listener) {
+    mSyncFrameListener = listener;
+  }
+
+  /**
+   * Drops packets until the next key frame and asks the encoder for one.
+   * Does nothing unless {@link #setStartOnKeyFrame(boolean)} was called.
+   */
+  public void waitForKeyFrame() {
+    if (!mStartOnKeyFrame) return;
+    mGateClosedAt = System.nanoTime();
+    mWaitingForKeyFrame = true;
+    requestSyncFrame();
+  }
+
+  /** Asks the encoder feeding the socket, or the source of the broadcast, for a key frame. */
+  public void requestSyncFrame() {
+    SyncFrameListener listener = mSyncFrameListener;
+    RtpSocket source = mSource;
+    if (listener != null) {
+      listener.onSyncFrameRequested();
+    } else if (source != null) {
+      source.requestSyncFrame();
+    }
+  }
+
+  /**
+   * Returns the time in ms between the last call to {@link #waitForKeyFrame()} and the
+   * moment the first key frame was handed over to the network, -1 if none was sent yet.
+   */
+  public long getTimeToFirstFrame() {
+    return mTimeToFirstFrame;
+  }
+
+  /**
+   * Sets the maximum time a packet may wait between its capture and its sending.
+   * Late frames are dropped: frames not used as a reference alone, otherwise every
+   * frame up to the next key frame, which is requested from the encoder.
+   * @param budget The budget in ms, 0 disables deadlines
+   */
+  public void setLatencyBudget(int budget) {
+    mLatencyBudget = budget*1000000L;
+  }
+
+  /** Returns the latency budget in ms. */
+  public int getLatencyBudget() {
+    return (int) (mLatencyBudget/1000000L);
+  }
+
+  /**
+   * Indicates whether the timestamps passed to {@link #updateTimestamp(long)} are capture
+   * times given by {@link System#nanoTime()}, like the presentation times of a MediaCodec.
+   * If they are not, the deadline of a packet is computed from the time it is committed.
+   */
+  public void setCaptureClock(boolean captureClock) {
+    mCaptureClock = captureClock;
+  }
+
+  /**
+   * Returns the number of frames dropped for a reason.
+   * @param reason One of {@link #DROP_QUEUE_FULL}, {@link #DROP_LATE_NON_REFERENCE},
+   *        {@link #DROP_LATE_REFERENCE} or {@link #DROP_CONNECTION_FULL}
+   */
+  public long getDroppedFrames(int reason) {
+    return mDroppedFrames.get(reason);
+  }
+
+  /** Returns the number of frames dropped for any reason. */
+  public long getDroppedFrames() {
+    return mDroppedFrames.get(DROP_QUEUE_FULL)
+        + mDroppedFrames.get(DROP_LATE_NON_REFERENCE)
+        + mDroppedFrames.get(DROP_LATE_REFERENCE)
+        + mDroppedFrames.get(DROP_CONNECTION_FULL);
+  }
+
+  /** Returns the pacer of the socket, it must be configured for packets to be paced. */
+  public Pacer getPacer() {
+    return mPacer;
+  }
+
   /** Sets the Time To Live of the UDP packets. */
   public void setTimeToLive(int ttl) throws IOException {
-    mSocket.setTimeToLive(ttl);
+    mTTL = ttl;
+    if (mSocket != null) mSocket.setTimeToLive(ttl);
   }
 
   /** Sets the destination address and to which the packets will be sent. */
@@ -167,9 +543,22 @@ public class RtpSocket implements Runnable {
     if (dport != 0 && rtcpPort != 0) {
       mTransport = TRANSPORT_UDP;
       mPort = dport;
-      for (int i=0;i<mBufferCount;i++) {
-        mPackets[i].setPort(dport);
-        mPackets[i].setAddress(dest);
+      mMulticast = dest.isMulticastAddress();
+      try {
+        if (mMulticast) {
+          if (mSocket == null) {
+            mSocket = new MulticastSocket();
+            mSocket.setTimeToLive(mTTL);
+          }
+          if (mPacket == null) mPacket = new DatagramPacket(mBuffers[mBufferCount], 1);
+          mPacket.setPort(dport);
+          mPacket.setAddress(dest);
+        } else {
+          if (mChannel.isConnected()) mChannel.disconnect();
+          mChannel.connect(new InetSocketAddress(dest, dport));
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e.getMessage());
       }
       mReport.setDestination(dest, rtcpPort);
     }
@@ -182,10 +571,20 @@ public class RtpSocket implements Runnable {
    */
   public void setOutputStream(OutputStream outputStream, byte channelIdentifier) {
     if (outputStream != null) {
+      setInterleavedWriter(new InterleavedWriter(outputStream), channelIdentifier);
+    }
+  }
+
+  /**
+   * Same as {@link #setOutputStream(OutputStream, byte)}, the writer should be
+   * shared by every socket sending packets over the same connection.
+   */
+  public void setInterleavedWriter(InterleavedWriter writer, byte channelIdentifier) {
+    if (writer != null) {
       mTransport = TRANSPORT_TCP;
-      mOutputStream = outputStream;
-      mTcpHeader[1] = channelIdentifier;
-      mReport.setOutputStream(outputStream, (byte) (channelIdentifier+1));
+      mWriter = writer;
+      mChannelIdentifier = channelIdentifier;
+      mReport.setInterleavedWriter(writer, (byte) (channelIdentifier+1));
     }
   }
 
@@ -193,49 +592,271 @@ public class RtpSocket implements Runnable {
     return mPort;
   }
 
+  /**
+   * Adds a socket to which every packet committed to this one will be forwarded.
+   * Packets are copied, the sink rewrites the SSRC and the sequence number.
+   */
+  public void addSink(RtpSocket sink) {
+    sink.mSource = this;
+    if (mSinks.addIfAbsent(sink)) {
+      // The sink will only start sending with a key frame
+      sink.requestSyncFrame();
+    }
+  }
+
+  /** Stops forwarding packets to the sink. */
+  public void removeSink(RtpSocket sink) {
+    mSinks.remove(sink);
+    sink.mSource = null;
+  }
+
+  /** Returns the number of sockets packets are currently forwarded to. */
+  public int getSinkCount() {
+    return mSinks.size();
+  }
+
+  /** Returns the sockets packets are currently forwarded to. */
+  public List<RtpSocket> getSinks() {
+    return Collections.unmodifiableList(mSinks);
+  }
+
   public int[] getLocalPorts() {
     return new int[] {
-      mSocket.getLocalPort(),
+      mMulticast ? mSocket.getLocalPort() : mChannel.socket().getLocalPort(),
       mReport.getLocalPort()
     };
   }
 
   /**
    * Returns an available buffer from the FIFO, it can then be modified.
-   * Call {@link #commitBuffer(int)} to send it over the network.
+   * Call {@link #commitBuffer(int)} to send it over the network, a buffer that
+   * is not committed is returned again by the next call.
+   * This never blocks: if the FIFO is full, the packet will be dropped when committed.
    * @throws InterruptedException
    **/
   public byte[] requestBuffer() throws InterruptedException {
-    mBufferRequested.acquire();
-    mBuffers[mBufferIn][1] &= 0x7F;
+    mBufferIn = mRing.claim(false);
+    if (mBufferIn < 0 || !lease(mBufferIn)) mBufferIn = mBufferCount;
+    // No marker, and the buffer may have carried an FEC packet
+    mBuffers[mBufferIn][1] = (byte) PAYLOAD_TYPE;
+    mKeyFrame = false;
+    mNonRef = false;
     return mBuffers[mBufferIn];
   }
 
-  /** Puts the buffer back into the FIFO without sending the packet. */
-  public void commitBuffer() throws IOException {
-    if (mThread == null) {
-      mThread = new Thread(this);
-      mThread.start();
-    }
+  /** Marks the next packet as the first packet of a key frame. */
+  public void markKeyFrame() {
+    mKeyFrame = true;
+  }
 
-    if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-    mBufferCommitted.release();
+  /** Marks the next packet as part of a frame no other frame depends on, it may be dropped alone. */
+  public void markNonReference() {
+    mNonRef = true;
   }
 
-  /** Sends the RTP packet over the network. */
+  /**
+   * Sends the RTP packet over the network.
+   * Packets are handed over to the sending thread when the marker bit is set
+   * (the end of a frame) or by batches of {@link PacketRing#BATCH_SIZE}.
+   */
   public void commitBuffer(int length) throws IOException {
+    mPayloads[mBufferIn] = null;
+    commit(length, System.nanoTime());
+  }
+
+  /**
+   * Sends an RTP packet whose payload is not copied in the buffer returned by {@link #requestBuffer()}.
+   * The packet is made of the first headerLength bytes of that buffer followed by the
+   * remaining bytes of the payload, the payload must not be modified until the packet is sent.
+   * @param headerLength The length of the RTP header and of the payload header in the buffer
+   * @param payload The payload, between its position and its limit
+   */
+  public void commitBuffer(int headerLength, ByteBuffer payload) throws IOException {
+    commitBuffer(headerLength, payload, null);
+  }
+
+  /**
+   * Sends an RTP packet whose payload is a slice of a codec buffer, see {@link #commitBuffer(int, ByteBuffer)}.
+   * A reference on the codec buffer is held until the packet is sent or dropped.
+   * @param owner The codec buffer the payload is a slice of
+   */
+  public void commitBuffer(int headerLength, ByteBuffer payload, CodecBuffer owner) throws IOException {
+    int slot = mBufferIn;
+    mPayloads[slot] = payload;
+    mHeaderLengths[slot] = headerLength;
+    if (owner != null) {
+      // Taken before the slot is published, the sending thread may release it right away
+      owner.retain();
+      mOwners[slot] = owner;
+    }
+    if (!commit(headerLength + payload.remaining(), System.nanoTime())) {
+      releasePayload(slot);
+    }
+  }
+
+  /** Returns false if the packet was dropped rather than queued. */
+  private boolean commit(int length, long commitTime) throws IOException {
+    if (mBufferIn == mBufferCount) {
+      onQueueFull();
+      return false;
+    }
+    if (mTimestamps[mBufferIn] == mDroppedIn) {
+      // The rest of a frame partly dropped
+      return false;
+    }
+    if (mWaitingForKeyFrame) {
+      // The packet is dropped and its buffer reused
+      if (!mKeyFrame) return false;
+      mWaitingForKeyFrame = false;
+      if (mGateClosedAt != 0) {
+        mTimeToFirstFrame = (System.nanoTime()-mGateClosedAt)/1000000;
+        Log.i(TAG, "SSRC "+Integer.toHexString(mSsrc)+": first key frame after "+mTimeToFirstFrame+" ms");
+      }
+    }
+    mKeyFrames[mBufferIn] = mKeyFrame;
+    mNonReference[mBufferIn] = mNonRef;
     updateSequence();
-    mPackets[mBufferIn].setLength(length);
+    mLengths[mBufferIn] = length;
 
     mAverageBitrate.push(length);
+    mCommitTimes[mBufferIn] = commitTime;
 
-    if (++mBufferIn>=mBufferCount) mBufferIn = 0;
-    mBufferCommitted.release();
+    boolean endOfFrame = (mBuffers[mBufferIn][1] & 0x80) != 0;
+    FecEncoder fec = mFec;
+    if (fec != null) fec.adapt(mReceiver.getLastReport());
+    if (fec != null && hasFecDestination() && fec.isEnabled()) {
+      ByteBuffer payload = mPayloads[mBufferIn];
+      if (fec.protect(mBuffers[mBufferIn], payload == null ? length : mHeaderLengths[mBufferIn], payload, length, endOfFrame)) {
+        int last = mBufferIn;
+        mRing.commit(false);
+        commitFec(fec, last, endOfFrame);
+      } else {
+        mRing.commit(endOfFrame);
+      }
+    } else {
+      mRing.commit(endOfFrame);
+    }
 
     if (mThread == null) {
       mThread = new Thread(this);
       mThread.start();
     }
+    return true;
+  }
+
+  /** Forgets the payload of a slot, and gives its codec buffer back if it was the last packet referring to it. */
+  private void releasePayload(int slot) {
+    if (mFecPackets[slot]) {
+      // The buffer carries media packets again
+      mFecPackets[slot] = false;
+      if (mBuffers[slot] != null) setLong(mBuffers[slot], mSsrc, 8, 12);
+    }
+    mPayloads[slot] = null;
+    CodecBuffer owner = mOwners[slot];
+    if (owner != null) {
+      mOwners[slot] = null;
+      owner.release();
+    }
+  }
+
+  /**
+   * Queues the FEC packet of the group that the packet in the slot given completes.
+   * It goes with the frame of that packet, and is dropped with it. Its sequence number
+   * and its SSRC are the ones of the FEC stream, so that receivers that ignore FEC
+   * don't see any gap in the sequence numbers of the media.
+   */
+  private void commitFec(FecEncoder fec, int last, boolean endOfFrame) {
+    int slot;
+    try {
+      slot = mRing.claim(false);
+    } catch (InterruptedException e) {
+      // Never thrown when not blocking
+      slot = -1;
+    }
+    if (slot < 0 || !lease(slot)) {
+      fec.reset();
+      if (endOfFrame) mRing.flush();
+      return;
+    }
+    byte[] buffer = mBuffers[slot];
+    System.arraycopy(mBuffers[last], 4, buffer, 4, 4);
+    int length = fec.write(buffer);
+    setLong(buffer, ++mFecSeq, 2, 4);
+    setLong(buffer, mFecSsrc, 8, 12);
+    mFecPackets[slot] = true;
+    mPayloads[slot] = null;
+    mLengths[slot] = length;
+    mTimestamps[slot] = mTimestamps[last];
+    mCommitTimes[slot] = mCommitTimes[last];
+    mKeyFrames[slot] = false;
+    mNonReference[slot] = mNonReference[last];
+    mAverageBitrate.push(length);
+    mRing.commit(endOfFrame);
+  }
+
+  /**
+   * Called when a packet is committed while the FIFO is full. The rest of the frame is dropped,
+   * and for a video stream, every frame up to the next key frame unless nothing depends on it.
+   */
+  private void onQueueFull() {
+    long timestamp = mTimestamps[mBufferCount];
+    if (timestamp != mDroppedIn) {
+      mDroppedIn = timestamp;
+      mDroppedFrames.incrementAndGet(DROP_QUEUE_FULL);
+      // A new key frame is needed unless one is already expected, or this one is dropped
+      if (mStartOnKeyFrame && !mNonRef && (!mWaitingForKeyFrame || mKeyFrame)) {
+        Log.w(TAG, "SSRC "+Integer.toHexString(mSsrc)+": FIFO full, waiting for a key frame");
+        waitForKeyFrame();
+      }
+    }
+  }
+
+  /**
+   * Queues a copy of a packet sent by the source of a broadcast.
+   * Called from the sender thread of the source, it never blocks:
+   * the packet is dropped if the FIFO of the sink is full.
+   */
+  private void forward(RtpSocket source, int out) throws IOException, InterruptedException {
+    synchronized (mLeaseLock) {
+      // The sink may have been removed, and its buffers released
+      if (mSource != source) return;
+      forwardLocked(source, out);
+    }
+  }
+
+  private void forwardLocked(RtpSocket source, int out) throws IOException, InterruptedException {
+    if (mWaitingForKeyFrame && !source.mKeyFrames[out]) return;
+    mBufferIn = mRing.claim(false);
+    if (mBufferIn < 0 || !lease(mBufferIn)) mBufferIn = mBufferCount;
+    mKeyFrame = source.mKeyFrames[out];
+    mNonRef = source.mNonReference[out];
+    mCaptureClock = source.mCaptureClock;
+    byte[] buffer = mBuffers[mBufferIn];
+    byte[] packet = source.mBuffers[out];
+    ByteBuffer payload = source.mPayloads[out];
+    int length = source.mLengths[out];
+    int inline = payload == null ? length : source.mHeaderLengths[out];
+    if (mClock != source.mClock) setClockFrequency(source.mClock);
+    mTimestamps[mBufferIn] = source.mTimestamps[out];
+    // Marker & payload type and payload, the SSRC of the sink is kept
+    buffer[1] = packet[1];
+    // The timestamp follows the timebase of the sink, so that it matches its sender reports
+    setLong(buffer, mTimebase.toRtp(mTimestamps[mBufferIn], mClock, mRtpOffset), 4, 8);
+    System.arraycopy(packet, RTP_HEADER_LENGTH, buffer, RTP_HEADER_LENGTH, inline-RTP_HEADER_LENGTH);
+    if (payload != null) payload.duplicate().get(buffer, inline, length-inline);
+    mPayloads[mBufferIn] = null;
+    // The deadline of the copy is the one of the original packet
+    commit(length, source.mCommitTimes[out]);
+  }
+
+  /** Returns true if packets committed to the socket have a destination of their own. */
+  private boolean hasDestination() {
+    return mTransport == TRANSPORT_TCP ? mWriter != null : mPort > 0;
+  }
+
+  /** Returns true if the receiver has set a port up for the FEC packets, see {@link #setFecDestination(InetAddress, int)}. */
+  private boolean hasFecDestination() {
+    return mTransport == TRANSPORT_UDP && !mMulticast && mPort > 0 && mFecPort > 0;
   }
 
   /** Returns an approximation of the bitrate of the RTP stream in bits per second. */
@@ -254,7 +875,7 @@ public class RtpSocket implements Runnable {
    **/
   public void updateTimestamp(long timestamp) {
     mTimestamps[mBufferIn] = timestamp;
-    setLong(mBuffers[mBufferIn], (timestamp/100L)*(mClock/1000L)/10000L, 4, 8);
+    setLong(mBuffers[mBufferIn], mTimebase.toRtp(timestamp, mClock, mRtpOffset), 4, 8);
   }
 
   /** Sets the marker in the RTP packet. */
@@ -262,62 +883,230 @@ public class RtpSocket implements Runnable {
     mBuffers[mBufferIn][1] |= 0x80;
   }
 
-  /** The Thread sends the packets in the FIFO one by one at a constant rate. */
+  /** The Thread sends the packets in the FIFO, they are paced by the {@link Pacer}. */
   @Override
   public void run() {
-    Statistics stats = new Statistics(50,3000);
     try {
       // Caches mCacheSize milliseconds of the stream in the FIFO.
-      Thread.sleep(mCacheSize);
-      long delta = 0;
-      while (mBufferCommitted.tryAcquire(4,TimeUnit.SECONDS)) {
-        if (mOldTimestamp != 0) {
-          // We use our knowledge of the clock rate of the stream and the difference between two timestamps to
-          // compute the time lapse that the packet represents.
-          if ((mTimestamps[mBufferOut]-mOldTimestamp)>0) {
-            stats.push(mTimestamps[mBufferOut]-mOldTimestamp);
-            long d = stats.average()/1000000;
-            //Log.d(TAG,"delay: "+d+" d: "+(mTimestamps[mBufferOut]-mOldTimestamp)/1000000);
-            // We ensure that packets are sent at a constant and suitable rate no matter how the RtpSocket is used.
-            if (mCacheSize>0) Thread.sleep(d);
-          } else if ((mTimestamps[mBufferOut]-mOldTimestamp)<0) {
-            Log.e(TAG, "TS: "+mTimestamps[mBufferOut]+" OLD: "+mOldTimestamp);
+      pause(mCacheSize*1000000L);
+      int count;
+      while (!mStopping && (count = mRing.await(4000000000L)) > 0) {
+        // Number of bytes waiting to be sent, the pacer spreads them over the frame interval
+        long queued = 0;
+        for (int i=0, slot=mRing.peek(); i<count; i++, slot=(slot+1)%mBufferCount) {
+          queued += mLengths[slot];
+        }
+        for (; count > 0 && !mStopping; count--) {
+          int out = mRing.peek();
+          int length = mLengths[out];
+          if (isLate(out)) {
+            queued -= length;
+            releasePayload(out);
+            mRing.release();
+            continue;
+          }
+          long wait = mPacer.reserve(length, queued);
+          if (wait > 0 && !pause(wait)) break;
+          queued -= length;
+          mPacer.onSent(System.nanoTime()-mCommitTimes[out]);
+
+          if (mFecPackets[out]) {
+            // Not forwarded, each sink protects the packets it sends
+            sendFec(out);
+            releasePayload(out);
+            mRing.release();
+            continue;
           }
-          delta += mTimestamps[mBufferOut]-mOldTimestamp;
-          if (delta>500000000 || delta<0) {
-            //Log.d(TAG,"permits: "+mBufferCommitted.availablePermits());
-            delta = 0;
+          for (RtpSocket sink : mSinks) {
+            sink.forward(this, out);
           }
-        }
-        mReport.update(mPackets[mBufferOut].getLength(), (mTimestamps[mBufferOut]/100L)*(mClock/1000L)/10000L);
-        mOldTimestamp = mTimestamps[mBufferOut];
-        if (mCount++>30) {
-          if (mTransport == TRANSPORT_UDP) {
-            mSocket.send(mPackets[mBufferOut]);
-          } else {
-            sendTCP();
+          if (hasDestination()) {
+            mReport.update(length, mCaptureClock ? 0 : mTimestamps[out]-mCommitTimes[out]);
+            if (mTransport == TRANSPORT_UDP) {
+              sendUDP(out);
+            } else {
+              sendTCP(out);
+            }
           }
+          releasePayload(out);
+          mRing.release();
         }
-        if (++mBufferOut>=mBufferCount) mBufferOut = 0;
-        mBufferRequested.release();
       }
+    } catch (InterruptedException e) {
+      // Not expected, the thread is stopped with mStopping
     } catch (Exception e) {
       e.printStackTrace();
     }
+    // The producer may already be committing again, the state is reset by releaseBuffers()
     mThread = null;
-    resetFifo();
   }
 
-  private void sendTCP() {
-    synchronized (mOutputStream) {
-      int len = mPackets[mBufferOut].getLength();
-      Log.d(TAG,"sent "+len);
-      mTcpHeader[2] = (byte) (len>>8);
-      mTcpHeader[3] = (byte) (len&0xFF);
-      try {
-        mOutputStream.write(mTcpHeader);
-        mOutputStream.write(mBuffers[mBufferOut], 0, len);
-      } catch (Exception e) {}
+  /**
+   * Parks the sending thread for the given time in ns.
+   * @return False if it returned early because the thread is being stopped
+   */
+  private boolean pause(long duration) {
+    long deadline = System.nanoTime() + duration, remaining;
+    while (!mStopping && (remaining = deadline - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(this, remaining);
+    }
+    return !mStopping;
+  }
+
+  /**
+   * Decides whether a packet about to be sent is dropped because it missed its deadline,
+   * or because it belongs to a frame that is being dropped.
+   */
+  private boolean isLate(int out) {
+    long timestamp = mTimestamps[out];
+    if (mSkipToKeyFrame) {
+      if (!mKeyFrames[out]) return true;
+      mSkipToKeyFrame = false;
+    }
+    if (timestamp == mDroppedOut) return true;
+
+    long budget = mLatencyBudget;
+    long captured = mCaptureClock ? timestamp : mCommitTimes[out];
+    if (budget <= 0 || System.nanoTime()-captured <= budget) return false;
+
+    if (mNonReference[out] || !mStartOnKeyFrame) {
+      // Nothing depends on this frame, only the frame is dropped
+      mDroppedOut = timestamp;
+      mDroppedFrames.incrementAndGet(DROP_LATE_NON_REFERENCE);
+    } else {
+      // Frames following a reference frame can't be decoded without it
+      mDroppedOut = timestamp;
+      mSkipToKeyFrame = true;
+      mDroppedFrames.incrementAndGet(DROP_LATE_REFERENCE);
+      Log.w(TAG, "SSRC "+Integer.toHexString(mSsrc)+": late reference frame, skipping to the next key frame");
+      requestSyncFrame();
+    }
+    return true;
+  }
+
+  private void sendUDP(int out) throws IOException {
+    int length = mLengths[out];
+    ByteBuffer payload = mPayloads[out];
+
+    if (mMulticast) {
+      if (payload != null) {
+        int inline = mHeaderLengths[out];
+        payload.duplicate().get(mBuffers[out], inline, length-inline);
+      }
+      mPacket.setData(mBuffers[out], 0, length);
+      mSocket.send(mPacket);
+      return;
+    }
+
+    mStaging.clear();
+    try {
+      if (payload == null) {
+        mStaging.put(mBuffers[out], 0, length);
+        mStaging.flip();
+        mChannel.write(mStaging);
+      } else {
+        mStaging.put(mBuffers[out], 0, mHeaderLengths[out]);
+        mStaging.flip();
+        mGather[0] = mStaging;
+        mGather[1] = payload.duplicate();
+        mChannel.write(mGather);
+        mGather[1] = null;
+      }
+    } catch (PortUnreachableException e) {
+      // The client is not listening (yet), the packet is lost
+    }
+
+    if (mRetransmission) {
+      if (mRetransmitCache == null) mRetransmitCache = new RetransmitCache();
+      mRetransmitCache.put(mBuffers[out], payload == null ? length : mHeaderLengths[out], payload, length);
+    }
+  }
+
+  /** Sends an FEC packet to the port of the FEC stream, it is not retransmitted. */
+  private void sendFec(int out) throws IOException {
+    DatagramChannel channel = mFecChannel;
+    if (channel == null) return;
+    mStaging.clear();
+    mStaging.put(mBuffers[out], 0, mLengths[out]);
+    mStaging.flip();
+    try {
+      channel.write(mStaging);
+    } catch (PortUnreachableException e) {
+      // The client is not listening (yet), the packet is lost
+    } catch (NotYetConnectedException e) {
+      // The port of the FEC stream is being changed
+    }
+  }
+
+  /**
+   * Sends a packet reported lost again, as is (RFC 4585, section 3.2). Called on the thread
+   * of the {@link RtcpReceiver}, the channel can be written to by both threads.
+   */
+  private void retransmit(int sequence) {
+    RetransmitCache cache = mRetransmitCache;
+    if (cache == null || mMulticast || mTransport != TRANSPORT_UDP) return;
+    if (mRetransmitBuffer == null) mRetransmitBuffer = new byte[MTU];
+    int length = cache.get(sequence, mRetransmitBuffer);
+    if (length < 0) return;
+    try {
+      mChannel.write(ByteBuffer.wrap(mRetransmitBuffer, 0, length));
+    } catch (IOException ignore) {
+      // The packet is lost again
+    }
+  }
+
+  /**
+   * Appends the packet to the frame being sent over TCP, the frame is written once complete
+   * (or once {@link InterleavedWriter#MAX_WRITE_LENGTH} bytes long).
+   */
+  private void sendTCP(int out) {
+    int length = mLengths[out];
+    ByteBuffer payload = mPayloads[out];
+    if (mTcpFrame == null) mTcpFrame = new byte[InterleavedWriter.MAX_WRITE_LENGTH];
+    if (mTcpLength+4+length > mTcpFrame.length) flushTCP(out);
+
+    byte[] frame = mTcpFrame;
+    int pos = mTcpLength;
+    frame[pos] = '$';
+    frame[pos+1] = mChannelIdentifier;
+    frame[pos+2] = (byte) (length>>8);
+    frame[pos+3] = (byte) (length&0xFF);
+    if (payload == null) {
+      System.arraycopy(mBuffers[out], 0, frame, pos+4, length);
+    } else {
+      int inline = mHeaderLengths[out];
+      System.arraycopy(mBuffers[out], 0, frame, pos+4, inline);
+      payload.duplicate().get(frame, pos+4+inline, length-inline);
+    }
+    mTcpLength += 4+length;
+
+    if ((mBuffers[out][1] & 0x80) != 0) {
+      flushTCP(out);
+      mTcpDropping = false;
+    }
+  }
+
+  /**
+   * Writes the packets accumulated by {@link #sendTCP(int)}. If the connection can't take them,
+   * the rest of the frame is dropped, and for a video stream every frame up to the next key frame
+   * unless nothing depends on this one.
+   */
+  private void flushTCP(int out) {
+    int length = mTcpLength;
+    mTcpLength = 0;
+    if (mTcpDropping) return;
+    try {
+      if (mWriter.write(mTcpFrame, 0, length)) return;
+    } catch (IOException e) {
+      // The connection is closed, the session will be torn down
+      return;
+    }
+    mTcpDropping = true;
+    mDroppedFrames.incrementAndGet(DROP_CONNECTION_FULL);
+    if (mStartOnKeyFrame && !mNonReference[out] && !mSkipToKeyFrame) {
+      Log.w(TAG, "SSRC "+Integer.toHexString(mSsrc)+": connection full, skipping to the next key frame");
+      mSkipToKeyFrame = true;
+      requestSyncFrame();
     }
   }
 
@@ -388,51 +1177,4 @@ public class RtpSocket implements Runnable {
       return (int) (delta>0?8000*sum/delta:0);
     }
   }
-
-  /** Computes the proper rate at which packets are sent. */
-  protected static class Statistics {
-    public final static String TAG = "Statistics";
-
-    private int count=500, c = 0;
-    private float m = 0, q = 0;
-    private long elapsed = 0;
-    private long start = 0;
-    private long duration = 0;
-    private long period = 6000000000L;
-    private boolean initoffset = false;
-
-    public Statistics(int count, long period) {
-      this.count = count;
-      this.period = period*1000000L;
-    }
-
-    public void push(long value) {
-      duration += value;
-      elapsed += value;
-      if (elapsed>period) {
-        elapsed = 0;
-        long now = System.nanoTime();
-        if (!initoffset || (now - start < 0)) {
-          start = now;
-          duration = 0;
-          initoffset = true;
-        }
-        value -= (now - start) - duration;
-        //Log.d(TAG, "sum1: "+duration/1000000+" sum2: "+(now-start)/1000000+" drift: "+((now-start)-duration)/1000000+" v: "+value/1000000);
-      }
-      if (c<40) {
-        // We ignore the first 40 measured values because they may not be accurate
-        c++;
-        m = value;
-      } else {
-        m = (m*q+value)/(q+1);
-        if (q<count) q++;
-      }
-    }
-
-    public long average() {
-      long l = (long)m-2000000;
-      return l>0 ? l : 0;
-    }
-  }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits an H.264 Annex B byte stream in NAL units.
+ *
+ * NAL units are separated by the start code 0x000001, possibly preceded by a zero byte
+ * (the 4 bytes start code), and emulation prevention guarantees that it never appears
+ * inside a NAL unit. The scanner looks at every third byte only: a byte above 1 cannot
+ * be part of a start code ending within the next two bytes, so most of the stream is skipped.
+ */
+public final class StartCodeScanner {
+
+  // Only static methods
+  private StartCodeScanner() {}
+
+  /**
+   * Returns the position of the next 0x000001 start code prefix between from and to,
+   * or -1 if there is none. The zero byte of a 4 bytes start code is not included.
+   */
+  public static int find(ByteBuffer data, int from, int to) {
+    int i = from+2;
+    while (i < to) {
+      byte b = data.get(i);
+      if (b == 0) {
+        // The start code may end at one of the next two bytes
+        i++;
+      } else if (b == 1 && data.get(i-1) == 0 && data.get(i-2) == 0) {
+        return i-2;
+      } else {
+        // No start code can end at the next two bytes either
+        i += 3;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the end of the NAL unit starting at from and followed by a start code at to.
+   * The zero bytes before the start code are not part of the NAL unit, they are either the
+   * first byte of a 4 bytes start code or trailing zero bytes of the stream.
+   */
+  public static int trim(ByteBuffer data, int from, int to) {
+    while (to > from && data.get(to-1) == 0) to--;
+    return to;
+  }
+}
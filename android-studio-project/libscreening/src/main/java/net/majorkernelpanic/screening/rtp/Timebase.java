@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.rtp;
+
+/**
+ * Maps the capture times of the streams, given by {@link System#nanoTime()}, to RTP
+ * timestamps and to the NTP timestamps of the sender reports.
+ *
+ * The NTP mapping is the same for the whole process: the wall clock is read once, and NTP
+ * timestamps then follow the monotonic clock, so they never jump when the wall clock is set.
+ * RTP timestamps count from the origin of the timebase. The streams of a
+ * {@link net.majorkernelpanic.screening.Session} share one, so that a player can relate
+ * the timestamps of its audio and video tracks through their sender reports and keep
+ * them in sync.
+ */
+public class Timebase {
+
+  /** Seconds between the NTP epoch (1900) and the Unix epoch (1970). */
+  public static final long NTP_UNIX_OFFSET = 2208988800L;
+
+  private static final long NANOS = 1000000000L;
+
+  // Wall clock in ns at the monotonic time sMonotonicOrigin
+  private static final long sMonotonicOrigin = System.nanoTime();
+  private static final long sWallClockOrigin = System.currentTimeMillis()*1000000L;
+
+  private static final Timebase sDefault = new Timebase();
+
+  private final long mOrigin;
+
+  /** Creates a timebase whose RTP clocks start now. */
+  public Timebase() {
+    mOrigin = System.nanoTime();
+  }
+
+  /** Returns the timebase of the streams that are not part of a session. */
+  public static Timebase getDefault() {
+    return sDefault;
+  }
+
+  /** Returns the time, see {@link System#nanoTime()}, at which the RTP clocks of the timebase start. */
+  public long getOrigin() {
+    return mOrigin;
+  }
+
+  /**
+   * Converts a time to an RTP timestamp. The conversion is exact, and the timestamp
+   * wraps around after 2^32 ticks of the clock.
+   * @param time The time in ns, see {@link System#nanoTime()}
+   * @param clock The clock rate of the stream in Hz
+   * @param offset The random offset of the timestamps of the stream
+   * @return The RTP timestamp, between 0 and 2^32-1
+   */
+  public long toRtp(long time, long clock, long offset) {
+    long delta = time - mOrigin;
+    long seconds = delta/NANOS, nanos = delta%NANOS;
+    if (nanos < 0) {
+      // Rounds toward minus infinity, the timestamps of times before the origin keep their spacing
+      seconds--;
+      nanos += NANOS;
+    }
+    return (offset + seconds*clock + nanos*clock/NANOS) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * Converts a time to a 64 bits NTP timestamp: seconds since 1900 in the high
+   * 32 bits, and the fraction of a second in the low 32 bits.
+   * @param time The time in ns, see {@link System#nanoTime()}
+   */
+  public static long toNtp(long time) {
+    long wallClock = sWallClockOrigin + (time - sMonotonicOrigin);
+    long seconds = wallClock/NANOS + NTP_UNIX_OFFSET;
+    long fraction = ((wallClock%NANOS) << 32)/NANOS;
+    return seconds << 32 | fraction;
+  }
+
+  /**
+   * Returns the middle 32 bits of the NTP timestamp of a time, as echoed in the
+   * LSR field of the reports of the receivers.
+   * @param time The time in ns, see {@link System#nanoTime()}
+   */
+  public static long toCompactNtp(long time) {
+    return (toNtp(time) >>> 16) & 0xFFFFFFFFL;
+  }
+}
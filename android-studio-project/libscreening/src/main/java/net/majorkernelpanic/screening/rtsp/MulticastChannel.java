@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.rtsp;
+
+import net.majorkernelpanic.screening.Session;
+import net.majorkernelpanic.screening.Stream;
+import net.majorkernelpanic.screening.rtcp.ReceptionReport;
+import net.majorkernelpanic.screening.rtcp.RtcpReceiver;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashSet;
+
+/**
+ * A {@link Session} sent to a multicast group by the {@link RtspServer} on behalf
+ * of every client that asks for it.
+ *
+ * The session is configured once, when the channel is created, so its description
+ * and the transport of its tracks are the same for every client. Its tracks are
+ * started by the first SETUP and run, with one encoder, as long as some RTSP client
+ * has set the channel up or some receiver sends RTCP reports to the group.
+ * The number of viewers is the number of receivers reporting.
+ */
+class MulticastChannel implements RtcpReceiver.Listener {
+  public final static String TAG = "MulticastChannel";
+
+  private final RtspServer mServer;
+  private final Session mSession;
+  private final String mDescription;
+  private final String mGroup;
+  private final RtcpReceiver[] mReceivers = new RtcpReceiver[2];
+  // The RTSP connections that have set up the channel
+  private final HashSet<Object> mClients = new HashSet<Object>();
+
+  /**
+   * Configures the session to be sent to its multicast destination.
+   * @param session A session whose destination is a multicast group
+   * @param port The first of the 4 ports used by the channel: RTP and RTCP of the audio, then of the video
+   */
+  MulticastChannel(RtspServer server, Session session, int port) throws IOException {
+    mServer = server;
+    mSession = session;
+    mGroup = session.getDestination();
+
+    for (int id=0; id<2; id++) {
+      if (session.trackExists(id)) session.getTrack(id).setDestinationPorts(port+2*id, port+2*id+1);
+    }
+    session.syncConfigure();
+    mDescription = session.getSessionDescription();
+
+    InetAddress group = InetAddress.getByName(mGroup);
+    for (int id=0; id<2; id++) {
+      if (!session.trackExists(id)) continue;
+      try {
+        mReceivers[id] = new RtcpReceiver(group, port+2*id+1);
+        mReceivers[id].setListener(this);
+        mReceivers[id].start();
+      } catch (IOException e) {
+        Log.w(TAG,"Receiver reports can't be received on port "+(port+2*id+1)+": "+e.getMessage());
+      }
+    }
+    Log.i(TAG,"Channel created for "+mGroup+":"+port);
+  }
+
+  Session getSession() {
+    return mSession;
+  }
+
+  String getSessionDescription() {
+    return mDescription;
+  }
+
+  boolean trackExists(int id) {
+    return mSession.trackExists(id);
+  }
+
+  /**
+   * Returns the Transport header of the track, the same for every client but its profile.
+   * @param profile RTP/AVP or RTP/AVPF, the one the client asked for
+   */
+  String getTransport(int id, String profile) {
+    Stream track = mSession.getTrack(id);
+    int[] ports = track.getDestinationPorts();
+    return "Transport: " + profile + "/UDP;multicast" +
+        ";destination=" + mGroup +
+        ";port=" + ports[0] + "-" + ports[1] +
+        ";ttl=" + mSession.getTimeToLive() +
+        ";ssrc=" + Integer.toHexString(track.getSSRC()) +
+        ";mode=play\r\n";
+  }
+
+  /** Returns the number of receivers currently sending RTCP reports to the group. */
+  int getViewerCount() {
+    int count = 0;
+    for (RtcpReceiver receiver : mReceivers) {
+      if (receiver != null) count = Math.max(count, receiver.getMemberCount());
+    }
+    return count;
+  }
+
+  /** Registers an RTSP client and starts the track if needed. */
+  synchronized void start(Object client, int id) throws IOException {
+    mClients.add(client);
+    if (!mSession.getTrack(id).isStreaming()) {
+      boolean streaming = mServer.isStreaming();
+      mSession.syncStart(id);
+      Log.i(TAG,"Track "+id+" of "+mGroup+" started");
+      if (!streaming) mServer.postMessage(RtspServer.MESSAGE_STREAMING_STARTED);
+      mServer.postMessage(RtspServer.MESSAGE_UTILIZATION_CHANGED);
+    }
+  }
+
+  /** Unregisters an RTSP client, the channel stops if nobody receives it anymore. */
+  synchronized void leave(Object client) {
+    if (mClients.remove(client)) stopIfUnused();
+  }
+
+  @Override
+  public void onMemberJoined(RtcpReceiver receiver, int ssrc) {
+    mServer.postMessage(RtspServer.MESSAGE_VIEWERS_CHANGED);
+  }
+
+  @Override
+  public void onMemberLeft(RtcpReceiver receiver, int ssrc, boolean bye) {
+    mServer.postMessage(RtspServer.MESSAGE_VIEWERS_CHANGED);
+    synchronized (this) {
+      stopIfUnused();
+    }
+  }
+
+  @Override
+  public void onReceptionReport(RtcpReceiver receiver, ReceptionReport report) {
+    Log.v(TAG,"Report of "+Integer.toHexString(report.reporter)+" on "+mGroup+": "+report);
+  }
+
+  private void stopIfUnused() {
+    if (mClients.isEmpty() && getViewerCount() == 0 && mSession.isStreaming()) {
+      mSession.syncStop();
+      Log.i(TAG,"Nobody receives "+mGroup+" anymore, channel stopped");
+      if (!mServer.isStreaming()) mServer.postMessage(RtspServer.MESSAGE_STREAMING_STOPPED);
+      mServer.postMessage(RtspServer.MESSAGE_UTILIZATION_CHANGED);
+    }
+  }
+
+  /** Stops the channel for good. */
+  void close() {
+    // Receivers are stopped first, their thread may be waiting for the channel
+    for (RtcpReceiver receiver : mReceivers) {
+      if (receiver != null) receiver.stop();
+    }
+    synchronized (this) {
+      mClients.clear();
+      mSession.syncStop();
+      mSession.release();
+    }
+  }
+}
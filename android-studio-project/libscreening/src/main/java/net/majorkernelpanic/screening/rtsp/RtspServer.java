@@ -20,7 +20,17 @@
 
 package net.majorkernelpanic.screening.rtsp;
 
+import net.majorkernelpanic.screening.BroadcastHub;
+import net.majorkernelpanic.screening.MediaStream;
 import net.majorkernelpanic.screening.Session;
+import net.majorkernelpanic.screening.Stream;
+import net.majorkernelpanic.screening.audio.AudioStream;
+import net.majorkernelpanic.screening.rtcp.ReceptionReport;
+import net.majorkernelpanic.screening.rtcp.RtcpReceiver;
+import net.majorkernelpanic.screening.rtp.InterleavedWriter;
+import net.majorkernelpanic.screening.video.EncoderStandby;
+import net.majorkernelpanic.screening.video.VideoQuality;
+import net.majorkernelpanic.screening.video.VideoStream;
 
 import android.app.Service;
 import android.content.Intent;
@@ -29,23 +39,43 @@ import android.content.SharedPreferences.Editor;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Binder;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Base64;
 import android.util.Log;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.StringReader;
 import java.net.BindException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Locale;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -56,6 +86,9 @@ import java.util.regex.Pattern;
  * For each connected client, a Session is instantiated.
  * The Session will start or stop streams according to what the client wants.
  *
+ * Connections are served by two threads whatever their number: one reading every
+ * connection with a selector, and one processing the requests.
+ *
  */
 public class RtspServer extends Service {
   public final static String TAG = "RtspServer";
@@ -78,17 +111,61 @@ public class RtspServer extends Service {
   /** Streaming stopped. */
   public final static int MESSAGE_STREAMING_STOPPED = 0X01;
 
+  /** A receiver joined or left a multicast channel, see {@link #getMulticastViewerCount()}. */
+  public final static int MESSAGE_VIEWERS_CHANGED = 0X02;
+
+  /** The number of sessions, of encoders or the outgoing bitrate changed, see {@link #getSessionCount()}, {@link #getEncoderCount()} and {@link #getBitrate()}. */
+  public final static int MESSAGE_UTILIZATION_CHANGED = 0X03;
+
+  /** A client was refused because of the limits set with {@link #setMaxSessions(int)}, {@link #setMaxEncoders(int)} or {@link #setMaxBitrate(long)}. */
+  public final static int MESSAGE_ADMISSION_REFUSED = 0X04;
+
   /** Key used in the SharedPreferences to store whether the RTSP server is enabled or not. */
   public final static String KEY_ENABLED = "rtsp_enabled";
 
   /** Key used in the SharedPreferences for the port used by the RTSP server. */
   public final static String KEY_PORT = "rtsp_port";
 
+  /** Time in ms after which a client that has not set up a session and sends no requests is disconnected. */
+  public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+
+  /** Maximum length of a request, its content included. */
+  public static final int MAX_REQUEST_LENGTH = 8192;
+
+  /** Maximum number of threads processing requests, those of a connection are processed one at a time. */
+  public static final int MAX_REQUEST_THREADS = 4;
+
+  /** Time in s advertised to clients after which a session without requests nor RTCP is torn down. */
+  public static final int DEFAULT_SESSION_TIMEOUT = 60;
+
+  /** First port used by the multicast channels, each one uses 4 ports. */
+  public static final int DEFAULT_MULTICAST_PORT = 5000;
+
+  /** Lowest bitrate in bit/s a video track is degraded to, to fit in the bitrate limit of the server. */
+  public static final int MIN_DEGRADED_BITRATE = 100000;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Pattern sInterleaved = Pattern.compile("RTP/AVPF?/TCP", Pattern.CASE_INSENSITIVE);
+
   protected SharedPreferences mSharedPreferences;
   protected boolean mEnabled = true;
   protected int mPort = DEFAULT_RTSP_PORT;
+  protected volatile int mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+  protected volatile int mSessionTimeout = DEFAULT_SESSION_TIMEOUT;
+  protected volatile int mMaxSessions = 0, mMaxEncoders = 0;
+  protected volatile int mStandbyTier = EncoderStandby.TIER_ENCODER;
+  protected volatile long mMaxBitrate = 0;
+  // Sessions of the clients, locked when used since requests run on several threads
   protected WeakHashMap<Session,Object> mSessions = new WeakHashMap<Session,Object>(2);
 
+  // RTSP sessions set up by the clients, by session identifier
+  private final ConcurrentHashMap<String,Connection> mSessionTable = new ConcurrentHashMap<String,Connection>();
+  private final SecureRandom mRandom = new SecureRandom();
+
+  // Multicast channels, by description key of their session
+  private final HashMap<String,MulticastChannel> mChannels = new HashMap<String,MulticastChannel>();
+  private int mNextMulticastPort = DEFAULT_MULTICAST_PORT;
+
   private RequestListener mListenerThread;
   private final IBinder mBinder = new LocalBinder();
   private boolean mRestart = false;
@@ -110,6 +187,18 @@ public class RtspServer extends Service {
     void onMessage(RtspServer server, int message);
   }
 
+  /**
+   * Implemented by a {@link CallbackListener} that also wants the reception reports of the clients.
+   * Be careful: those callbacks won't necessarily be called from the ui thread !
+   */
+  public interface ReceptionReportListener {
+    /**
+     * Called when a unicast client reports the loss, jitter and round trip time of a track,
+     * every few seconds, on the thread receiving the report.
+     */
+    void onReceptionReport(RtspServer server, Session session, int trackId, ReceptionReport report);
+  }
+
   /**
    * See {@link RtspServer.CallbackListener} to check out what events will be fired once you set up a listener.
    * @param listener The listener
@@ -150,6 +239,99 @@ public class RtspServer extends Service {
     editor.commit();
   }
 
+  /**
+   * Sets the time after which a client that has not set up a session and sends no requests
+   * is disconnected, the sessions set up are bound by {@link #setSessionTimeout(int)} instead.
+   * @param timeout The timeout in ms, 0 to never disconnect idle clients
+   */
+  public void setIdleTimeout(int timeout) {
+    mIdleTimeout = timeout;
+  }
+
+  /**
+   * Sets the timeout advertised in the Session header. A session for which the client sends
+   * neither requests (GET_PARAMETER usually) nor RTCP packets during that time is torn down.
+   * @param timeout The timeout in s, 0 to never tear down sessions
+   */
+  public void setSessionTimeout(int timeout) {
+    mSessionTimeout = timeout;
+  }
+
+  /** Returns the number of RTSP sessions currently set up. */
+  public int getSessionCount() {
+    return mSessionTable.size();
+  }
+
+  /**
+   * Sets the maximum number of RTSP sessions set up at the same time.
+   * @param max The limit, 0 for no limit
+   */
+  public void setMaxSessions(int max) {
+    mMaxSessions = max;
+  }
+
+  public int getMaxSessions() {
+    return mMaxSessions;
+  }
+
+  /**
+   * Sets the maximum number of encoders running at the same time. Clients asking for
+   * a stream already running share its encoder and do not count.
+   * @param max The limit, 0 for no limit
+   */
+  public void setMaxEncoders(int max) {
+    mMaxEncoders = max;
+  }
+
+  public int getMaxEncoders() {
+    return mMaxEncoders;
+  }
+
+  /** Returns the number of encoders currently running. */
+  public int getEncoderCount() {
+    return BroadcastHub.getBroadcastCount();
+  }
+
+  /**
+   * Sets the maximum outgoing bitrate of the server, all clients included.
+   * @param max The limit in bit per second, 0 for no limit
+   */
+  public void setMaxBitrate(long max) {
+    mMaxBitrate = max;
+  }
+
+  public long getMaxBitrate() {
+    return mMaxBitrate;
+  }
+
+  /**
+   * Sets what is kept ready, while the server runs, for the next client of the default
+   * configuration of the {@link SessionBuilder}. Takes effect the next time the server is created.
+   * @param tier {@link EncoderStandby#TIER_NONE}, {@link EncoderStandby#TIER_ENCODER} (default) or {@link EncoderStandby#TIER_PIPELINE}
+   */
+  public void setStandbyTier(int tier) {
+    mStandbyTier = tier;
+  }
+
+  /**
+   * Sets the time after which the encoder kept ready is released if no client takes it.
+   * @param timeout The timeout in ms, 0 to keep it while the server runs
+   */
+  public void setStandbyTimeout(long timeout) {
+    EncoderStandby.setIdleTimeout(timeout);
+  }
+
+  /** Returns the number of receivers reporting on every multicast channel of the server. */
+  public int getMulticastViewerCount() {
+    int count = 0;
+    synchronized (mChannels) {
+      for (MulticastChannel channel : mChannels.values()) {
+        count += channel.getViewerCount();
+      }
+    }
+    return count;
+  }
+
   /**
    * Set Basic authorization to access RTSP Stream
    * @param username username
@@ -167,6 +349,7 @@ public class RtspServer extends Service {
    */
   public void start() {
     if (!mEnabled || mRestart) stop();
+    if (!mEnabled) EncoderStandby.disable();
     if (mEnabled && mListenerThread == null) {
       try {
         mListenerThread = new RequestListener();
@@ -185,9 +368,11 @@ public class RtspServer extends Service {
     if (mListenerThread != null) {
       try {
         mListenerThread.kill();
-        for ( Session session : mSessions.keySet() ) {
-          if ( session != null && session.isStreaming() ) {
-            session.stop();
+        synchronized (mSessions) {
+          for ( Session session : mSessions.keySet() ) {
+            if ( session != null && session.isStreaming() ) {
+              session.stop();
+            }
           }
         }
       } catch (Exception e) {
@@ -195,13 +380,21 @@ public class RtspServer extends Service {
         mListenerThread = null;
       }
     }
+    synchronized (mChannels) {
+      for (MulticastChannel channel : mChannels.values()) {
+        channel.close();
+      }
+      mChannels.clear();
+    }
   }
 
   /** Returns whether or not the RTSP server is streaming to some client(s). */
   public boolean isStreaming() {
-    for ( Session session : mSessions.keySet() ) {
-      if ( session != null && session.isStreaming() ) {
-        return true;
+    synchronized (mSessions) {
+      for ( Session session : mSessions.keySet() ) {
+        if ( session != null && session.isStreaming() ) {
+          return true;
+        }
       }
     }
     return false;
@@ -214,9 +407,11 @@ public class RtspServer extends Service {
   /** Returns the bandwidth consumed by the RTSP server in bits per second. */
   public long getBitrate() {
     long bitrate = 0;
-    for ( Session session : mSessions.keySet() ) {
-      if ( session != null && session.isStreaming() ) {
-        bitrate += session.getBitrate();
+    synchronized (mSessions) {
+      for ( Session session : mSessions.keySet() ) {
+        if ( session != null && session.isStreaming() ) {
+          bitrate += session.getBitrate();
+        }
       }
     }
     return bitrate;
@@ -238,11 +433,46 @@ public class RtspServer extends Service {
     mSharedPreferences.registerOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
 
     start();
+    prepareDefaultSession();
+  }
+
+  /**
+   * Configures a session with the default configuration of the {@link SessionBuilder}
+   * in the background, so that the parameters of its encoders are already known
+   * when the first client sends a DESCRIBE.
+   */
+  protected void prepareDefaultSession() {
+    new Thread("RtspServerPrepare") {
+      @Override
+      public void run() {
+        Session session = null;
+        long start = SystemClock.elapsedRealtime();
+        try {
+          session = UriParser.parse("rtsp://127.0.0.1:"+mPort+"/");
+          session.setCallback(null);
+          if (session.getDestination() == null) session.setDestination("127.0.0.1");
+          session.getCachedSessionDescription();
+          session.syncConfigure();
+          session.getSessionDescription();
+          Log.d(TAG,"Default session prepared in "+(SystemClock.elapsedRealtime()-start)+" ms");
+
+          // The first client of the default configuration takes an encoder ready to stream
+          if (session.getVideoTrack() != null && mListenerThread != null) {
+            EncoderStandby.enable(session.getVideoTrack(), mStandbyTier);
+          }
+        } catch (Exception e) {
+          Log.w(TAG,"The default session could not be prepared: "+e.getMessage());
+        } finally {
+          if (session != null) session.release();
+        }
+      }
+    }.start();
   }
 
   @Override
   public void onDestroy() {
     stop();
+    EncoderStandby.disable();
     mSharedPreferences.unregisterOnSharedPreferenceChangeListener(mOnSharedPreferenceChangeListener);
   }
 
@@ -297,15 +527,29 @@ public class RtspServer extends Service {
     }
   }
 
+  protected void postReceptionReport(Session session, int trackId, ReceptionReport report) {
+    synchronized (mListeners) {
+      if (!mListeners.isEmpty()) {
+        for (CallbackListener cl : mListeners) {
+          if (cl instanceof ReceptionReportListener) {
+            ((ReceptionReportListener) cl).onReceptionReport(this, session, trackId, report);
+          }
+        }
+      }
+    }
+  }
+
   /**
    * By default the RTSP uses {@link UriParser} to parse the URI requested by the client
    * but you can change that behavior by override this method.
+   * Clients requesting the same configuration share the same encoders.
    * @param uri The uri that the client has requested
    * @param client The socket associated to the client
    * @return A proper session
    */
   protected Session handleRequest(String uri, Socket client) throws IllegalStateException, IOException {
     Session session = UriParser.parse(uri);
+    session.setShared(true);
     session.setOrigin(client.getLocalAddress().getHostAddress());
     if (session.getDestination()==null) {
       session.setDestination(client.getInetAddress().getHostAddress());
@@ -313,12 +557,158 @@ public class RtspServer extends Service {
     return session;
   }
 
+  /** Returns the bitrate in bit per second a track is configured to stream at. */
+  private static long getNominalBitrate(Stream track) {
+    if (track instanceof VideoStream) return ((VideoStream) track).getVideoQuality().bitrate;
+    if (track instanceof AudioStream) return ((AudioStream) track).getAudioQuality().bitRate;
+    return 0;
+  }
+
+  /** Whether the Transport header of a SETUP asks for RTP and RTCP interleaved in the RTSP connection. */
+  static boolean isInterleaved(String transport) {
+    return sInterleaved.matcher(transport).find();
+  }
+
+  /**
+   * Returns the profile of the Transport header of a SETUP, answered with the same one:
+   * RTP/AVPF if the client supports the feedback advertised in the description (RFC 4585).
+   */
+  static String getProfile(String transport) {
+    return transport.trim().toUpperCase(Locale.US).startsWith("RTP/AVPF") ? "RTP/AVPF" : "RTP/AVP";
+  }
+
+  /** Whether a track would start an encoder rather than share a running one. */
+  private static boolean needsEncoder(Stream track) {
+    return !(track instanceof MediaStream) || BroadcastHub.getSource(((MediaStream) track).getConfigKey()) == null;
+  }
+
+  /**
+   * Checks that a track can be started within the limits of the server.
+   * @param newSession Whether starting the track sets up a new session
+   * @return Null if the track can be started, what limit would be exceeded otherwise
+   */
+  String checkAdmission(boolean newSession, Stream track) {
+    int maxSessions = mMaxSessions, maxEncoders = mMaxEncoders;
+    long maxBitrate = mMaxBitrate;
+    if (newSession && maxSessions > 0 && mSessionTable.size() >= maxSessions) return "sessions";
+    if (track.isStreaming()) return null;
+    if (maxEncoders > 0 && needsEncoder(track) && BroadcastHub.getBroadcastCount() >= maxEncoders) return "encoders";
+    if (maxBitrate > 0 && getBitrate() + getNominalBitrate(track) > maxBitrate) return "bitrate";
+    return null;
+  }
+
+  /**
+   * Lowers the quality of the video track of a session that would exceed the limits of the
+   * server, before it is configured. The track shares the encoder of the best running stream
+   * of the same kind that fits, or else streams at the bitrate left if an encoder is available.
+   */
+  private void degrade(Session session) {
+    VideoStream video = session.getVideoTrack();
+    int maxEncoders = mMaxEncoders;
+    long maxBitrate = mMaxBitrate;
+    if (video == null || !needsEncoder(video)) return;
+
+    boolean noEncoder = maxEncoders > 0 && BroadcastHub.getBroadcastCount() >= maxEncoders;
+    long left = Long.MAX_VALUE;
+    if (maxBitrate > 0) {
+      left = maxBitrate - getBitrate();
+      if (session.getAudioTrack() != null) left -= getNominalBitrate(session.getAudioTrack());
+    }
+    if (!noEncoder && getNominalBitrate(video) <= left) return;
+
+    VideoStream best = null;
+    for (MediaStream source : BroadcastHub.getSources()) {
+      if (source.getClass() != video.getClass()) continue;
+      VideoStream candidate = (VideoStream) source;
+      if (candidate.getVideoQuality().bitrate > left) continue;
+      if (best == null || candidate.getVideoQuality().bitrate > best.getVideoQuality().bitrate) best = candidate;
+    }
+
+    if (best != null) {
+      video.setVideoQuality(best.getVideoQuality());
+      video.setStreamingMethod(best.getStreamingMethod());
+      Log.i(TAG,"Session degraded to the running stream "+best.getVideoQuality());
+    } else if (!noEncoder && left >= MIN_DEGRADED_BITRATE) {
+      VideoQuality quality = video.getVideoQuality().clone();
+      quality.bitrate = (int) Math.min(left, Integer.MAX_VALUE);
+      video.setVideoQuality(quality);
+      Log.i(TAG,"Session degraded to "+quality.bitrate+" bps");
+    }
+  }
+
+  /**
+   * Returns the multicast channel sending a session like the one given, which is
+   * released if such a channel already exists. The channel is created otherwise.
+   * @param session A session whose destination is a multicast group
+   */
+  MulticastChannel getMulticastChannel(Session session) throws IOException {
+    String key = session.getDescriptionKey();
+    synchronized (mChannels) {
+      MulticastChannel channel = mChannels.get(key);
+      if (channel != null) {
+        session.release();
+        return channel;
+      }
+      try {
+        channel = new MulticastChannel(this, session, mNextMulticastPort);
+      } catch (IOException e) {
+        session.release();
+        throw e;
+      } catch (RuntimeException e) {
+        session.release();
+        throw e;
+      }
+      mNextMulticastPort += 4;
+      mChannels.put(key, channel);
+      synchronized (mSessions) {
+        mSessions.put(session, null);
+      }
+      return channel;
+    }
+  }
+
+  /** Returns the time in ms the idle and session timeouts are measured with. */
+  long now() {
+    return SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Called on the thread reading the connection when the client sends a packet interleaved
+   * in it, an RTCP report usually (RFC 2326, section 10.12). Does nothing by default.
+   * @param session The session of the client
+   * @param trackId The track the channel of the packet was negotiated for
+   * @param buffer The packet, only valid until the method returns
+   */
+  protected void onInterleavedPacket(Session session, int trackId, byte[] buffer, int offset, int length) {
+  }
+
+  /**
+   * Handles every RTSP connection on a single thread with a {@link Selector}.
+   * Requests are parsed as they arrive and handed over to the {@link RequestHandler} of their
+   * connection, which runs them on a pool of {@link #MAX_REQUEST_THREADS} threads. A slow request
+   * (a DESCRIBE configuring the encoders) only holds the following requests of its own connection.
+   */
   class RequestListener extends Thread implements Runnable {
-    private final ServerSocket mServer;
+    private final ServerSocketChannel mServer;
+    private final Selector mSelector;
+    private final ThreadPoolExecutor mExecutor;
+    // Connections with some data to write once their socket is writable
+    private final ConcurrentLinkedQueue<Connection> mPendingWrites = new ConcurrentLinkedQueue<Connection>();
 
     public RequestListener() throws IOException {
       try {
-        mServer = new ServerSocket(mPort);
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(mPort));
+        mServer.configureBlocking(false);
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+        mExecutor = new ThreadPoolExecutor(MAX_REQUEST_THREADS, MAX_REQUEST_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable task) {
+            return new Thread(task, "RtspRequestHandler");
+          }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
         start();
       } catch (BindException e) {
         Log.e(TAG,"Port already in use !");
@@ -328,107 +718,595 @@ public class RtspServer extends Service {
     }
 
     public void run() {
-      Log.i(TAG,"RTSP server listening on port "+mServer.getLocalPort());
-      while (!Thread.interrupted()) {
-        try {
-          new WorkerThread(mServer.accept()).start();
-        } catch (SocketException e) {
-          break;
-        } catch (IOException e) {
-          Log.e(TAG,e.getMessage());
-          continue;
+      Log.i(TAG,"RTSP server listening on port "+mServer.socket().getLocalPort());
+      try {
+        while (!Thread.interrupted()) {
+          mSelector.select(1000);
+
+          Connection connection;
+          while ((connection = mPendingWrites.poll()) != null) {
+            try {
+              connection.onWriteRequested();
+            } catch (CancelledKeyException ignore) {
+              // Closed by the handler thread in the meantime
+            }
+          }
+
+          Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (!key.isValid()) continue;
+            if (key.isAcceptable()) {
+              accept();
+              continue;
+            }
+            connection = (Connection) key.attachment();
+            // Whatever a client sends, only its own connection may fail
+            try {
+              if (key.isReadable()) connection.onReadable();
+              if (key.isValid() && key.isWritable()) connection.onWritable();
+            } catch (CancelledKeyException ignore) {
+              // Closed by the handler thread in the meantime
+            } catch (RuntimeException e) {
+              Log.e(TAG, "Connection from "+connection.getAddress()+" failed: "+e);
+              e.printStackTrace();
+              connection.close();
+            }
+          }
+
+          // Clients that set nothing up and send nothing are disconnected,
+          // and the sessions of clients that stopped keeping them alive are torn down
+          long now = now();
+          for (SelectionKey key : mSelector.keys()) {
+            if (key.attachment() instanceof Connection) {
+              connection = (Connection) key.attachment();
+              if (connection.isIdle(now)) {
+                Log.i(TAG, "Idle connection from "+connection.getAddress()+" closed");
+                connection.close();
+              } else if (connection.isExpired(now)) {
+                Log.i(TAG, "Session of "+connection.getAddress()+" timed out");
+                connection.close();
+              }
+            }
+          }
         }
+      } catch (ClosedSelectorException ignore) {
+      } catch (IOException e) {
+        Log.e(TAG,e.getMessage()!=null?e.getMessage():"Selector failed");
       }
+
+      for (SelectionKey key : mSelector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          ((Connection) key.attachment()).close();
+        }
+      }
+      try {
+        mServer.close();
+        mSelector.close();
+      } catch (IOException ignore) {}
+      // The connections are released once the requests already posted are done
+      mExecutor.shutdown();
+      try {
+        mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ignore) {}
       Log.i(TAG,"RTSP server stopped !");
     }
 
-    public void kill() {
+    private void accept() {
       try {
-        mServer.close();
-      } catch (IOException e) {}
+        SocketChannel channel = mServer.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, new RequestHandler(mExecutor), this);
+        connection.register(mSelector);
+      } catch (IOException e) {
+        Log.e(TAG,e.getMessage()!=null?e.getMessage():"Connection refused");
+      }
+    }
+
+    /** Asks the selector thread to write the data pending on a connection when possible. */
+    void requestWrite(Connection connection) {
+      mPendingWrites.offer(connection);
+      mSelector.wakeup();
+    }
+
+    public void kill() {
+      interrupt();
+      mSelector.wakeup();
       try {
         this.join();
       } catch (InterruptedException ignore) {}
     }
   }
 
-  // One thread per client
-  class WorkerThread extends Thread implements Runnable {
+  /** Processes the requests of a connection one at a time and in order, on the threads of the server. */
+  static class RequestHandler implements Runnable {
+    private final Executor mExecutor;
+    private final ArrayDeque<Runnable> mQueue = new ArrayDeque<Runnable>();
+    // Whether a thread of the executor is running the tasks of the queue
+    private boolean mRunning = false;
+
+    public RequestHandler(Executor executor) {
+      mExecutor = executor;
+    }
+
+    public void post(Runnable task) {
+      synchronized (mQueue) {
+        mQueue.offer(task);
+        if (mRunning) return;
+        mRunning = true;
+      }
+      try {
+        mExecutor.execute(this);
+      } catch (RejectedExecutionException e) {
+        // The server has stopped, nothing is left to process the tasks
+        synchronized (mQueue) {
+          mQueue.clear();
+          mRunning = false;
+        }
+      }
+    }
+
+    public void run() {
+      while (true) {
+        Runnable task;
+        synchronized (mQueue) {
+          task = mQueue.poll();
+          if (task == null) {
+            mRunning = false;
+            return;
+          }
+        }
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * State of an RTSP connection. Bytes are read and requests parsed on the thread of the
+   * {@link RequestListener}, requests are processed by the {@link RequestHandler} of the connection.
+   */
+  class Connection {
+    private final SocketChannel mChannel;
     private final Socket mClient;
-    private final OutputStream mOutput;
-    private final BufferedReader mInput;
+    private final InterleavedWriter mWriter;
+    private final RequestHandler mHandler;
+    private final RequestListener mListener;
+    // Grows up to the length of the largest packet interleaved by the client
+    private ByteBuffer mInput = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+    private SelectionKey mKey;
+    private volatile long mLastActivity;
+    private boolean mClosed = false;
+    // Track of each interleaved channel negotiated in SETUP, -1 if none
+    private final int[] mChannelTracks = new int[256];
+    // Run on the handler thread once the response to the current request is queued
+    private Runnable mAfterResponse = null;
+    // Identifier of the RTSP session, assigned by the first SETUP
+    private volatile String mSessionId = null;
+    // Tracks set up by the client, started again by a PLAY following a PAUSE
+    private final boolean[] mSetupTracks = new boolean[2];
+    private boolean mPaused = false;
+    // Whether the session was configured, its description may come from the SdpCache
+    private boolean mConfigured = false;
+    // The multicast channel described to the client, the session is then unused
+    private volatile MulticastChannel mMulticastChannel = null;
 
     // Each client has an associated session
-    private Session mSession;
-
-    public WorkerThread(final Socket client) throws IOException {
-      mInput = new BufferedReader(new InputStreamReader(client.getInputStream()));
-      mOutput = client.getOutputStream();
-      mClient = client;
+    private volatile Session mSession;
+
+    public Connection(SocketChannel channel, RequestHandler handler, RequestListener listener) {
+      mChannel = channel;
+      mClient = channel.socket();
+      mWriter = new InterleavedWriter(channel);
+      mHandler = handler;
+      mListener = listener;
+      // Responses and media left pending are written by the selector once the socket is writable
+      mWriter.setListener(new InterleavedWriter.Listener() {
+        public void onPending(InterleavedWriter writer) {
+          mListener.requestWrite(Connection.this);
+        }
+      });
       mSession = new Session();
+      mLastActivity = now();
+      Arrays.fill(mChannelTracks, -1);
+      Log.i(TAG, "Connection from "+getAddress());
     }
 
-    public void run() {
-      Request request;
-      Response response;
+    void register(Selector selector) throws IOException {
+      mKey = mChannel.register(selector, SelectionKey.OP_READ, this);
+    }
 
-      Log.i(TAG, "Connection from "+mClient.getInetAddress().getHostAddress());
+    String getAddress() {
+      return mClient.getInetAddress().getHostAddress();
+    }
 
-      while (!Thread.interrupted()) {
-        request = null;
-        response = null;
+    /**
+     * Whether the client has not set up a session, and has not sent anything for a while.
+     * A client that set up a session, even paused, is only bound by {@link #isExpired(long)}.
+     */
+    boolean isIdle(long now) {
+      return mIdleTimeout > 0 && mSessionId == null && now-mLastActivity > mIdleTimeout;
+    }
 
-        // Parse the request
-        try {
-          request = Request.parseRequest(mInput);
-        } catch (SocketException e) {
-          // Client has left
-          break;
-        } catch (Exception e) {
-          // We don't understand the request :/
-          response = new Response();
-          response.status = Response.STATUS_BAD_REQUEST;
-        }
+    /**
+     * Whether the client set up a session and has not kept it alive,
+     * any request, interleaved packet or RTCP report from the client does.
+     */
+    boolean isExpired(long now) {
+      return mSessionId != null && mSessionTimeout > 0 && now-mLastActivity > mSessionTimeout*1000L;
+    }
+
+    /** Reads what the client sent, and posts every complete request to the handler. */
+    void onReadable() {
+      int length;
+      try {
+        length = mChannel.read(mInput);
+      } catch (IOException e) {
+        length = -1;
+      }
+      if (length < 0) {
+        // Client has left
+        close();
+        return;
+      }
+      mLastActivity = now();
 
-        // Do something accordingly like starting the streams, sending a session description
-        if (request != null) {
-          try {
-            response = processRequest(request);
+      while (parseRequest());
+
+      // An interleaved packet always fits in the buffer, a request must fit in MAX_REQUEST_LENGTH
+      if (!mInput.hasRemaining() || (mInput.position() >= MAX_REQUEST_LENGTH && mInput.get(0) != '$')) {
+        Log.e(TAG, "Request too long from "+getAddress());
+        post(null);
+        close();
+      }
+    }
+
+    /**
+     * Extracts the first request of the input buffer.
+     * @return True if a request was found, there may be another one
+     */
+    private boolean parseRequest() {
+      byte[] input = mInput.array();
+      int end = mInput.position(), start = 0;
+
+      // Line breaks between requests are ignored
+      while (start < end && (input[start] == '\r' || input[start] == '\n')) start++;
+
+      // A packet interleaved by the client: '$', the channel, and the length of the packet
+      if (start < end && input[start] == '$') {
+        int length = end-start < 4 ? -1 : (input[start+2]&0xFF)<<8 | (input[start+3]&0xFF);
+        if (length < 0 || end-start < 4+length) {
+          consume(start);
+          if (4+length > mInput.capacity()) {
+            // Up to 64 KB, larger than any request
+            ByteBuffer larger = ByteBuffer.allocate(4+length);
+            mInput.flip();
+            larger.put(mInput);
+            mInput = larger;
           }
-          catch (Exception e) {
-            // This alerts the main thread that something has gone wrong in this thread
-            postError(e, ERROR_START_FAILED);
-            Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
-            e.printStackTrace();
-            response = new Response(request);
+          return false;
+        }
+        int trackId = mChannelTracks[input[start+1]&0xFF];
+        if (trackId >= 0) {
+          // RTCP packet types fall in 192-223, where RTP payload types never do (RFC 5761)
+          int type = length < 2 ? 0 : input[start+5]&0xFF;
+          RtcpReceiver receiver = getRtcpReceiver(trackId);
+          if (type >= 192 && type <= 223 && receiver != null) {
+            receiver.onPacket(input, start+4, length);
           }
+          onInterleavedPacket(mSession, trackId, input, start+4, length);
         }
+        consume(start+4+length);
+        return true;
+      }
 
-        // We always send a response
-        // The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
-        try {
-          response.send(mOutput);
-        } catch (IOException e) {
-          Log.e(TAG,"Response was not sent properly");
+      int headers = -1;
+      for (int i=start; i<end-1; i++) {
+        if (input[i] == '\n' && (input[i+1] == '\n' || (input[i+1] == '\r' && i+2 < end && input[i+2] == '\n'))) {
+          headers = input[i+1] == '\n' ? i+2 : i+3;
           break;
         }
       }
+      if (headers < 0) {
+        consume(start);
+        return false;
+      }
 
-      // Streaming stops when client disconnects
+      String text = new String(input, start, headers-start, UTF8);
+      Matcher matcher = Request.regexContentLength.matcher(text);
+      long content = 0;
+      if (matcher.find()) {
+        try {
+          content = Long.parseLong(matcher.group(1));
+        } catch (NumberFormatException e) {
+          content = Long.MAX_VALUE;
+        }
+      }
+      // The whole request must fit in the input buffer
+      if (content > MAX_REQUEST_LENGTH-(headers-start)) {
+        Log.e(TAG, "Request content too long from "+getAddress()+": "+matcher.group(1));
+        mInput.clear();
+        post(null, Response.STATUS_REQUEST_TOO_LARGE);
+        close();
+        return false;
+      }
+      int total = headers + (int) content;
+      if (total > end) {
+        // The content of the request, ignored, has not been received yet
+        consume(start);
+        return false;
+      }
+      consume(total);
+
+      Request request = null;
+      try {
+        request = Request.parseRequest(new BufferedReader(new StringReader(text)));
+      } catch (Exception e) {
+        // We don't understand the request :/
+      }
+      post(request);
+      return true;
+    }
+
+    /** Discards the first bytes of the input buffer. */
+    private void consume(int length) {
+      if (length == 0) return;
+      mInput.flip();
+      mInput.position(length);
+      mInput.compact();
+    }
+
+    /** Processes a request on the handler thread, null for a request that could not be parsed. */
+    private void post(Request request) {
+      post(request, Response.STATUS_BAD_REQUEST);
+    }
+
+    /** @param error The status of the response if the request is null */
+    private void post(final Request request, final String error) {
+      mHandler.post(new Runnable() {
+        public void run() {
+          handle(request, error);
+        }
+      });
+    }
+
+    private void handle(Request request, String error) {
+      Response response = null;
+
+      if (request == null) {
+        response = new Response();
+        response.status = error;
+      }
+
+      // Do something accordingly like starting the streams, sending a session description
+      if (request != null) {
+        try {
+          response = processRequest(request);
+        }
+        catch (Exception e) {
+          // This alerts the main thread that something has gone wrong in this thread
+          postError(e, ERROR_START_FAILED);
+          Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+          e.printStackTrace();
+          response = new Response(request);
+        }
+      }
+
+      // We always send a response
+      // The client will receive an "INTERNAL SERVER ERROR" if an exception has been thrown at some point
+      try {
+        byte[] bytes = response.getBytes();
+        if (!mWriter.append(bytes, 0, bytes.length)) throw new IOException("Client not reading");
+      } catch (IOException e) {
+        Log.e(TAG,"Response was not sent properly");
+        mAfterResponse = null;
+        close();
+      }
+
+      if (mAfterResponse != null) {
+        Runnable action = mAfterResponse;
+        mAfterResponse = null;
+        action.run();
+      }
+    }
+
+    /** Called on the selector thread when some data is waiting to be written. */
+    void onWriteRequested() {
+      if (mKey != null && mKey.isValid()) {
+        mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+    void onWritable() {
+      try {
+        if (mWriter.flush()) mKey.interestOps(SelectionKey.OP_READ);
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    /** Stops reading from the client, its session is stopped on the handler thread. */
+    void close() {
+      synchronized (this) {
+        if (mClosed) return;
+        mClosed = true;
+      }
+      if (mKey != null) mKey.cancel();
+      mHandler.post(new Runnable() {
+        public void run() {
+          release();
+        }
+      });
+    }
+
+    /** Configures the session described to the client, if the description was cached. */
+    private void configure() throws IOException {
+      if (mConfigured) return;
+      mSession.syncConfigure();
+      mConfigured = true;
+    }
+
+    private void startTrack(int trackId) throws IllegalStateException, IOException {
       boolean streaming = isStreaming();
-      mSession.syncStop();
-      if (streaming && !isStreaming()) {
-        postMessage(MESSAGE_STREAMING_STOPPED);
+      RtcpReceiver receiver = getRtcpReceiver(trackId);
+      if (receiver != null) receiver.setListener(new ReportListener(mSession, trackId));
+      mSession.syncStart(trackId);
+      if (!streaming && isStreaming()) {
+        postMessage(MESSAGE_STREAMING_STARTED);
       }
+      postMessage(MESSAGE_UTILIZATION_CHANGED);
+    }
+
+    private void release() {
+      // Streaming stops when client disconnects
+      teardown();
       mSession.release();
 
       try {
-        mClient.close();
+        mChannel.close();
       } catch (IOException ignore) {}
 
       Log.i(TAG, "Client disconnected");
     }
 
+    /** Stops sending to the client, the encoders are released unless other clients use them. */
+    private void pause() {
+      boolean streaming = isStreaming();
+      boolean running = mSession.isStreaming();
+      mSession.syncStop();
+      if (streaming && !isStreaming()) {
+        postMessage(MESSAGE_STREAMING_STOPPED);
+      }
+      if (running) postMessage(MESSAGE_UTILIZATION_CHANGED);
+    }
+
+    /**
+     * Sets the FEC packets protecting the video track up, see {@link Session#FEC_TRACK}.
+     * They are sent over UDP by the video track, on a port of their own.
+     */
+    private void setupFec(String transport, Response response) throws IOException {
+      if (isInterleaved(transport)) {
+        // Nothing is lost over TCP
+        response.status = Response.STATUS_UNSUPPORTED_TRANSPORT;
+        return;
+      }
+      Matcher m = Pattern.compile("client_port=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE).matcher(transport);
+      if (!m.find()) {
+        response.status = Response.STATUS_BAD_REQUEST;
+        return;
+      }
+      int p1 = Integer.parseInt(m.group(1));
+      int p2 = Integer.parseInt(m.group(2));
+
+      if (mSessionId == null) createSessionId();
+      VideoStream video = mSession.getVideoTrack();
+      video.setFecDestinationPort(p1);
+
+      // The reports about the FEC packets are received with the ones about the video
+      response.attributes = "Transport: RTP/AVP/UDP;unicast" +
+          ";destination=" + mSession.getDestination() +
+          ";client_port=" + p1 + "-" + p2 +
+          ";server_port=" + video.getFecLocalPort() + "-" + video.getLocalPorts()[1] +
+          ";ssrc=" + Integer.toHexString(video.getFecSSRC()) +
+          ";mode=play\r\n" +
+          getSessionHeader() +
+          "Cache-Control: no-cache\r\n";
+      response.status = Response.STATUS_OK;
+    }
+
+    /** Stops and releases the session, the client must DESCRIBE and SETUP again to stream. */
+    private void teardown() {
+      pause();
+      VideoStream video = mSession.getVideoTrack();
+      if (video != null) video.setFecDestinationPort(0);
+      if (mMulticastChannel != null) {
+        mMulticastChannel.leave(this);
+        mMulticastChannel = null;
+      }
+      if (mSessionId != null) {
+        mSessionTable.remove(mSessionId);
+        Log.i(TAG, "Session "+mSessionId+" torn down");
+        mSessionId = null;
+      }
+      Arrays.fill(mChannelTracks, -1);
+      Arrays.fill(mSetupTracks, false);
+      mPaused = false;
+    }
+
+    /** Assigns a new identifier, unique among the sessions of the server, to the session. */
+    private void createSessionId() {
+      String id;
+      do {
+        id = Long.toHexString(mRandom.nextLong() & Long.MAX_VALUE);
+      } while (mSessionTable.putIfAbsent(id, this) != null);
+      mSessionId = id;
+    }
+
+    /** Returns the Session header identifying the session in responses. */
+    private String getSessionHeader() {
+      return "Session: " + mSessionId + (mSessionTimeout > 0 ? ";timeout=" + mSessionTimeout : "") + "\r\n";
+    }
+
+    private boolean trackExists(int id) {
+      return mMulticastChannel != null ? mMulticastChannel.trackExists(id) : mSession.trackExists(id);
+    }
+
+    /** Returns the receiver of the reports of the client for a track of its unicast session. */
+    private RtcpReceiver getRtcpReceiver(int id) {
+      Stream stream = mSession.getTrack(id);
+      return stream instanceof MediaStream ? ((MediaStream) stream).getRtcpReceiver() : null;
+    }
+
+    /**
+     * Forwards the reports of the client, and tears its session down when it says BYE.
+     * Reports received over UDP keep the session alive, like requests do.
+     */
+    private class ReportListener implements RtcpReceiver.Listener {
+      private final Session mReportedSession;
+      private final int mTrackId;
+
+      ReportListener(Session session, int trackId) {
+        mReportedSession = session;
+        mTrackId = trackId;
+      }
+
+      @Override
+      public void onMemberJoined(RtcpReceiver receiver, int ssrc) {
+        touch();
+      }
+
+      @Override
+      public void onMemberLeft(RtcpReceiver receiver, int ssrc, boolean bye) {
+        // A client that stops reporting is left to the session timeout
+        if (!bye) return;
+        mHandler.post(new Runnable() {
+          public void run() {
+            if (mSession != mReportedSession || mSessionId == null) return;
+            Log.i(TAG, "BYE from "+getAddress());
+            teardown();
+            mSession.release();
+            mSession = new Session();
+          }
+        });
+      }
+
+      @Override
+      public void onReceptionReport(RtcpReceiver receiver, ReceptionReport report) {
+        touch();
+        postReceptionReport(mReportedSession, mTrackId, report);
+      }
+
+      private void touch() {
+        if (mSession == mReportedSession) mLastActivity = now();
+      }
+    }
+
     public Response processRequest(Request request) throws IllegalStateException, IOException {
       Response response = new Response(request);
 
@@ -438,6 +1316,10 @@ public class RtspServer extends Service {
         response.attributes = "WWW-Authenticate: Basic realm=\""+SERVER_NAME+"\"\r\n";
         response.status = Response.STATUS_UNAUTHORIZED;
       }
+      else if (request.getSessionId() != null && !request.getSessionId().equals(mSessionId))
+      {
+        response.status = Response.STATUS_SESSION_NOT_FOUND;
+      }
       else
       {
         /* ********************************************************************************** */
@@ -445,12 +1327,35 @@ public class RtspServer extends Service {
         /* ********************************************************************************** */
         if (request.method.equalsIgnoreCase("DESCRIBE")) {
 
-          // Parse the requested URI and configure the session
-          mSession = handleRequest(request.uri, mClient);
-          mSessions.put(mSession, null);
-          mSession.syncConfigure();
+          // A new description replaces the session the client may have set up
+          teardown();
+          mSession.release();
 
-          String requestContent = mSession.getSessionDescription();
+          // Parse the requested URI and configure the session
+          Session session = handleRequest(request.uri, mClient);
+          String requestContent;
+          if (session.isMulticast()) {
+            // Every client asking for the same multicast session receives the same channel
+            mMulticastChannel = getMulticastChannel(session);
+            mSession = new Session();
+            requestContent = mMulticastChannel.getSessionDescription();
+          } else {
+            mSession = session;
+            synchronized (mSessions) {
+              mSessions.put(mSession, null);
+            }
+            degrade(mSession);
+            // The encoders are only tested on a miss, a hit configures the session in SETUP
+            long start = System.nanoTime();
+            mConfigured = false;
+            requestContent = mSession.getCachedSessionDescription();
+            boolean cached = requestContent != null;
+            if (!cached) {
+              configure();
+              requestContent = mSession.getSessionDescription();
+            }
+            Log.d(TAG,"Session described in "+(System.nanoTime()-start)/1000000+" ms"+(cached ? ", from the cache" : ""));
+          }
           String requestAttributes =
               "Content-Base: " + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/\r\n" +
               "Content-Type: application/sdp\r\n";
@@ -467,7 +1372,7 @@ public class RtspServer extends Service {
         /* ********************************************************************************** */
         else if (request.method.equalsIgnoreCase("OPTIONS")) {
           response.status = Response.STATUS_OK;
-          response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE\r\n";
+          response.attributes = "Public: DESCRIBE,SETUP,TEARDOWN,PLAY,PAUSE,GET_PARAMETER\r\n";
           response.status = Response.STATUS_OK;
         }
 
@@ -490,42 +1395,112 @@ public class RtspServer extends Service {
 
           trackId = Integer.parseInt(m.group(1));
 
-          if (!mSession.trackExists(trackId)) {
+          if (!trackExists(trackId)) {
             response.status = Response.STATUS_NOT_FOUND;
             return response;
           }
 
-          p = Pattern.compile("client_port=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE);
-          m = p.matcher(request.headers.get("transport"));
+          String refused = checkAdmission(mSessionId == null, mMulticastChannel != null
+              ? mMulticastChannel.getSession().getTrack(trackId) : mSession.getTrack(trackId));
+          if (refused != null) {
+            Log.w(TAG,"SETUP from "+getAddress()+" refused, limit of "+refused+" reached");
+            postMessage(MESSAGE_ADMISSION_REFUSED);
+            response.status = Response.STATUS_NOT_ENOUGH_BANDWIDTH;
+            return response;
+          }
 
-          if (!m.find()) {
-            int[] ports = mSession.getTrack(trackId).getDestinationPorts();
-            p1 = ports[0];
-            p2 = ports[1];
+          String transport = request.headers.get("transport");
+          if (transport == null) transport = "";
+
+          if (mMulticastChannel != null) {
+            // The channel is already configured, the transport is the same for every client
+            if (mSessionId == null) createSessionId();
+            mMulticastChannel.start(this, trackId);
+            response.attributes = mMulticastChannel.getTransport(trackId, getProfile(transport)) +
+                getSessionHeader() +
+                "Cache-Control: no-cache\r\n";
+            response.status = Response.STATUS_OK;
+            return response;
+          }
+
+          configure();
+          if (trackId == Session.FEC_TRACK) {
+            setupFec(transport, response);
+            return response;
+          }
+          boolean interleaved = isInterleaved(transport);
+
+          if (interleaved) {
+            // RTP and RTCP are sent over the RTSP connection, RTCP on the channel following the RTP one
+            p = Pattern.compile("interleaved=(\\d+)", Pattern.CASE_INSENSITIVE);
+            m = p.matcher(transport);
+            p1 = m.find() ? Integer.parseInt(m.group(1)) : 2*trackId;
+            p2 = p1+1;
+            if (p2 > 255) {
+              response.status = Response.STATUS_BAD_REQUEST;
+              return response;
+            }
           } else {
-            p1 = Integer.parseInt(m.group(1));
-            p2 = Integer.parseInt(m.group(2));
+            p = Pattern.compile("client_port=(\\d+)-(\\d+)", Pattern.CASE_INSENSITIVE);
+            m = p.matcher(transport);
+
+            if (!m.find()) {
+              int[] ports = mSession.getTrack(trackId).getDestinationPorts();
+              p1 = ports[0];
+              p2 = ports[1];
+            } else {
+              p1 = Integer.parseInt(m.group(1));
+              p2 = Integer.parseInt(m.group(2));
+            }
           }
 
+          if (mSessionId == null) createSessionId();
+          if (trackId < mSetupTracks.length) mSetupTracks[trackId] = true;
+
           ssrc = mSession.getTrack(trackId).getSSRC();
           src = mSession.getTrack(trackId).getLocalPorts();
           destination = mSession.getDestination();
 
-          mSession.getTrack(trackId).setDestinationPorts(p1, p2);
+          if (interleaved) {
+            mSession.getTrack(trackId).setInterleavedWriter(mWriter, (byte) p1);
+            mChannelTracks[p1] = trackId;
+            mChannelTracks[p2] = trackId;
+          } else {
+            mSession.getTrack(trackId).setDestinationPorts(p1, p2);
+          }
 
-          boolean streaming = isStreaming();
-          mSession.syncStart(trackId);
-          if (!streaming && isStreaming()) {
-            postMessage(MESSAGE_STREAMING_STARTED);
+          if (interleaved) {
+            // Packets must not reach the client before the response
+            final int track = trackId;
+            mAfterResponse = new Runnable() {
+              public void run() {
+                try {
+                  startTrack(track);
+                } catch (Exception e) {
+                  postError(e, ERROR_START_FAILED);
+                  Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+                }
+              }
+            };
+          } else {
+            startTrack(trackId);
           }
 
-          response.attributes = "Transport: RTP/AVP/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
-              ";destination=" + mSession.getDestination() +
-              ";client_port=" + p1 + "-" + p2 +
-              ";server_port=" + src[0] + "-" + src[1] +
-              ";ssrc=" + Integer.toHexString(ssrc) +
-              ";mode=play\r\n" +
-              "Session: " + "1185d20035702ca" + "\r\n" +
+          if (interleaved) {
+            response.attributes = "Transport: " + getProfile(transport) + "/TCP;unicast" +
+                ";interleaved=" + p1 + "-" + p2 +
+                ";ssrc=" + Integer.toHexString(ssrc) +
+                ";mode=play\r\n";
+          } else {
+            response.attributes = "Transport: " + getProfile(transport) + "/UDP;" + (InetAddress.getByName(destination).isMulticastAddress() ? "multicast" : "unicast") +
+                ";destination=" + mSession.getDestination() +
+                ";client_port=" + p1 + "-" + p2 +
+                ";server_port=" + src[0] + "-" + src[1] +
+                ";ssrc=" + Integer.toHexString(ssrc) +
+                ";mode=play\r\n";
+          }
+          response.attributes +=
+              getSessionHeader() +
               "Cache-Control: no-cache\r\n";
           response.status = Response.STATUS_OK;
 
@@ -537,12 +1512,35 @@ public class RtspServer extends Service {
         /* ********************************** Method PLAY *********************************** */
         /* ********************************************************************************** */
         else if (request.method.equalsIgnoreCase("PLAY")) {
+          if (mSessionId == null) {
+            response.status = Response.STATUS_METHOD_NOT_VALID;
+            return response;
+          }
+
+          if (mPaused) {
+            // Packets must not reach the client before the response
+            mPaused = false;
+            mAfterResponse = new Runnable() {
+              public void run() {
+                for (int id=0; id<mSetupTracks.length; id++) {
+                  if (!mSetupTracks[id]) continue;
+                  try {
+                    startTrack(id);
+                  } catch (Exception e) {
+                    postError(e, ERROR_START_FAILED);
+                    Log.e(TAG,e.getMessage()!=null?e.getMessage():"An error occurred");
+                  }
+                }
+              }
+            };
+          }
+
           String requestAttributes = "RTP-Info: ";
-          if (mSession.trackExists(0))
+          if (trackExists(0))
             requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 0 + ";seq=0,";
-          if (mSession.trackExists(1))
+          if (trackExists(1))
             requestAttributes += "url=rtsp://" + mClient.getLocalAddress().getHostAddress() + ":" + mClient.getLocalPort() + "/trackID=" + 1 + ";seq=0,";
-          requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\nSession: 1185d20035702ca\r\n";
+          requestAttributes = requestAttributes.substring(0, requestAttributes.length() - 1) + "\r\n" + getSessionHeader();
 
           response.attributes = requestAttributes;
 
@@ -554,6 +1552,25 @@ public class RtspServer extends Service {
         /* ********************************** Method PAUSE ********************************** */
         /* ********************************************************************************** */
         else if (request.method.equalsIgnoreCase("PAUSE")) {
+          if (mSessionId == null) {
+            response.status = Response.STATUS_METHOD_NOT_VALID;
+            return response;
+          }
+          // A multicast channel keeps running for the other receivers
+          if (mMulticastChannel == null) {
+            pause();
+            mPaused = true;
+          }
+          response.attributes = getSessionHeader();
+          response.status = Response.STATUS_OK;
+        }
+
+        /* ********************************************************************************** */
+        /* ******************************* Method GET_PARAMETER ***************************** */
+        /* ********************************************************************************** */
+        else if (request.method.equalsIgnoreCase("GET_PARAMETER")) {
+          // No parameter is supported, the request only keeps the session alive
+          if (mSessionId != null) response.attributes = getSessionHeader();
           response.status = Response.STATUS_OK;
         }
 
@@ -561,6 +1578,9 @@ public class RtspServer extends Service {
         /* ********************************* Method TEARDOWN ******************************** */
         /* ********************************************************************************** */
         else if (request.method.equalsIgnoreCase("TEARDOWN")) {
+          teardown();
+          mSession.release();
+          mSession = new Session();
           response.status = Response.STATUS_OK;
         }
 
@@ -604,11 +1624,21 @@ public class RtspServer extends Service {
     public static final Pattern regexMethod = Pattern.compile("(\\w+) (\\S+) RTSP",Pattern.CASE_INSENSITIVE);
     // Parse a request header
     public static final Pattern rexegHeader = Pattern.compile("(\\S+):(.+)",Pattern.CASE_INSENSITIVE);
+    // Parse the length of the content of a request
+    public static final Pattern regexContentLength = Pattern.compile("^Content-Length:\\s*(\\d+)",Pattern.CASE_INSENSITIVE|Pattern.MULTILINE);
 
     public String method;
     public String uri;
     public HashMap<String,String> headers = new HashMap<String,String>();
 
+    /** Returns the session identifier sent by the client, without its parameters, or null. */
+    public String getSessionId() {
+      String session = headers.get("session");
+      if (session == null) return null;
+      int end = session.indexOf(';');
+      return (end < 0 ? session : session.substring(0, end)).trim();
+    }
+
     /** Parse the method, uri & headers of a RTSP request */
     public static Request parseRequest(BufferedReader input) throws IOException, IllegalStateException, SocketException {
       Request request = new Request();
@@ -644,6 +1674,11 @@ public class RtspServer extends Service {
     public static final String STATUS_BAD_REQUEST = "400 Bad Request";
     public static final String STATUS_UNAUTHORIZED = "401 Unauthorized";
     public static final String STATUS_NOT_FOUND = "404 Not Found";
+    public static final String STATUS_REQUEST_TOO_LARGE = "413 Request Entity Too Large";
+    public static final String STATUS_NOT_ENOUGH_BANDWIDTH = "453 Not Enough Bandwidth";
+    public static final String STATUS_SESSION_NOT_FOUND = "454 Session Not Found";
+    public static final String STATUS_METHOD_NOT_VALID = "455 Method Not Valid in This State";
+    public static final String STATUS_UNSUPPORTED_TRANSPORT = "461 Unsupported Transport";
     public static final String STATUS_INTERNAL_SERVER_ERROR = "500 Internal Server Error";
 
     public String status = STATUS_INTERNAL_SERVER_ERROR;
@@ -661,7 +1696,7 @@ public class RtspServer extends Service {
       mRequest = null;
     }
 
-    public void send(OutputStream output) throws IOException {
+    public byte[] getBytes() {
       int seqid = -1;
 
       try {
@@ -681,7 +1716,7 @@ public class RtspServer extends Service {
 
       Log.d(TAG,response.replace("\r", ""));
 
-      output.write(response.getBytes());
+      return response.getBytes(UTF8);
     }
   }
 }
@@ -78,6 +78,11 @@ public class UriParser {
    *   </ul>
    * </li>
    * </li>
+   * <li>rtsp://xxx.xxx.xxx.xxx:8554?h264&gop=20
+   *   <ul>
+   *     <li>video: h264, one key frame every 20 seconds, and one whenever a client asks for it with a PLI or a FIR</li>
+   *   </ul>
+   * </li>
    * <li>rtsp://xxx.xxx.xxx.xxx:8554?amr
    *   <ul>
    *     <li>video: h264, framerate=20 (20 fps), bitrate=524288 (.5 Mbps)</li>
@@ -99,6 +104,7 @@ public class UriParser {
    * <li>rtsp://xxx.xxx.xxx.xxx:8554?multicast
    *   <ul>
    *     <li>destination: 228.5.6.7</li>
+   *     <li>the {@link RtspServer} sends a single stream to the group, whatever the number of clients</li>
    *   </ul>
    * </li>
    * <li>rtsp://xxx.xxx.xxx.xxx:8554?multicast=228.6.7.8
@@ -215,6 +221,19 @@ public class UriParser {
           }
         }
 
+        // GOP -> interval between two key frames in seconds, receivers ask for the others with a PLI or a FIR
+        else if (paramName.equalsIgnoreCase("gop")) {
+          if (paramValue!=null) {
+            try {
+              int gop = Integer.parseInt(paramValue);
+              if (gop<=0) throw new IllegalStateException();
+              builder.setKeyFrameInterval(gop);
+            } catch (Exception e) {
+              throw new IllegalStateException("The GOP must be a positive integer !");
+            }
+          }
+        }
+
         // H.264
         else if (paramName.equalsIgnoreCase("h264")) {
           VideoQuality quality = VideoQuality.parseQuality(paramValue);
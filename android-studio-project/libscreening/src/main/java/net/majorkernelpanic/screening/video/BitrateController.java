@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.video;
+
+import net.majorkernelpanic.screening.rtcp.ReceptionReport;
+import net.majorkernelpanic.screening.rtcp.RtcpReceiver;
+import net.majorkernelpanic.screening.rtp.RtpSocket;
+
+import android.media.MediaCodec;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Adapts the bitrate of a running encoder to the network, without restarting it.
+ *
+ * Like the loss based controller of GCC, the rate is decreased in proportion to the
+ * losses when the receivers report more than {@link #HIGH_LOSS}, held between
+ * {@link #LOW_LOSS} and {@link #HIGH_LOSS}, and increased by {@link #INCREASE} per
+ * interval below. Like its delay based controller, the rate is also decreased below the
+ * bitrate actually sent when packets wait in the FIFO of the {@link RtpSocket} for
+ * longer than {@link #setQueueDelayThreshold(int)} ms, when the jitter reported
+ * by the receivers grows, or when their round trip time rises above its baseline.
+ * When the encoder feeds a broadcast, the worst receiver wins, and the pacers of
+ * every subscriber follow the bitrate of the encoder.
+ *
+ * Every decision is logged with its inputs, under the tag {@link #TAG}.
+ */
+public class BitrateController implements Runnable {
+  public final static String TAG = "BitrateController";
+
+  /** Default interval between two decisions in ms. */
+  public static final int DEFAULT_INTERVAL = 1000;
+
+  /** Default queue delay in ms above which the network is considered congested. */
+  public static final int DEFAULT_QUEUE_DELAY_THRESHOLD = 100;
+
+  /** Fraction of packets lost above which the rate is decreased. */
+  public static final float HIGH_LOSS = 0.10f;
+
+  /** Fraction of packets lost below which the rate may be increased. */
+  public static final float LOW_LOSS = 0.02f;
+
+  /** Factor applied to the rate by an increase. */
+  public static final float INCREASE = 1.08f;
+
+  /** Factor applied to the bitrate sent when the delay grows. */
+  public static final float DELAY_DECREASE = 0.85f;
+
+  // Changes smaller than this are not worth a reconfiguration of the encoder
+  private static final float MIN_CHANGE = 0.03f;
+  // Number of intervals without increase after a decrease
+  private static final int HOLD_INTERVALS = 2;
+  // Round trip time in ms above the baseline that is not yet taken for queuing
+  private static final int RTT_MARGIN = 30;
+
+  private final MediaCodec mCodec;
+  private final RtpSocket mSocket;
+  private final int mFramerate;
+  private final int mMinBitrate, mMaxBitrate, mInitialBitrate;
+  private volatile int mInterval = DEFAULT_INTERVAL;
+  private volatile int mQueueDelayThreshold = DEFAULT_QUEUE_DELAY_THRESHOLD;
+  private volatile int mBitrate;
+
+  // Only used by the thread of the controller
+  private final HashMap<RtcpReceiver,ReceptionReport> mLastReports = new HashMap<RtcpReceiver,ReceptionReport>();
+  private float mJitter = -1;
+  private long mRtt = -1;
+  private int mHold = 0;
+  private Thread mThread = null;
+
+  /**
+   * @param codec The running encoder
+   * @param socket The socket the encoder feeds, directly or through its sinks
+   * @param framerate The frame rate of the stream, for the {@link net.majorkernelpanic.screening.rtp.Pacer}
+   * @param bitrate The bitrate the encoder was configured with
+   * @param min The lowest bitrate the controller may set
+   * @param max The highest bitrate the controller may set
+   */
+  public BitrateController(MediaCodec codec, RtpSocket socket, int framerate, int bitrate, int min, int max) {
+    mCodec = codec;
+    mSocket = socket;
+    mFramerate = framerate;
+    mMinBitrate = Math.min(min, max);
+    mMaxBitrate = max;
+    mInitialBitrate = bitrate;
+    mBitrate = Math.max(mMinBitrate, Math.min(mMaxBitrate, bitrate));
+  }
+
+  /** Sets the interval between two decisions in ms. */
+  public void setInterval(int interval) {
+    mInterval = interval;
+  }
+
+  /** Sets the queue delay in ms above which the network is considered congested. */
+  public void setQueueDelayThreshold(int threshold) {
+    mQueueDelayThreshold = threshold;
+  }
+
+  /** Returns the bitrate last set on the encoder in bit per second. */
+  public int getBitrate() {
+    return mBitrate;
+  }
+
+  public synchronized void start() {
+    if (mThread == null) {
+      if (mBitrate != mInitialBitrate) apply(mBitrate);
+      mThread = new Thread(this, TAG);
+      mThread.start();
+    }
+  }
+
+  public synchronized void stop() {
+    if (mThread != null) {
+      mThread.interrupt();
+      try {
+        mThread.join();
+      } catch (InterruptedException ignore) {}
+      mThread = null;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (!Thread.interrupted()) {
+        Thread.sleep(mInterval);
+        update();
+      }
+    } catch (InterruptedException ignore) {}
+  }
+
+  /** Takes a decision from the reports received and the state of the FIFO since the last one. */
+  private void update() {
+    List<RtpSocket> sockets = mSocket.getSinkCount() > 0 ? mSocket.getSinks() : Collections.singletonList(mSocket);
+
+    float loss = -1, jitter = -1;
+    long rtt = -1, queueDelay = mSocket.getPacer().getQueueDelay();
+    for (RtpSocket socket : sockets) {
+      queueDelay = Math.max(queueDelay, socket.getPacer().getQueueDelay());
+      RtcpReceiver receiver = socket.getRtcpReceiver();
+      ReceptionReport report = receiver.getLastReport();
+      // Only reports received since the last decision count
+      if (report == null || report == mLastReports.get(receiver)) continue;
+      mLastReports.put(receiver, report);
+      loss = Math.max(loss, report.fractionLost);
+      jitter = Math.max(jitter, report.jitter);
+      rtt = Math.max(rtt, report.rtt);
+    }
+    if (mLastReports.size() > 4*sockets.size()) mLastReports.clear();
+
+    // The jitter grows with the queues of the network
+    boolean jitterRising = false;
+    if (jitter >= 0) {
+      jitterRising = mJitter >= 0 && jitter > 1.5f*mJitter + 5;
+      mJitter = mJitter < 0 ? jitter : (7*mJitter + jitter)/8;
+    }
+
+    // So does the round trip time, its baseline follows decreases at once and increases slowly
+    boolean rttRising = false;
+    if (rtt >= 0) {
+      rttRising = mRtt >= 0 && rtt > mRtt + Math.max(RTT_MARGIN, mRtt/2);
+      mRtt = mRtt < 0 || rtt < mRtt ? rtt : (15*mRtt + rtt)/16;
+    }
+
+    long sent = mSocket.getBitrate();
+    int rate = mBitrate;
+    String action;
+    if (loss > HIGH_LOSS) {
+      rate = (int) (rate*(1-0.5f*loss));
+      action = "loss";
+    } else if (queueDelay > mQueueDelayThreshold || jitterRising || rttRising) {
+      rate = (int) (DELAY_DECREASE*(sent > 0 ? Math.min(rate, sent) : rate));
+      action = "delay";
+    } else if (mHold > 0) {
+      mHold--;
+      action = "hold";
+    } else if (loss < LOW_LOSS) {
+      // Without any report, only the FIFO tells about congestion
+      rate = (int) (rate*INCREASE);
+      action = "increase";
+    } else {
+      action = "hold";
+    }
+    rate = Math.max(mMinBitrate, Math.min(mMaxBitrate, rate));
+    if (rate < mBitrate) mHold = HOLD_INTERVALS;
+
+    boolean changed = Math.abs(rate-mBitrate) >= MIN_CHANGE*mBitrate ||
+        (rate != mBitrate && (rate == mMinBitrate || rate == mMaxBitrate));
+    String inputs = "loss: "+(loss < 0 ? "-" : Math.round(loss*100)+"%")+", jitter: "+(jitter < 0 ? "-" : jitter+" ms")+
+        ", rtt: "+(rtt < 0 ? "-" : rtt+" ms (base "+mRtt+")")+", queue: "+queueDelay+" ms, sent: "+sent/1000+" kbps";
+    if (changed) {
+      Log.i(TAG, inputs+" -> "+action+", "+mBitrate/1000+" to "+rate/1000+" kbps");
+      apply(rate);
+    } else {
+      Log.d(TAG, inputs+" -> "+action+", "+mBitrate/1000+" kbps");
+      // Subscribers that joined since the last change were configured with their own quality
+      configurePacers(mBitrate);
+    }
+  }
+
+  private void apply(int bitrate) {
+    Bundle params = new Bundle();
+    params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+    try {
+      mCodec.setParameters(params);
+    } catch (IllegalStateException e) {
+      // The encoder is being released
+      return;
+    }
+    mBitrate = bitrate;
+    configurePacers(bitrate);
+  }
+
+  /** Paces the packets of the encoder at its bitrate, in the socket it feeds and in its sinks. */
+  private void configurePacers(int bitrate) {
+    mSocket.getPacer().configure(bitrate, mFramerate);
+    for (RtpSocket sink : mSocket.getSinks()) {
+      sink.getPacer().configure(bitrate, mFramerate);
+    }
+  }
+}
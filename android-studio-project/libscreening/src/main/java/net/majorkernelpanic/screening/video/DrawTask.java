@@ -72,6 +72,10 @@ public final class DrawTask extends EglTask {
   private VirtualDisplay      display;
   private boolean             mIsRecording;
   private boolean             requestDraw;
+  // While paused, the virtual display is detached from its surface and nothing is drawn
+  private volatile boolean    mPaused;
+  // Whether the draw loop is queued, only used on the thread of the task
+  private boolean             mDrawing;
 
   // Callback listener when receiving the video at TextureSurface
   private final SurfaceTexture.OnFrameAvailableListener mOnFrameAvailableListener = new SurfaceTexture.OnFrameAvailableListener() {
@@ -124,6 +128,10 @@ public final class DrawTask extends EglTask {
     @Override
     public void run() {
     //if (DEBUG) Log.v(TAG, "draw");
+      if (mPaused) {
+        mDrawing = false;
+        return;
+      }
       boolean local_request_draw;
       synchronized (mSync) {
         local_request_draw = requestDraw;
@@ -166,12 +174,28 @@ public final class DrawTask extends EglTask {
     final MediaProjection mediaProjection,
     final Surface surface,
     final VideoQuality quality
+  ) {
+    this(sharedContext, flags, mediaProjection, surface, quality, /* paused= */ false);
+  }
+
+  /**
+   * @param paused If true, the EGL context and the virtual display are set up, but
+   *               nothing is captured until {@link #resume()} is called
+   */
+  public DrawTask(
+    final EGLBase.IContext sharedContext,
+    final int flags,
+    final MediaProjection mediaProjection,
+    final Surface surface,
+    final VideoQuality quality,
+    final boolean paused
   ) {
     super(sharedContext, flags);
 
     this.mMediaProjection = mediaProjection;
     this.mSurface         = surface;
     this.mQuality         = quality;
+    this.mPaused          = paused;
 
     final HandlerThread thread = new HandlerThread(TAG);
     thread.start();
@@ -196,14 +220,45 @@ public final class DrawTask extends EglTask {
       "RTSP ScreenCaster",
       mQuality.screenWidth, mQuality.screenHeight, mQuality.screenDpi,
       DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-      mSourceSurface, mCallback, mHandler
+      mPaused ? null : mSourceSurface, mCallback, mHandler
     );
     if (DEBUG) Log.v(TAG, "screen capture loop: display=" + display);
 
     mIsRecording = true;
     requestDraw  = false;
 
-    queueEvent(mDrawTask);
+    if (!mPaused) {
+      mDrawing = true;
+      queueEvent(mDrawTask);
+    }
+  }
+
+  /** Stops capturing the screen, the EGL context and the virtual display are kept. */
+  public void pause() {
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        if (mPaused) return;
+        mPaused = true;
+        if (display != null) display.setSurface(null);
+      }
+    });
+  }
+
+  /** Captures the screen again after {@link #pause()}, or after being created paused. */
+  public void resume() {
+    queueEvent(new Runnable() {
+      @Override
+      public void run() {
+        if (!mPaused) return;
+        mPaused = false;
+        if (display != null) display.setSurface(mSourceSurface);
+        if (!mDrawing) {
+          mDrawing = true;
+          queueEvent(mDrawTask);
+        }
+      }
+    });
   }
 
   private void releaseAllResources() {
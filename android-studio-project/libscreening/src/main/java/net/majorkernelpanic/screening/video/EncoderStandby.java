@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.video;
+
+import net.majorkernelpanic.screening.BroadcastHub;
+import net.majorkernelpanic.screening.MediaStream;
+
+import android.media.MediaCodec;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * Keeps an encoder ready for the next {@link VideoStream} of a given configuration,
+ * so that it starts streaming without creating and configuring one.
+ *
+ * With {@link #TIER_ENCODER}, a configured and started encoder and its input surface
+ * are kept. With {@link #TIER_PIPELINE}, the EGL context and the virtual display
+ * capturing the screen are kept as well, the virtual display being paused.
+ *
+ * The standby is handed over to the first stream of the same configuration that starts
+ * (see {@link MediaStream#getConfigKey()}), and another one is prepared in the background
+ * once no stream of that configuration is running. A standby nobody takes is released
+ * after {@link #setIdleTimeout(long)} ms, until a stream of the configuration stops again.
+ */
+public class EncoderStandby {
+  public final static String TAG = "EncoderStandby";
+
+  /** Nothing is kept ready. */
+  public static final int TIER_NONE = 0;
+
+  /** A configured encoder is kept ready. */
+  public static final int TIER_ENCODER = 1;
+
+  /** A configured encoder, the EGL context feeding it and a paused virtual display are kept ready. */
+  public static final int TIER_PIPELINE = 2;
+
+  /** Default time in ms after which a standby nobody takes is released. */
+  public static final long DEFAULT_IDLE_TIMEOUT = 5*60*1000;
+
+  /** What is handed over to a stream. */
+  static class Pipeline {
+    MediaCodec codec;
+    Surface surface;
+    DrawTask task;
+    Thread thread;
+
+    void release() {
+      if (thread != null) thread.interrupt();
+      if (task != null) task.release();
+      if (codec != null) {
+        try {
+          codec.stop();
+        } catch (Exception ignore) {}
+        codec.release();
+      }
+      if (surface != null) surface.release();
+    }
+  }
+
+  private static VideoStream sTemplate = null;
+  private static String sKey = null;
+  private static int sTier = TIER_NONE;
+  private static long sIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+  private static Pipeline sStandby = null;
+  private static boolean sPreparing = false;
+  private static Handler sHandler = null;
+
+  // Only static methods
+  private EncoderStandby() {}
+
+  /**
+   * Keeps an encoder ready for the streams configured like the one given.
+   * @param template A configured stream, encoded with the MediaCodec API
+   * @param tier {@link #TIER_NONE}, {@link #TIER_ENCODER} or {@link #TIER_PIPELINE}
+   */
+  public static synchronized void enable(VideoStream template, int tier) {
+    disable();
+    if (tier == TIER_NONE) return;
+    if (template.getStreamingMethod() != MediaStream.MODE_MEDIACODEC_API) {
+      Log.w(TAG,"Only streams encoded with the MediaCodec API can have an encoder in standby");
+      return;
+    }
+    if (sHandler == null) {
+      HandlerThread thread = new HandlerThread(TAG);
+      thread.start();
+      sHandler = new Handler(thread.getLooper());
+    }
+    sTemplate = template;
+    sKey = template.getConfigKey();
+    sTier = tier;
+    requestStandby();
+  }
+
+  /** Releases the standby and stops preparing one. */
+  public static synchronized void disable() {
+    sTemplate = null;
+    sKey = null;
+    sTier = TIER_NONE;
+    releaseStandby();
+  }
+
+  /**
+   * Sets the time after which a standby nobody takes is released.
+   * @param timeout The timeout in ms, 0 to keep it until a stream takes it
+   */
+  public static synchronized void setIdleTimeout(long timeout) {
+    sIdleTimeout = timeout;
+  }
+
+  public static synchronized int getTier() {
+    return sTier;
+  }
+
+  /** Whether an encoder is ready. */
+  public static synchronized boolean isReady() {
+    return sStandby != null;
+  }
+
+  /** Hands the standby over to a stream if it was prepared for its configuration, returns null otherwise. */
+  static synchronized Pipeline take(VideoStream stream) {
+    if (sStandby == null || !stream.getConfigKey().equals(sKey)) return null;
+    Pipeline standby = sStandby;
+    sStandby = null;
+    sHandler.removeCallbacks(sIdleRelease);
+    Log.i(TAG,"Encoder taken from standby");
+    return standby;
+  }
+
+  /** Prepares a new standby in the background, if none is ready. */
+  static synchronized void requestStandby() {
+    if (sTemplate == null || sStandby != null || sPreparing) return;
+    sPreparing = true;
+    sHandler.post(sPrepare);
+  }
+
+  private static void releaseStandby() {
+    if (sHandler != null) sHandler.removeCallbacks(sIdleRelease);
+    if (sStandby != null) {
+      sStandby.release();
+      sStandby = null;
+    }
+  }
+
+  private static final Runnable sPrepare = new Runnable() {
+    @Override
+    public void run() {
+      VideoStream template;
+      int tier;
+      String key;
+      synchronized (EncoderStandby.class) {
+        template = sTemplate;
+        tier = sTier;
+        key = sKey;
+      }
+
+      // While the configuration is streamed, new clients share its encoder
+      Pipeline standby = null;
+      if (template != null && BroadcastHub.getSource(key) == null) {
+        try {
+          standby = prepare(template, tier);
+        } catch (Exception e) {
+          Log.w(TAG,"No encoder could be put in standby: "+e.getMessage());
+        }
+      }
+
+      synchronized (EncoderStandby.class) {
+        sPreparing = false;
+        if (standby == null) return;
+        if (template != sTemplate || sStandby != null) {
+          standby.release();
+          return;
+        }
+        sStandby = standby;
+        if (sIdleTimeout > 0) sHandler.postDelayed(sIdleRelease, sIdleTimeout);
+        Log.i(TAG,"Encoder in standby for "+key);
+      }
+    }
+  };
+
+  private static final Runnable sIdleRelease = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (EncoderStandby.class) {
+        if (sStandby == null) return;
+        Log.i(TAG,"Encoder in standby released, nobody took it");
+        releaseStandby();
+      }
+    }
+  };
+
+  private static Pipeline prepare(VideoStream template, int tier) throws Exception {
+    Pipeline standby = new Pipeline();
+    try {
+      standby.codec = template.createEncoder();
+      standby.codec.configure(template.createMediaFormat(), /* surface= */ null, /* crypto= */ null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      standby.surface = standby.codec.createInputSurface();
+      standby.codec.start();
+
+      if (tier >= TIER_PIPELINE && VideoStream.MEDIA_PROJECTION != null) {
+        standby.task   = new DrawTask(/* sharedContext= */ null, /* flags= */ 0, VideoStream.MEDIA_PROJECTION, standby.surface, template.mQuality, /* paused= */ true);
+        standby.thread = new Thread(standby.task, "ScreenCaptureThread");
+        standby.thread.start();
+      }
+      return standby;
+    } catch (Exception e) {
+      standby.release();
+      throw e;
+    }
+  }
+}
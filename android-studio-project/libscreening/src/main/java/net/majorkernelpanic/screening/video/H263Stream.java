@@ -20,6 +20,7 @@
 
 package net.majorkernelpanic.screening.video;
 
+import net.majorkernelpanic.screening.MediaStream;
 import net.majorkernelpanic.screening.Session;
 import net.majorkernelpanic.screening.SessionBuilder;
 import net.majorkernelpanic.screening.rtp.H263Packetizer;
@@ -52,6 +53,11 @@ public class H263Stream extends VideoStream {
     mMode = MODE_MEDIARECORDER_API;
   }
 
+  @Override
+  protected MediaStream newBroadcastSource() {
+    return newBroadcastSource(new H263Stream());
+  }
+
   /**
    * Returns a description of the stream using SDP. It can then be included in an SDP file.
    */
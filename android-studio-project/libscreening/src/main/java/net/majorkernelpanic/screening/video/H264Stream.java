@@ -20,23 +20,33 @@
 
 package net.majorkernelpanic.screening.video;
 
+import net.majorkernelpanic.screening.BroadcastHub;
+import net.majorkernelpanic.screening.MediaStream;
+import net.majorkernelpanic.screening.SdpCache;
 import net.majorkernelpanic.screening.Session;
 import net.majorkernelpanic.screening.SessionBuilder;
-import net.majorkernelpanic.screening.hw.EncoderDebugger;
+import net.majorkernelpanic.screening.hw.CodecManager;
 import net.majorkernelpanic.screening.mp4.MP4Config;
+import net.majorkernelpanic.screening.rtp.FecEncoder;
 import net.majorkernelpanic.screening.rtp.H264Packetizer;
 
 import android.annotation.SuppressLint;
 import android.content.SharedPreferences.Editor;
 import android.hardware.display.DisplayManager;
 import android.hardware.display.VirtualDisplay;
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
 import android.media.MediaRecorder;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 import android.view.Surface;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -50,8 +60,17 @@ import java.util.concurrent.TimeUnit;
 public class H264Stream extends VideoStream {
   public final static String TAG = "H264Stream";
 
+  /** Maximum time in ms to wait for the parameters of the encoder. */
+  private static final int PROBE_TIMEOUT = 3000;
+
+  // Parameters already determined in this process, keyed like in the SharedPreferences
+  private static final HashMap<String,MP4Config> sConfigs = new HashMap<String,MP4Config>();
+  // Only one test runs at a time, streams configured meanwhile then find its result in the cache
+  private static final Object sTestLock = new Object();
+
   private Semaphore mLock = new Semaphore(0);
   private MP4Config mConfig;
+  private long mConfigureDuration = 0;
 
   /**
    * Constructs the H.264 stream.
@@ -68,11 +87,32 @@ public class H264Stream extends VideoStream {
    */
   public synchronized String getSessionDescription() throws IllegalStateException {
     if (mConfig == null) throw new IllegalStateException("You need to call configure() first !");
-    return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVP 96\r\n" +
+    // The feedback messages need the AVPF profile (RFC 4585)
+    return "m=video "+String.valueOf(getDestinationPorts()[0])+" RTP/AVPF 96\r\n" +
     "a=rtpmap:96 H264/90000\r\n" +
+    "a=rtcp-fb:96 nack\r\n" +
+    "a=rtcp-fb:96 nack pli\r\n" +
+    "a=rtcp-fb:96 ccm fir\r\n" +
     "a=fmtp:96 packetization-mode=1;profile-level-id="+mConfig.getProfileLevel()+";sprop-parameter-sets="+mConfig.getB64SPS()+","+mConfig.getB64PPS()+";\r\n";
   }
 
+  /**
+   * Describes the ULPFEC packets protecting the stream (RFC 5109), see {@link FecEncoder}.
+   */
+  @Override
+  public synchronized String getFecSessionDescription() {
+    if (mPacketizer.getRtpSocket().getFecEncoder() == null) return null;
+    return "m=video "+(getDestinationPorts()[0]+2)+" RTP/AVP "+FecEncoder.PAYLOAD_TYPE+"\r\n" +
+    "a=rtpmap:"+FecEncoder.PAYLOAD_TYPE+" ulpfec/90000\r\n";
+  }
+
+  @Override
+  protected MediaStream newBroadcastSource() {
+    H264Stream source = (H264Stream) newBroadcastSource(new H264Stream());
+    source.mConfig = mConfig;
+    return source;
+  }
+
   /**
    * Starts the stream.
    */
@@ -95,12 +135,28 @@ public class H264Stream extends VideoStream {
    * your configuration of the stream.
    */
   public synchronized void configure() throws IllegalStateException, IOException {
+    long start = SystemClock.elapsedRealtime();
     super.configure();
     updateMP4Config();
+    mConfigureDuration = SystemClock.elapsedRealtime() - start;
+    Log.d(TAG,"Stream configured in "+mConfigureDuration+" ms");
+  }
+
+  /** Returns the time in ms spent in the last call to {@link #configure()}. */
+  public long getConfigureDuration() {
+    return mConfigureDuration;
   }
 
   private void updateMP4Config() throws IllegalStateException, IOException {
-    mConfig = testH264();
+    // The encoder of a running broadcast with the same configuration already knows its SPS and PPS
+    MediaStream source = BroadcastHub.getSource(getConfigKey());
+    if (source instanceof H264Stream && ((H264Stream) source).mConfig != null) {
+      mConfig = ((H264Stream) source).mConfig;
+      return;
+    }
+    synchronized (sTestLock) {
+      mConfig = testH264();
+    }
   }
 
   /**
@@ -108,11 +164,6 @@ public class H264Stream extends VideoStream {
    * and determines the pps and sps. Should not be called by the UI thread.
    **/
   private MP4Config testH264() throws IllegalStateException, IOException {
-    if (mQuality.screenWidth >= 640) {
-      // MediaCodec API is too slow for high resolutions
-      mMode = MODE_MEDIARECORDER_API;
-    }
-
     return (mMode == MODE_MEDIARECORDER_API)
       ? testMediaRecorderAPI()
       : testMediaCodecAPI()
@@ -121,11 +172,19 @@ public class H264Stream extends VideoStream {
 
   @SuppressLint("NewApi")
   private MP4Config testMediaCodecAPI() throws RuntimeException, IOException {
+    String encoder = CodecManager.findSurfaceEncoder(MediaFormat.MIMETYPE_VIDEO_AVC, mQuality.screenWidth, mQuality.screenHeight, mQuality.framerate);
     try {
-      EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.screenWidth, mQuality.screenHeight);
-      return new MP4Config(debugger.getB64SPS(), debugger.getB64PPS());
+      if (encoder == null) throw new RuntimeException("No encoder supports "+mQuality.screenWidth+"x"+mQuality.screenHeight);
+
+      String key = PREF_PREFIX+"h264-mc-"+encoder+","+mQuality.framerate+","+mQuality.screenWidth+","+mQuality.screenHeight+","+mQuality.bitrate;
+      MP4Config config = getCachedConfig(key);
+      if (config != null) return config;
+
+      config = probeMediaCodec();
+      saveConfig(key, config);
+      return config;
     } catch (Exception e) {
-      Log.e(TAG,"Resolution not supported with the MediaCodec API.");
+      Log.e(TAG,"Resolution not supported with the MediaCodec API: "+e.getMessage());
 
       // Fallback to the MediaRecorder API
       mMode = MODE_MEDIARECORDER_API;
@@ -133,14 +192,78 @@ public class H264Stream extends VideoStream {
     }
   }
 
-  // Should not be called by the UI thread
+  /**
+   * Runs the encoder that will be used to stream for a few frames of the screen,
+   * and reads the SPS and PPS in its output format.
+   */
+  @SuppressLint("NewApi")
+  private MP4Config probeMediaCodec() throws RuntimeException, IOException {
+    if (MEDIA_PROJECTION == null)
+      throw new RuntimeException("VideoStream requires a MediaProjection");
+
+    MediaCodec      mediaCodec     = null;
+    Surface         videoSurface   = null;
+    VirtualDisplay  virtualDisplay = null;
+
+    try {
+      mediaCodec = createEncoder();
+      mediaCodec.configure(createMediaFormat(), /* surface= */ null, /* crypto= */ null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      videoSurface = mediaCodec.createInputSurface();
+      mediaCodec.start();
+
+      int flags      = DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR;
+      virtualDisplay = MEDIA_PROJECTION.createVirtualDisplay("ScreenCasterProbe", mQuality.screenWidth, mQuality.screenHeight, mQuality.screenDpi, flags, videoSurface, /* callback= */ null, /* handler= */ null);
+
+      BufferInfo info = new BufferInfo();
+      long deadline = SystemClock.elapsedRealtime() + PROBE_TIMEOUT;
+      while (SystemClock.elapsedRealtime() < deadline) {
+        int index = mediaCodec.dequeueOutputBuffer(info, 100000);
+        if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+          MediaFormat format = mediaCodec.getOutputFormat();
+          ByteBuffer sps = format.getByteBuffer("csd-0");
+          ByteBuffer pps = format.getByteBuffer("csd-1");
+          if (sps != null && pps != null) {
+            Log.i(TAG,"H264 parameters read from "+mediaCodec.getName());
+            return new MP4Config(stripStartCode(sps), stripStartCode(pps));
+          }
+        } else if (index >= 0) {
+          mediaCodec.releaseOutputBuffer(index, false);
+        }
+      }
+      throw new RuntimeException("The encoder did not output its parameters");
+    } finally {
+      if (virtualDisplay != null) virtualDisplay.release();
+      if (mediaCodec != null) {
+        try {
+          mediaCodec.stop();
+        } catch (Exception e) {}
+        mediaCodec.release();
+      }
+      if (videoSurface != null) videoSurface.release();
+    }
+  }
+
+  /** Returns the NAL unit in the buffer without its start code. */
+  private static byte[] stripStartCode(ByteBuffer buffer) {
+    ByteBuffer nal = buffer.duplicate();
+    int start = nal.position();
+    while (nal.remaining() > 1 && nal.get(nal.position()) == 0) nal.get();
+    if (nal.position() > start && nal.get(nal.position()) == 1) nal.get();
+    else nal.position(start);
+    byte[] bytes = new byte[nal.remaining()];
+    nal.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Records a few seconds of the screen in a file to read the SPS and PPS of the MediaRecorder.
+   * Only used when the MediaCodec API can not be, should not be called by the UI thread.
+   */
   private MP4Config testMediaRecorderAPI() throws RuntimeException, IOException {
     String key = PREF_PREFIX+"h264-mr-"+mRequestedQuality.framerate+","+mRequestedQuality.screenWidth+","+mRequestedQuality.screenHeight;
 
-    if (mSettings != null && mSettings.contains(key) ) {
-      String[] s = mSettings.getString(key, "").split(",");
-      return new MP4Config(s[0],s[1],s[2]);
-    }
+    MP4Config cached = getCachedConfig(key);
+    if (cached != null) return cached;
 
     if (MEDIA_PROJECTION == null)
       throw new RuntimeException("VideoStream requires a MediaProjection");
@@ -195,7 +318,7 @@ public class H264Stream extends VideoStream {
       // Start recording
       mediaRecorder.prepare();
 
-      videoSurface = mMediaRecorder.getSurface();
+      videoSurface = mediaRecorder.getSurface();
       mediaRecorder.start();
 
       int flags      = DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR;
@@ -214,17 +337,23 @@ public class H264Stream extends VideoStream {
     } catch (InterruptedException e) {
       e.printStackTrace();
     } finally {
-      try {
-        mediaRecorder.stop();
-      } catch (Exception e) {}
-      mediaRecorder.release();
-      mediaRecorder = null;
+      if (mediaRecorder != null) {
+        try {
+          mediaRecorder.stop();
+        } catch (Exception e) {}
+        mediaRecorder.release();
+        mediaRecorder = null;
+      }
 
-      virtualDisplay.release();
-      virtualDisplay = null;
+      if (virtualDisplay != null) {
+        virtualDisplay.release();
+        virtualDisplay = null;
+      }
 
-      videoSurface.release();
-      videoSurface = null;
+      if (videoSurface != null) {
+        videoSurface.release();
+        videoSurface = null;
+      }
     }
 
     // Retrieve SPS & PPS & ProfileId with MP4Config
@@ -236,13 +365,37 @@ public class H264Stream extends VideoStream {
 
     Log.i(TAG,"H264 Test succeded...");
 
-    // Save test result
+    saveConfig(key, config);
+    return config;
+  }
+
+  /** Returns the parameters stored for the key in memory or in the SharedPreferences, or null. */
+  private MP4Config getCachedConfig(String key) {
+    synchronized (sConfigs) {
+      MP4Config config = sConfigs.get(key);
+      if (config != null) return config;
+
+      if (mSettings != null && mSettings.contains(key)) {
+        String[] s = mSettings.getString(key, "").split(",");
+        config = new MP4Config(s[0],s[1],s[2]);
+        sConfigs.put(key, config);
+      }
+      return config;
+    }
+  }
+
+  /** Stores the result of a test, the cached session descriptions may no longer be accurate. */
+  private void saveConfig(String key, MP4Config config) {
+    synchronized (sConfigs) {
+      sConfigs.put(key, config);
+    }
+
     if (mSettings != null) {
       Editor editor = mSettings.edit();
       editor.putString(key, config.getProfileLevel()+","+config.getB64SPS()+","+config.getB64PPS());
       editor.commit();
     }
 
-    return config;
+    SdpCache.invalidate();
   }
 }
@@ -22,8 +22,9 @@ package net.majorkernelpanic.screening.video;
 
 import net.majorkernelpanic.screening.MediaStream;
 import net.majorkernelpanic.screening.Stream;
-import net.majorkernelpanic.screening.hw.EncoderDebugger;
+import net.majorkernelpanic.screening.hw.CodecManager;
 import net.majorkernelpanic.screening.rtp.MediaCodecInputStream;
+import net.majorkernelpanic.screening.rtp.RtpSocket;
 
 import android.content.SharedPreferences;
 import android.media.MediaCodec;
@@ -31,7 +32,11 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
 import android.media.projection.MediaProjection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
@@ -47,6 +52,20 @@ public abstract class VideoStream extends MediaStream {
 
   protected static MediaProjection MEDIA_PROJECTION = null;
 
+  /** Default interval between two key frames in seconds. */
+  public static final int DEFAULT_KEY_FRAME_INTERVAL = 1;
+
+  /**
+   * Interval between two key frames in seconds suggested for mostly static screens,
+   * receivers then get key frames on demand with a PLI or a FIR.
+   */
+  public static final int LONG_GOP_KEY_FRAME_INTERVAL = 20;
+
+  /** Default minimum interval in ms between two key frames requested from the encoder. */
+  public static final int DEFAULT_SYNC_FRAME_INTERVAL = 500;
+
+  private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
   public static void init(MediaProjection mp) {
     MEDIA_PROJECTION = mp;
   }
@@ -56,6 +75,18 @@ public abstract class VideoStream extends MediaStream {
   protected SharedPreferences mSettings            = null;
   protected int               mVideoEncoder        = 0;
 
+  private boolean             mAdaptiveBitrate     = true;
+  private int                 mMinBitrate          = 0;
+  private int                 mMaxBitrate          = 0;
+  private BitrateController   mBitrateController   = null;
+  private int                 mKeyFrameInterval    = DEFAULT_KEY_FRAME_INTERVAL;
+  private int                 mSyncFrameInterval   = DEFAULT_SYNC_FRAME_INTERVAL;
+
+  // Rate limiting of the key frames requested from the encoder
+  private final Object        mSyncFrameLock       = new Object();
+  private long                mLastSyncFrame       = 0;
+  private boolean             mSyncFramePending    = false;
+
   private Surface             mVideoSurface        = null;
   private DrawTask            mScreenCaptureTask   = null;
   private Thread              mScreenCaptureThread = null;
@@ -85,6 +116,59 @@ public abstract class VideoStream extends MediaStream {
     return mRequestedQuality;
   }
 
+  /**
+   * Sets the interval between two key frames produced by the encoder, when it does not
+   * have to produce one for a receiver. Changes will take effect next time you call {@link #configure()}.
+   * @param seconds The interval in seconds, see {@link #LONG_GOP_KEY_FRAME_INTERVAL}
+   */
+  public void setKeyFrameInterval(int seconds) {
+    mKeyFrameInterval = seconds > 0 ? seconds : DEFAULT_KEY_FRAME_INTERVAL;
+  }
+
+  /** Returns the interval between two key frames in seconds. */
+  public int getKeyFrameInterval() {
+    return mKeyFrameInterval;
+  }
+
+  /**
+   * Sets the minimum interval between two key frames requested from the encoder. A request
+   * coming sooner is delayed until then, and merged with the other ones that come meanwhile.
+   * @param interval The interval in ms
+   */
+  public void setSyncFrameInterval(int interval) {
+    mSyncFrameInterval = interval;
+  }
+
+  /**
+   * Lets a {@link BitrateController} adapt the bitrate of the encoder to the network,
+   * enabled by default. Only possible when the stream is encoded with the MediaCodec API.
+   * Changes will take effect next time you call {@link #start()}.
+   */
+  public void setAdaptiveBitrate(boolean adaptive) {
+    mAdaptiveBitrate = adaptive;
+  }
+
+  /**
+   * Sets the bounds of the bitrate when it is adapted to the network,
+   * by default from a quarter of the bitrate of the {@link VideoQuality} to that bitrate.
+   * @param min The lowest bitrate in bit per second, 0 for the default
+   * @param max The highest bitrate in bit per second, 0 for the default
+   */
+  public void setBitrateBounds(int min, int max) {
+    mMinBitrate = min;
+    mMaxBitrate = max;
+  }
+
+  /**
+   * Returns the bitrate the encoder currently targets, which may be below the one of the
+   * {@link VideoQuality} when it is adapted to the network, 0 if the stream is not encoding.
+   */
+  public int getTargetBitrate() {
+    BitrateController controller = mBitrateController;
+    if (controller != null) return controller.getBitrate();
+    return mStreaming && !mShared ? mQuality.bitrate : 0;
+  }
+
   /**
    * Some data (SPS and PPS params) needs to be stored when {@link #getSessionDescription()} is called
    * @param prefs The SharedPreferences that will be used to save SPS and PPS parameters
@@ -102,6 +186,31 @@ public abstract class VideoStream extends MediaStream {
     mQuality = mRequestedQuality.clone();
   }
 
+  @Override
+  public String getConfigKey() {
+    VideoQuality q = mQuality != null ? mQuality : mRequestedQuality;
+    return super.getConfigKey()+":"+q.screenWidth+"x"+q.screenHeight+":"+q.screenDpi+":"+q.framerate+":"+q.bitrate+":"+mKeyFrameInterval;
+  }
+
+  /**
+   * Configures a new stream of the same kind like this one, so that it can feed
+   * the broadcast this stream subscribes to.
+   */
+  protected VideoStream newBroadcastSource(VideoStream source) {
+    source.mRequestedQuality = mQuality.clone();
+    source.mQuality = mQuality.clone();
+    source.mSettings = mSettings;
+    source.mAdaptiveBitrate = mAdaptiveBitrate;
+    source.mKeyFrameInterval = mKeyFrameInterval;
+    source.mSyncFrameInterval = mSyncFrameInterval;
+    source.mMinBitrate = mMinBitrate;
+    source.mMaxBitrate = mMaxBitrate;
+    source.mRequestedMode = mMode;
+    source.mMode = mMode;
+    source.mConfigured = true;
+    return source;
+  }
+
   /**
    * Starts the stream.
    */
@@ -112,6 +221,14 @@ public abstract class VideoStream extends MediaStream {
 
   /** Stops the stream. */
   public synchronized void stop() {
+    synchronized (mSyncFrameLock) {
+      sHandler.removeCallbacks(mDeferredSyncFrame);
+      mSyncFramePending = false;
+    }
+    if (mBitrateController != null) {
+      mBitrateController.stop();
+      mBitrateController = null;
+    }
     if (mScreenCaptureThread != null) {
       mScreenCaptureThread.interrupt();
       mScreenCaptureThread = null;
@@ -125,6 +242,9 @@ public abstract class VideoStream extends MediaStream {
       mVideoSurface = null;
     }
     super.stop();
+
+    // The next stream of this configuration may start from an encoder in standby
+    EncoderStandby.requestStandby();
   }
 
   /**
@@ -194,6 +314,9 @@ public abstract class VideoStream extends MediaStream {
       throw e;
     }
 
+    // The packets of each frame are spread over the frame interval
+    mPacketizer.getRtpSocket().getPacer().configure(mQuality.bitrate, mQuality.framerate);
+
     // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
     mPacketizer.setInputStream(is);
     mPacketizer.start();
@@ -208,34 +331,115 @@ public abstract class VideoStream extends MediaStream {
     if (MEDIA_PROJECTION == null)
       throw new RuntimeException("VideoStream requires a MediaProjection");
 
+    EncoderStandby.Pipeline standby = EncoderStandby.take(this);
+    if (standby != null) {
+      mMediaCodec   = standby.codec;
+      mVideoSurface = standby.surface;
+    } else {
+      mMediaCodec = createEncoder();
+      mMediaCodec.configure(createMediaFormat(), /* surface= */ null, /* crypto= */ null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+      mVideoSurface = mMediaCodec.createInputSurface();
+      mMediaCodec.start();
+    }
+
+    // New clients ask for a key frame instead of waiting for the next one
+    mPacketizer.getRtpSocket().setSyncFrameListener(new RtpSocket.SyncFrameListener() {
+      @Override
+      public void onSyncFrameRequested() {
+        requestSyncFrame();
+      }
+    });
+
+    if (standby != null && standby.task != null) {
+      mScreenCaptureTask   = standby.task;
+      mScreenCaptureThread = standby.thread;
+      mScreenCaptureTask.resume();
+    } else {
+      mScreenCaptureTask   = new DrawTask(/* sharedContext= */ null, /* flags= */ 0, MEDIA_PROJECTION, mVideoSurface, mQuality);
+      mScreenCaptureThread = new Thread(mScreenCaptureTask, "ScreenCaptureThread");
+      mScreenCaptureThread.start();
+    }
+
+    // The packets of each frame are spread over the frame interval
+    mPacketizer.getRtpSocket().getPacer().configure(mQuality.bitrate, mQuality.framerate);
+
+    // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
+    mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
+    mPacketizer.start();
+
+    if (mAdaptiveBitrate) {
+      int max = mMaxBitrate > 0 ? mMaxBitrate : mQuality.bitrate;
+      int min = mMinBitrate > 0 ? mMinBitrate : max/4;
+      mBitrateController = new BitrateController(mMediaCodec, mPacketizer.getRtpSocket(), mQuality.framerate, mQuality.bitrate, min, max);
+      mBitrateController.start();
+    }
+  }
+
+  /**
+   * Returns the format of the encoder fed by the screen, at the full resolution of the stream.
+   */
+  protected MediaFormat createMediaFormat() {
     String videoFormat      = MediaFormat.MIMETYPE_VIDEO_AVC;  // "video/avc"
     MediaFormat mediaFormat = MediaFormat.createVideoFormat(videoFormat, mQuality.screenWidth, mQuality.screenHeight);
 
     mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE,       mQuality.framerate);
     mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE,         mQuality.bitrate);
     mediaFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT,    0);
-    mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+    mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mKeyFrameInterval);
     mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,     MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+    return mediaFormat;
+  }
 
-  //mMediaCodec = MediaCodec.createEncoderByType(videoFormat);
-
-    EncoderDebugger debugger = EncoderDebugger.debug(mSettings, mQuality.screenWidth, mQuality.screenHeight);
-    mMediaCodec = MediaCodec.createByCodecName(debugger.getEncoderName());
-
-    mMediaCodec.configure(mediaFormat, /* surface= */ null, /* crypto= */ null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-
-    mVideoSurface = mMediaCodec.createInputSurface();
-    mMediaCodec.start();
-
-    mScreenCaptureTask   = new DrawTask(/* sharedContext= */ null, /* flags= */ 0, MEDIA_PROJECTION, mVideoSurface, mQuality);
-    mScreenCaptureThread = new Thread(mScreenCaptureTask, "ScreenCaptureThread");
-    mScreenCaptureThread.start();
+  /**
+   * Creates the encoder chosen by {@link CodecManager#findSurfaceEncoder(String, int, int, int)}
+   * for the resolution and frame rate of the stream, or the default one if none claims to support them.
+   */
+  protected MediaCodec createEncoder() throws IOException {
+    String videoFormat = MediaFormat.MIMETYPE_VIDEO_AVC;
+    String name = CodecManager.findSurfaceEncoder(videoFormat, mQuality.screenWidth, mQuality.screenHeight, mQuality.framerate);
+    return name != null ? MediaCodec.createByCodecName(name) : MediaCodec.createEncoderByType(videoFormat);
+  }
 
-    // The packetizer encapsulates the bit stream in an RTP stream and send it over the network
-    mPacketizer.setInputStream(new MediaCodecInputStream(mMediaCodec));
-    mPacketizer.start();
+  /**
+   * Asks the encoder to produce a key frame as soon as possible, or once
+   * {@link #setSyncFrameInterval(int)} ms have passed since the last one requested.
+   * Only possible when the stream is encoded with the MediaCodec API.
+   */
+  public void requestSyncFrame() {
+    synchronized (mSyncFrameLock) {
+      long now = SystemClock.elapsedRealtime();
+      long wait = mLastSyncFrame + mSyncFrameInterval - now;
+      if (mLastSyncFrame != 0 && wait > 0) {
+        if (!mSyncFramePending) {
+          mSyncFramePending = true;
+          sHandler.postDelayed(mDeferredSyncFrame, wait);
+        }
+        return;
+      }
+      mLastSyncFrame = now;
+    }
+    MediaCodec codec = mMediaCodec;
+    if (codec == null) return;
+    Bundle params = new Bundle();
+    params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+    try {
+      codec.setParameters(params);
+    } catch (IllegalStateException e) {
+      // The encoder is being released
+    }
   }
 
+  private final Runnable mDeferredSyncFrame = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (mSyncFrameLock) {
+        mSyncFramePending = false;
+      }
+      requestSyncFrame();
+    }
+  };
+
   /**
    * Returns a description of the stream using SDP.
    * This method can only be called after {@link Stream#configure()}.
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package net.majorkernelpanic.screening;
+
+import net.majorkernelpanic.screening.rtcp.RtcpReceiver;
+import net.majorkernelpanic.screening.video.VideoStream;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A video track that only pretends to stream, for the tests of the RTSP server. */
+public class FakeVideoStream extends VideoStream {
+
+  /** Number of times a fake track was configured. */
+  public static final AtomicInteger sConfigurations = new AtomicInteger();
+
+  /** Returns a session streaming a fake video track to the destination given. */
+  public static Session newSession(String destination) {
+    Session session = new Session();
+    session.addVideoTrack(new FakeVideoStream());
+    session.setDestination(destination);
+    return session;
+  }
+
+  @Override
+  public synchronized void configure() throws IllegalStateException, IOException {
+    super.configure();
+    sConfigurations.incrementAndGet();
+  }
+
+  @Override
+  public synchronized void start() {
+    mStreaming = true;
+  }
+
+  @Override
+  public synchronized void stop() {
+    mStreaming = false;
+  }
+
+  @Override
+  public int getSSRC() {
+    return 0x1234;
+  }
+
+  @Override
+  public int[] getLocalPorts() {
+    return new int[] {40000, 40001};
+  }
+
+  @Override
+  public RtcpReceiver getRtcpReceiver() {
+    return null;
+  }
+
+  @Override
+  public long getBitrate() {
+    return 0;
+  }
+
+  @Override
+  public String getSessionDescription() {
+    return "m=video "+getDestinationPorts()[0]+" RTP/AVP 96\r\n" +
+    "a=rtpmap:96 H264/90000\r\n";
+  }
+
+  @Override
+  protected MediaStream newBroadcastSource() {
+    return new FakeVideoStream();
+  }
+
+  @Override
+  protected void encodeWithMediaRecorder() {}
+
+  @Override
+  protected void encodeWithMediaCodec() {}
+}
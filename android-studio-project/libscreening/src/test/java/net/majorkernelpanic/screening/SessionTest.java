@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package net.majorkernelpanic.screening;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.majorkernelpanic.screening.audio.AudioStream;
+import net.majorkernelpanic.screening.video.VideoQuality;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionTest {
+
+  /** An audio track that is never started, only described. */
+  private static class FakeAudioStream extends AudioStream {
+    @Override
+    public String getSessionDescription() {
+      return "m=audio "+getDestinationPorts()[0]+" RTP/AVP 96\r\n" +
+      "a=rtpmap:96 mpeg4-generic/44100\r\n";
+    }
+
+    @Override
+    protected MediaStream newBroadcastSource() {
+      return new FakeAudioStream();
+    }
+
+    @Override
+    protected void encodeWithMediaRecorder() {}
+
+    @Override
+    protected void encodeWithMediaCodec() {}
+  }
+
+  /** A fake video track protected by FEC packets. */
+  private static class ProtectedVideoStream extends FakeVideoStream {
+    @Override
+    public String getFecSessionDescription() {
+      return "m=video "+(getDestinationPorts()[0]+2)+" RTP/AVP 97\r\n" +
+      "a=rtpmap:97 ulpfec/90000\r\n";
+    }
+  }
+
+  @Before
+  public void init() {
+    VideoQuality.init(1280, 720, 320);
+    SdpCache.invalidate();
+  }
+
+  private static Session newSession(FakeVideoStream video) {
+    Session session = new Session();
+    session.addAudioTrack(new FakeAudioStream());
+    session.addVideoTrack(video);
+    session.setDestination("127.0.0.1");
+    return session;
+  }
+
+  @Test
+  public void everyMediaOfTheFecGroupIsIdentified() {
+    Session session = newSession(new ProtectedVideoStream());
+    String description = session.getSessionDescription();
+    session.release();
+
+    assertTrue(description.contains("a=group:FEC 1 2\r\n"));
+    String[] media = description.split("(?=m=)");
+    // The session level, then the audio, the video and the FEC packets
+    assertEquals(4, media.length);
+    for (int i=1; i<media.length; i++) {
+      assertTrue(media[i], media[i].contains("a=mid:"+(i-1)+"\r\n"));
+    }
+  }
+
+  @Test
+  public void noMediaIsIdentifiedWithoutGroup() {
+    Session session = newSession(new FakeVideoStream());
+    String description = session.getSessionDescription();
+    session.release();
+
+    assertFalse(description.contains("a=group:"));
+    assertFalse(description.contains("a=mid:"));
+  }
+}
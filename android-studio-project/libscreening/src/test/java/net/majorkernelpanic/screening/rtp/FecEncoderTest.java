@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends a stream protected by FEC through a proxy that loses one packet of each group,
+ * and recovers the packets lost from the FEC packets like a receiver would (RFC 5109).
+ */
+public class FecEncoderTest {
+
+  private static final int FRAMES = 20;
+  private static final int PACKETS_PER_FRAME = 3;
+  private static final int GROUP_SIZE = 4;
+  private static final int TIMEOUT = 2000;
+
+  private final InetAddress mLoopback = InetAddress.getLoopbackAddress();
+  private DatagramSocket mMediaProxy, mFecProxy, mRtcp, mMediaClient, mFecClient;
+  private RtpSocket mSocket;
+
+  @Before
+  public void open() throws IOException {
+    mMediaProxy = bind();
+    mFecProxy = bind();
+    mRtcp = bind();
+    mMediaClient = bind();
+    mFecClient = bind();
+    mSocket = new RtpSocket();
+    mSocket.setSSRC(0x12345678);
+    mSocket.setClockFrequency(90000);
+    mSocket.setDestination(mLoopback, mMediaProxy.getLocalPort(), mRtcp.getLocalPort());
+    FecEncoder fec = new FecEncoder();
+    fec.setAdaptive(false);
+    fec.setGroupSize(GROUP_SIZE);
+    mSocket.setFecEncoder(fec);
+  }
+
+  @After
+  public void close() {
+    mSocket.releaseBuffers();
+    mSocket.close();
+    mMediaProxy.close();
+    mFecProxy.close();
+    mRtcp.close();
+    mMediaClient.close();
+    mFecClient.close();
+  }
+
+  private DatagramSocket bind() throws IOException {
+    DatagramSocket socket = new DatagramSocket(new InetSocketAddress(mLoopback, 0));
+    socket.setSoTimeout(TIMEOUT);
+    // Every packet of the test is queued before being read
+    socket.setReceiveBufferSize(1<<20);
+    return socket;
+  }
+
+  /** Commits frames of packets of random lengths, the last packet of each frame has the marker bit. */
+  private void send() throws Exception {
+    Random random = new Random(42);
+    long timestamp = System.nanoTime();
+    for (int i=0; i<FRAMES; i++, timestamp += 33000000L) {
+      for (int j=0; j<PACKETS_PER_FRAME; j++) {
+        byte[] buffer = mSocket.requestBuffer();
+        int length = RtpSocket.RTP_HEADER_LENGTH + 100 + random.nextInt(1000);
+        for (int k=RtpSocket.RTP_HEADER_LENGTH; k<length; k++) buffer[k] = (byte) random.nextInt();
+        mSocket.updateTimestamp(timestamp);
+        if (j == PACKETS_PER_FRAME-1) mSocket.markNextPacket();
+        mSocket.commitBuffer(length);
+      }
+    }
+  }
+
+  /**
+   * Reads the packets sent to a proxy socket, keyed by sequence number, and forwards
+   * to the client those that are not lost.
+   * @param lost Sequence numbers modulo this are lost when equal to 2, 0 for no loss
+   */
+  private Map<Integer,byte[]> relay(DatagramSocket proxy, DatagramSocket client, int count, int lost) throws IOException {
+    Map<Integer,byte[]> packets = new HashMap<Integer,byte[]>();
+    byte[] buffer = new byte[RtpSocket.MTU];
+    for (int i=0; i<count; i++) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      proxy.receive(packet);
+      byte[] data = Arrays.copyOf(buffer, packet.getLength());
+      int sequence = getShort(data, 2);
+      packets.put(sequence, data);
+      if (lost > 0 && sequence % lost == 2) continue;
+      proxy.send(new DatagramPacket(data, data.length, client.getLocalSocketAddress()));
+    }
+    return packets;
+  }
+
+  /** Reads the packets sent to a client, keyed by sequence number, until none is left. */
+  private Map<Integer,byte[]> receive(DatagramSocket client) throws IOException {
+    Map<Integer,byte[]> packets = new HashMap<Integer,byte[]>();
+    byte[] buffer = new byte[RtpSocket.MTU];
+    client.setSoTimeout(200);
+    try {
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        client.receive(packet);
+        byte[] data = Arrays.copyOf(buffer, packet.getLength());
+        packets.put(getShort(data, 2), data);
+      }
+    } catch (SocketTimeoutException e) {
+      return packets;
+    }
+  }
+
+  private static int getShort(byte[] buffer, int offset) {
+    return (buffer[offset]&0xFF)<<8 | (buffer[offset+1]&0xFF);
+  }
+
+  private static int getInt(byte[] buffer, int offset) {
+    return getShort(buffer, offset)<<16 | getShort(buffer, offset+2);
+  }
+
+  /**
+   * Recovers the packet of the group of an FEC packet that was lost (RFC 5109, section 8.2),
+   * or returns null if none or more than one packet of the group were lost.
+   */
+  private static byte[] recover(byte[] fec, Map<Integer,byte[]> received) {
+    int base = getShort(fec, 14);
+    int mask = getShort(fec, 24);
+    int protection = getShort(fec, 22);
+    int missing = -1;
+    for (int i=0; i<16; i++) {
+      if ((mask & (1<<(15-i))) == 0) continue;
+      int sequence = (base+i) & 0xFFFF;
+      if (received.containsKey(sequence)) continue;
+      if (missing >= 0) return null;
+      missing = sequence;
+    }
+    if (missing < 0) return null;
+
+    int byte0 = fec[12], byte1 = fec[13];
+    int timestamp = getInt(fec, 16);
+    int length = getShort(fec, 20);
+    byte[] payload = Arrays.copyOfRange(fec, 26, 26+protection);
+    byte[] any = null;
+    for (int i=0; i<16; i++) {
+      byte[] packet = received.get((base+i) & 0xFFFF);
+      if ((mask & (1<<(15-i))) == 0 || packet == null) continue;
+      byte0 ^= packet[0];
+      byte1 ^= packet[1];
+      timestamp ^= getInt(packet, 4);
+      length ^= packet.length-RtpSocket.RTP_HEADER_LENGTH;
+      for (int j=RtpSocket.RTP_HEADER_LENGTH; j<packet.length; j++) {
+        payload[j-RtpSocket.RTP_HEADER_LENGTH] ^= packet[j];
+      }
+      any = packet;
+    }
+
+    byte[] packet = new byte[RtpSocket.RTP_HEADER_LENGTH+length];
+    packet[0] = (byte) (0x80 | (byte0 & 0x3F));
+    packet[1] = (byte) byte1;
+    packet[2] = (byte) (missing>>8);
+    packet[3] = (byte) missing;
+    packet[4] = (byte) (timestamp>>24);
+    packet[5] = (byte) (timestamp>>16);
+    packet[6] = (byte) (timestamp>>8);
+    packet[7] = (byte) timestamp;
+    // The SSRC is the one of the media
+    System.arraycopy(any, 8, packet, 8, 4);
+    System.arraycopy(payload, 0, packet, RtpSocket.RTP_HEADER_LENGTH, length);
+    return packet;
+  }
+
+  @Test
+  public void recoversPacketsLostByTheProxy() throws Exception {
+    mSocket.setFecDestination(mLoopback, mFecProxy.getLocalPort());
+    send();
+
+    int count = FRAMES*PACKETS_PER_FRAME;
+    Map<Integer,byte[]> sent = relay(mMediaProxy, mMediaClient, count, GROUP_SIZE);
+    Map<Integer,byte[]> fec = relay(mFecProxy, mFecClient, count/GROUP_SIZE, 0);
+    Map<Integer,byte[]> received = receive(mMediaClient);
+    Map<Integer,byte[]> protection = receive(mFecClient);
+    assertEquals(count - count/GROUP_SIZE, received.size());
+    assertEquals(count/GROUP_SIZE, protection.size());
+
+    // The media has no gap in its sequence numbers, and only carries the media
+    for (int sequence=1; sequence<=count; sequence++) {
+      byte[] packet = sent.get(sequence);
+      assertNotNull("Sequence number "+sequence+" missing", packet);
+      assertEquals(RtpSocket.PAYLOAD_TYPE, packet[1] & 0x7F);
+      assertEquals(0x12345678, getInt(packet, 8));
+    }
+    // The FEC packets are a stream of their own
+    for (int sequence=1; sequence<=count/GROUP_SIZE; sequence++) {
+      byte[] packet = fec.get(sequence);
+      assertNotNull("FEC sequence number "+sequence+" missing", packet);
+      assertEquals(FecEncoder.PAYLOAD_TYPE, packet[1] & 0x7F);
+      assertEquals(mSocket.getFecSSRC(), getInt(packet, 8));
+    }
+    assertNotEquals(0x12345678, mSocket.getFecSSRC());
+
+    int recovered = 0;
+    for (byte[] packet : protection.values()) {
+      byte[] lost = recover(packet, received);
+      assertNotNull(lost);
+      int sequence = getShort(lost, 2);
+      assertEquals(2, sequence % GROUP_SIZE);
+      assertEquals(Arrays.toString(sent.get(sequence)), Arrays.toString(lost));
+      recovered++;
+    }
+    assertEquals(count/GROUP_SIZE, recovered);
+  }
+
+  @Test
+  public void noFecWithoutDestination() throws Exception {
+    send();
+
+    int count = FRAMES*PACKETS_PER_FRAME;
+    Map<Integer,byte[]> sent = relay(mMediaProxy, mMediaClient, count, 0);
+    for (int sequence=1; sequence<=count; sequence++) {
+      assertNotNull(sent.get(sequence));
+    }
+    mFecProxy.setSoTimeout(200);
+    try {
+      mFecProxy.receive(new DatagramPacket(new byte[RtpSocket.MTU], RtpSocket.MTU));
+      fail("FEC packet sent without destination");
+    } catch (SocketTimeoutException expected) {
+      // Nothing was sent
+    }
+    assertEquals(count, receive(mMediaClient).size());
+  }
+}
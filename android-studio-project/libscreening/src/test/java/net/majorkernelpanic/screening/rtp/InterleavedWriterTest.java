@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InterleavedWriterTest {
+
+  private static final int FRAME_LENGTH = 1000;
+
+  private ServerSocketChannel mServer;
+  private SocketChannel mClient, mPeer;
+  private InterleavedWriter mWriter;
+
+  @Before
+  public void connect() throws IOException {
+    mServer = ServerSocketChannel.open();
+    mServer.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    mPeer = SocketChannel.open(mServer.socket().getLocalSocketAddress());
+    mClient = mServer.accept();
+    mClient.configureBlocking(false);
+    // Small buffers, so that the connection is congested quickly
+    mClient.socket().setSendBufferSize(4096);
+    mWriter = new InterleavedWriter(mClient);
+  }
+
+  @After
+  public void close() throws IOException {
+    mPeer.close();
+    mClient.close();
+    mServer.close();
+  }
+
+  /** A frame of one interleaved packet on channel 0, filled with the given byte. */
+  private static byte[] frame(int value) {
+    byte[] frame = new byte[FRAME_LENGTH];
+    frame[0] = '$';
+    frame[2] = (byte) ((FRAME_LENGTH-4) >> 8);
+    frame[3] = (byte) ((FRAME_LENGTH-4) & 0xFF);
+    for (int i=4; i<FRAME_LENGTH; i++) frame[i] = (byte) value;
+    return frame;
+  }
+
+  /** Writes frames until the writer drops one, returns the number of frames written. */
+  private int congest() throws IOException {
+    int written = 0;
+    while (mWriter.write(frame(written+1), 0, FRAME_LENGTH)) {
+      written++;
+      if (written > 100000) throw new AssertionError("The connection is never congested");
+    }
+    return written;
+  }
+
+  @Test
+  public void responsesAreQueuedWhileFramesAreDropped() throws IOException {
+    int written = congest();
+    byte[] response = "RTSP/1.0 200 OK\r\nCSeq: 2\r\n\r\n".getBytes("US-ASCII");
+
+    // The client is congested, not gone: the response is queued rather than refused
+    for (int i=0; i<10; i++) {
+      assertTrue(mWriter.append(response, 0, response.length));
+      assertFalse(mWriter.write(frame(0xFF), 0, FRAME_LENGTH));
+    }
+    assertTrue(mWriter.hasPending());
+    assertTrue(mWriter.getDroppedWrites() >= 10);
+
+    byte[] received = drain(written*FRAME_LENGTH + 10*response.length);
+
+    // Whole frames first, then the responses, and none of the frames dropped
+    for (int i=0; i<written; i++) {
+      assertEquals('$', received[i*FRAME_LENGTH]);
+      assertEquals((byte) (i+1), received[i*FRAME_LENGTH+4]);
+      assertEquals((byte) (i+1), received[(i+1)*FRAME_LENGTH-1]);
+    }
+    String responses = new String(received, written*FRAME_LENGTH, 10*response.length, "US-ASCII");
+    assertTrue(responses.startsWith("RTSP/1.0 200 OK"));
+    assertFalse(mWriter.hasPending());
+  }
+
+  @Test
+  public void appendFailsOnlyWhenResponsesAreNotRead() throws IOException {
+    congest();
+    byte[] response = new byte[1024];
+    int appended = 0;
+    while (mWriter.append(response, 0, response.length)) appended++;
+    assertEquals(InterleavedWriter.MAX_APPEND_LENGTH/response.length, appended);
+  }
+
+  @Test
+  public void listenerIsNotifiedOfFramesLeftPending() throws IOException {
+    final AtomicInteger notified = new AtomicInteger();
+    mWriter.setListener(new InterleavedWriter.Listener() {
+      public void onPending(InterleavedWriter writer) {
+        notified.incrementAndGet();
+      }
+    });
+    int written = congest();
+
+    // Each frame cut by the congestion is notified, the frame dropped is not
+    assertTrue(notified.get() >= 1);
+    int cut = notified.get();
+    assertFalse(mWriter.write(frame(0xFF), 0, FRAME_LENGTH));
+    assertEquals(cut, notified.get());
+    assertTrue(mWriter.hasPending());
+
+    // Once flushed as the selector would, the tail is written and the next frame accepted
+    drain(written*FRAME_LENGTH);
+    assertFalse(mWriter.hasPending());
+    assertTrue(mWriter.write(frame(0x7F), 0, FRAME_LENGTH));
+  }
+
+  /** Reads length bytes from the peer, flushing the writer as the selector would. */
+  private byte[] drain(int length) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocate(8192);
+    while (output.size() < length) {
+      mWriter.flush();
+      buffer.clear();
+      int read = mPeer.read(buffer);
+      if (read < 0) break;
+      output.write(buffer.array(), 0, read);
+    }
+    mWriter.flush();
+    assertEquals(length, output.size());
+    return output.toByteArray();
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+
+import org.junit.Test;
+
+/**
+ * Compares the {@link PacketRing} with the two semaphores FIFO it replaced in the
+ * {@link RtpSocket}: packets per second, and 99th percentile of the time between
+ * the commit of a packet and its consumption. Results are printed, not asserted.
+ */
+public class PacketRingBenchmark {
+
+  private static final int CAPACITY = 256;
+  private static final int PACKETS = 1000000;
+  // Packets per frame, a frame is published at once by the ring
+  private static final int FRAME = 8;
+
+  private interface Fifo {
+    int claim() throws InterruptedException;
+    void commit(boolean endOfFrame);
+    int take() throws InterruptedException;
+    void release();
+  }
+
+  private static class RingFifo implements Fifo {
+    final PacketRing ring = new PacketRing(CAPACITY);
+    int available = 0;
+    public int claim() throws InterruptedException { return ring.claim(true); }
+    public void commit(boolean endOfFrame) { ring.commit(endOfFrame); }
+    public int take() throws InterruptedException {
+      while (available == 0) available = ring.await(1000000000L);
+      available--;
+      return ring.peek();
+    }
+    public void release() { ring.release(); }
+  }
+
+  /** The FIFO of the RtpSocket before the ring: a permit per packet, each way. */
+  private static class SemaphoreFifo implements Fifo {
+    final Semaphore requested = new Semaphore(CAPACITY), committed = new Semaphore(0);
+    int in = 0, out = 0;
+    public int claim() throws InterruptedException { requested.acquire(); return in; }
+    public void commit(boolean endOfFrame) { in = (in+1)%CAPACITY; committed.release(); }
+    public int take() throws InterruptedException { committed.acquire(); return out; }
+    public void release() { out = (out+1)%CAPACITY; requested.release(); }
+  }
+
+  @Test
+  public void compareWithSemaphores() throws Exception {
+    // Warm up both, then measure
+    run(new SemaphoreFifo(), "semaphores", false);
+    run(new RingFifo(), "ring", false);
+    run(new SemaphoreFifo(), "semaphores", true);
+    run(new RingFifo(), "ring", true);
+  }
+
+  private static void run(final Fifo fifo, String name, boolean print) throws Exception {
+    final long[] commitTimes = new long[CAPACITY];
+    final long[] latencies = new long[PACKETS];
+    final int[] consumed = new int[1];
+
+    Thread consumer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i=0; i<PACKETS; i++) {
+            int slot = fifo.take();
+            latencies[i] = System.nanoTime() - commitTimes[slot];
+            fifo.release();
+            consumed[0]++;
+          }
+        } catch (InterruptedException e) {}
+      }
+    });
+
+    long start = System.nanoTime();
+    consumer.start();
+    for (int i=0; i<PACKETS; i++) {
+      int slot = fifo.claim();
+      commitTimes[slot] = System.nanoTime();
+      fifo.commit(i%FRAME == FRAME-1);
+    }
+    consumer.join();
+    long duration = System.nanoTime() - start;
+
+    assertEquals(PACKETS, consumed[0]);
+    if (!print) return;
+    Arrays.sort(latencies);
+    System.out.println(name+": "+(PACKETS*1000000000L/duration)+" packets/s, p99 handoff "
+        +latencies[PACKETS*99/100]/1000+" us");
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PacketRingTest {
+
+  @Test
+  public void slotsAreOnlyPublishedAtTheEndOfAFrame() throws InterruptedException {
+    PacketRing ring = new PacketRing(8);
+    assertEquals(0, ring.claim(false));
+    ring.commit(false);
+    assertEquals(1, ring.claim(false));
+    ring.commit(false);
+    assertEquals(0, ring.await(0));
+    assertEquals(0, ring.size());
+
+    assertEquals(2, ring.claim(false));
+    ring.commit(true);
+    assertEquals(3, ring.await(0));
+    assertEquals(3, ring.size());
+  }
+
+  @Test
+  public void slotsArePublishedByBatches() throws InterruptedException {
+    PacketRing ring = new PacketRing(64);
+    for (int i=0; i<PacketRing.BATCH_SIZE-1; i++) {
+      ring.claim(false);
+      ring.commit(false);
+    }
+    assertEquals(0, ring.await(0));
+    ring.claim(false);
+    ring.commit(false);
+    assertEquals(PacketRing.BATCH_SIZE, ring.await(0));
+  }
+
+  @Test
+  public void claimFailsWhenFullWithoutBlocking() throws InterruptedException {
+    PacketRing ring = new PacketRing(4);
+    for (int i=0; i<4; i++) {
+      assertEquals(i, ring.claim(false));
+      ring.commit(false);
+    }
+    assertEquals(-1, ring.claim(false));
+    ring.flush();
+    assertEquals(4, ring.await(0));
+    assertEquals(0, ring.peek());
+    ring.release();
+    assertEquals(0, ring.claim(false));
+  }
+
+  @Test
+  public void claimReturnsTheSameSlotUntilCommitted() throws InterruptedException {
+    PacketRing ring = new PacketRing(4);
+    assertEquals(0, ring.claim(false));
+    assertEquals(0, ring.claim(false));
+    ring.commit(true);
+    assertEquals(1, ring.claim(false));
+  }
+
+  @Test
+  public void clearEmptiesTheRing() throws InterruptedException {
+    PacketRing ring = new PacketRing(4);
+    ring.claim(false);
+    ring.commit(true);
+    ring.clear();
+    assertEquals(0, ring.size());
+    assertEquals(0, ring.await(0));
+    assertEquals(0, ring.claim(false));
+  }
+
+  @Test
+  public void wakeUpReturnsFromAwaitWithoutInterrupting() throws Exception {
+    final PacketRing ring = new PacketRing(4);
+    final int[] result = {-1};
+    final boolean[] interrupted = {false};
+    Thread consumer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          result[0] = ring.await(10000000000L);
+        } catch (InterruptedException e) {}
+        interrupted[0] = Thread.currentThread().isInterrupted();
+      }
+    });
+    consumer.start();
+    Thread.sleep(50);
+    ring.wakeUp();
+    consumer.join(1000);
+
+    assertEquals(0, result[0]);
+    assertFalse(interrupted[0]);
+    // Until the ring is cleared
+    assertEquals(0, ring.await(1000000000L));
+    ring.clear();
+    ring.claim(false);
+    ring.commit(true);
+    assertEquals(1, ring.await(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void capacityMustBeAPowerOfTwo() {
+    new PacketRing(300);
+  }
+
+  @Test
+  public void slotsAreHandedOverInOrderBetweenThreads() throws Exception {
+    final PacketRing ring = new PacketRing(16);
+    final int[] values = new int[16];
+    final int count = 200000;
+    final int[] received = new int[1];
+    final boolean[] ordered = {true};
+
+    Thread consumer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          int expected = 0, available;
+          while (expected < count && (available = ring.await(5000000000L)) > 0) {
+            for (; available > 0; available--) {
+              if (values[ring.peek()] != expected++) ordered[0] = false;
+              ring.release();
+            }
+          }
+          received[0] = expected;
+        } catch (InterruptedException e) {}
+      }
+    });
+    consumer.start();
+
+    for (int i=0; i<count; i++) {
+      int slot = ring.claim(true);
+      values[slot] = i;
+      // Frames of 7 packets
+      ring.commit(i%7 == 6 || i == count-1);
+    }
+    consumer.join(10000);
+
+    assertEquals(count, received[0]);
+    assertTrue(ordered[0]);
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import static org.junit.Assert.assertTrue;
+
+import android.media.MediaCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+/**
+ * Measures the CPU time spent per megabit by the {@link H264Packetizer} and its {@link RtpSocket}
+ * to send the same H.264 frames over UDP: copied from the InputStream the encoder output is read
+ * from, or sent as slices of the output buffers of the encoder, see {@link CodecBuffer}.
+ * The frames are fed at about 64 Mbit/s, so that none is dropped. The CPU time of the packetizer
+ * and of the threads of the socket is counted, since the copy moved from the packetizer to the
+ * write of the packets. Results are printed, not asserted.
+ */
+public class PacketizerBenchmark {
+
+  // 10 groups of pictures: an IDR of 60 KB followed by 59 frames of 8 KB, about 42 Mbit
+  private static final int GOPS = 10, FRAMES = 60;
+  private static final int IDR_LENGTH = 60000, FRAME_LENGTH = 8000;
+  private static final int ROUNDS = 3;
+
+  private final byte[][] mFrames = new byte[GOPS*FRAMES][];
+
+  @Test
+  public void compareCopiedAndDirect() throws Exception {
+    // NAL units without any start code in their payload
+    Random random = new Random(1);
+    for (int i=0; i<mFrames.length; i++) {
+      byte[] nal = new byte[i%FRAMES == 0 ? IDR_LENGTH : FRAME_LENGTH];
+      for (int j=1; j<nal.length; j++) nal[j] = (byte) (1+random.nextInt(255));
+      // nal_ref_idc 3, IDR or non-IDR slice
+      nal[0] = (byte) (0x60 | (i%FRAMES == 0 ? 5 : 1));
+      mFrames[i] = nal;
+    }
+
+    // Warm up both, then measure them in turns
+    run(false, null);
+    run(true, null);
+    for (int r=0; r<ROUNDS; r++) {
+      run(false, "copied");
+      run(true, "direct");
+    }
+  }
+
+  private void run(boolean direct, String name) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Set<Long> existing = new HashSet<Long>();
+    for (long id : threads.getAllThreadIds()) existing.add(id);
+
+    final DatagramChannel receiver = DatagramChannel.open();
+    receiver.socket().setReceiveBufferSize(4<<20);
+    receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    final AtomicLong received = new AtomicLong();
+    Thread reader = new Thread("PacketizerBenchmarkReader") {
+      public void run() {
+        ByteBuffer packet = ByteBuffer.allocate(RtpSocket.MTU);
+        try {
+          while (true) {
+            packet.clear();
+            receiver.receive(packet);
+            received.incrementAndGet();
+          }
+        } catch (IOException e) {
+          // Closed
+        }
+      }
+    };
+    reader.start();
+    existing.add(reader.getId());
+
+    H264Packetizer packetizer = new H264Packetizer();
+    RtpSocket socket = packetizer.getRtpSocket();
+    // Nothing is dropped for being late, both send every packet
+    socket.setLatencyBudget(0);
+    packetizer.setDestination(InetAddress.getLoopbackAddress(), receiver.socket().getLocalPort(), 1);
+    packetizer.setInputStream(direct ? new DirectInput() : new CopiedInput());
+
+    // The packetizer runs on this thread until the end of the input
+    long cpu = threads.getCurrentThreadCpuTime();
+    packetizer.run();
+    cpu = threads.getCurrentThreadCpuTime() - cpu;
+
+    // Until the packets queued in the socket are sent
+    long last;
+    do {
+      last = received.get();
+      Thread.sleep(250);
+    } while (received.get() != last);
+
+    // Plus the sending thread of the socket, and any other thread it started
+    for (long id : threads.getAllThreadIds()) {
+      if (!existing.contains(id)) cpu += Math.max(0, threads.getThreadCpuTime(id));
+    }
+    long dropped = socket.getDroppedFrames();
+    socket.releaseBuffers();
+    socket.close();
+    receiver.close();
+    reader.join();
+
+    long bits = 0;
+    for (byte[] frame : mFrames) bits += 8L*frame.length;
+    assertTrue(received.get() > 0);
+    if (name != null) {
+      System.out.println(name+": "+cpu/1000*1000000/bits+" us/Mbit, "+received.get()+" packets received, "+dropped+" frames dropped");
+    }
+  }
+
+  /** Waits as long as an encoder producing about 64 Mbit/s would take to output the frame. */
+  private static void pace(byte[] frame) {
+    LockSupport.parkNanos(125L*frame.length);
+  }
+
+  /** The frames preceded by their length, as the packetizer reads them from an InputStream. */
+  private class CopiedInput extends ByteArrayInputStream {
+    private int mNext = 0, mNextOffset = 0;
+
+    CopiedInput() {
+      super(lengthPrefixed());
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) {
+      if (pos == mNextOffset && mNext < mFrames.length) {
+        // The packetizer starts reading the next frame
+        pace(mFrames[mNext]);
+        // The socket holds a copied stream 400 ms before sending it, the FIFO would overflow meanwhile
+        if (mNext == 1) LockSupport.parkNanos(500000000L);
+        mNextOffset += 4+mFrames[mNext++].length;
+      }
+      // A read never goes past the start of the next frame
+      return super.read(buffer, offset, Math.min(length, Math.max(1, mNextOffset-pos)));
+    }
+  }
+
+  private byte[] lengthPrefixed() {
+    int length = 0;
+    for (byte[] frame : mFrames) length += 4+frame.length;
+    ByteBuffer data = ByteBuffer.allocate(length);
+    for (byte[] frame : mFrames) data.putInt(frame.length).put(frame);
+    return data.array();
+  }
+
+  /** The frames in direct buffers after a start code, as the encoder outputs them. */
+  private class DirectInput extends MediaCodecInputStream {
+    private final ByteBuffer[] mBuffers = new ByteBuffer[mFrames.length];
+    private int mNext = 0;
+
+    DirectInput() {
+      super(null);
+      for (int i=0; i<mFrames.length; i++) {
+        mBuffers[i] = ByteBuffer.allocateDirect(4+mFrames[i].length);
+        mBuffers[i].putInt(1).put(mFrames[i]).flip();
+      }
+    }
+
+    @Override
+    public CodecBuffer readBuffer() {
+      if (mNext == mBuffers.length) return null;
+      pace(mFrames[mNext]);
+      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      info.offset = 0;
+      info.size = mBuffers[mNext].limit();
+      info.presentationTimeUs = System.nanoTime()/1000;
+      info.flags = mNext%FRAMES == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+      return new CodecBuffer(null, mNext, mBuffers[mNext++], info) {
+        @Override
+        void recycle() {
+          // No codec to give the buffer back to
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Measures the throughput of the {@link StartCodeScanner} on a direct buffer, like the
+ * output buffers of the encoder, against a byte by byte scan. Results are printed, not asserted.
+ */
+public class StartCodeScannerBenchmark {
+
+  private static final int LENGTH = 4<<20;
+  private static final int ROUNDS = 50;
+
+  @Test
+  public void compareWithByteByByteScan() {
+    // Random bytes with no zero, and a start code every 64 KB
+    ByteBuffer data = ByteBuffer.allocateDirect(LENGTH);
+    Random random = new Random(1);
+    for (int i=0; i<LENGTH; i++) data.put((byte) (1+random.nextInt(255)));
+    int starts = 0;
+    for (int i=0; i+3<LENGTH; i+=65536, starts++) {
+      data.put(i, (byte) 0);
+      data.put(i+1, (byte) 0);
+      data.put(i+2, (byte) 1);
+    }
+
+    // Warm up both, then measure
+    assertEquals(starts, scan(data, false, 5, null));
+    assertEquals(starts, scan(data, true, 5, null));
+    scan(data, true, ROUNDS, "byte by byte");
+    scan(data, false, ROUNDS, "scanner");
+  }
+
+  private static int scan(ByteBuffer data, boolean naive, int rounds, String name) {
+    int found = 0;
+    long start = System.nanoTime();
+    for (int r=0; r<rounds; r++) {
+      found = 0;
+      int from = 0, next;
+      while ((next = naive ? naiveFind(data, from, LENGTH) : StartCodeScanner.find(data, from, LENGTH)) >= 0) {
+        found++;
+        from = next+3;
+      }
+    }
+    long duration = System.nanoTime() - start;
+    if (name != null) {
+      System.out.println(name+": "+((long) LENGTH*rounds*1000L/duration)+" MB/s");
+    }
+    return found;
+  }
+
+  private static int naiveFind(ByteBuffer data, int from, int to) {
+    for (int i=from; i+2<to; i++) {
+      if (data.get(i) == 0 && data.get(i+1) == 0 && data.get(i+2) == 1) return i;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class StartCodeScannerTest {
+
+  private static ByteBuffer wrap(int... bytes) {
+    ByteBuffer data = ByteBuffer.allocateDirect(bytes.length);
+    for (int b : bytes) data.put((byte) b);
+    data.flip();
+    return data;
+  }
+
+  /** Splits the buffer in NAL units like the {@link H264Packetizer} does. */
+  private static List<String> split(ByteBuffer data) {
+    List<String> nals = new ArrayList<String>();
+    int from = data.position(), end = data.limit();
+    while (from < end) {
+      int next = StartCodeScanner.find(data, from, end);
+      int stop = StartCodeScanner.trim(data, from, next < 0 ? end : next);
+      if (stop > from) {
+        byte[] nal = new byte[stop-from];
+        for (int i=0; i<nal.length; i++) nal[i] = data.get(from+i);
+        nals.add(Arrays.toString(nal));
+      }
+      if (next < 0) break;
+      from = next+3;
+    }
+    return nals;
+  }
+
+  private static String nal(int... bytes) {
+    byte[] nal = new byte[bytes.length];
+    for (int i=0; i<bytes.length; i++) nal[i] = (byte) bytes[i];
+    return Arrays.toString(nal);
+  }
+
+  /** Returns the first start code prefix between from and to, byte by byte. */
+  private static int naiveFind(ByteBuffer data, int from, int to) {
+    for (int i=from; i+2<to; i++) {
+      if (data.get(i) == 0 && data.get(i+1) == 0 && data.get(i+2) == 1) return i;
+    }
+    return -1;
+  }
+
+  @Test
+  public void findsThreeBytesStartCodes() {
+    ByteBuffer data = wrap(0, 0, 1, 0x65, 0xAA, 0xBB, 0, 0, 1, 0x41, 0xCC);
+    assertEquals(0, StartCodeScanner.find(data, 0, data.limit()));
+    assertEquals(6, StartCodeScanner.find(data, 3, data.limit()));
+    assertEquals(-1, StartCodeScanner.find(data, 9, data.limit()));
+    assertEquals(Arrays.asList(nal(0x65, 0xAA, 0xBB), nal(0x41, 0xCC)), split(data));
+  }
+
+  @Test
+  public void findsFourBytesStartCodes() {
+    ByteBuffer data = wrap(0, 0, 0, 1, 0x67, 0x42, 0, 0, 0, 1, 0x68, 0xCE);
+    // The prefix found is the last three bytes, the zero before is trimmed from the NAL unit
+    assertEquals(1, StartCodeScanner.find(data, 0, data.limit()));
+    assertEquals(7, StartCodeScanner.find(data, 4, data.limit()));
+    assertEquals(6, StartCodeScanner.trim(data, 4, 7));
+    assertEquals(Arrays.asList(nal(0x67, 0x42), nal(0x68, 0xCE)), split(data));
+  }
+
+  @Test
+  public void trimsTrailingZeros() {
+    ByteBuffer data = wrap(0, 0, 1, 0x65, 0x11, 0x80, 0, 0, 0);
+    assertEquals(-1, StartCodeScanner.find(data, 3, data.limit()));
+    assertEquals(6, StartCodeScanner.trim(data, 3, data.limit()));
+    assertEquals(Arrays.asList(nal(0x65, 0x11, 0x80)), split(data));
+    // Nothing but zeros
+    assertEquals(3, StartCodeScanner.trim(wrap(0, 0, 1, 0, 0), 3, 5));
+  }
+
+  @Test
+  public void readsBuffersWithoutLeadingStartCode() {
+    ByteBuffer data = wrap(0x65, 0xAA, 0xBB, 0, 0, 1, 0x41, 0xCC);
+    assertEquals(3, StartCodeScanner.find(data, 0, data.limit()));
+    assertEquals(Arrays.asList(nal(0x65, 0xAA, 0xBB), nal(0x41, 0xCC)), split(data));
+  }
+
+  @Test
+  public void ignoresStartCodesSplitAtTheEnd() {
+    ByteBuffer data = wrap(0x41, 0x9A, 0x17, 0, 0, 1, 0x41);
+    assertEquals(-1, StartCodeScanner.find(data, 0, 4));
+    assertEquals(-1, StartCodeScanner.find(data, 0, 5));
+    assertEquals(3, StartCodeScanner.find(data, 0, 6));
+    // Nor split at the beginning
+    assertEquals(-1, StartCodeScanner.find(data, 4, 7));
+  }
+
+  @Test
+  public void ignoresEmulationPrevention() {
+    // 0x000003 keeps 0x000001 from appearing inside a NAL unit
+    ByteBuffer data = wrap(0, 0, 1, 0x65, 0, 0, 3, 1, 0, 0, 3, 0, 0x10);
+    assertEquals(-1, StartCodeScanner.find(data, 3, data.limit()));
+    assertEquals(Arrays.asList(nal(0x65, 0, 0, 3, 1, 0, 0, 3, 0, 0x10)), split(data));
+  }
+
+  @Test
+  public void matchesByteByByteScan() {
+    Random random = new Random(7);
+    for (int n=0; n<2000; n++) {
+      // Mostly zeros and ones, so that start codes and near misses are frequent
+      byte[] bytes = new byte[1+random.nextInt(64)];
+      for (int i=0; i<bytes.length; i++) {
+        int r = random.nextInt(8);
+        bytes[i] = (byte) (r < 4 ? 0 : r < 6 ? 1 : random.nextInt(256));
+      }
+      ByteBuffer heap = ByteBuffer.wrap(bytes);
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+      direct.put(bytes).flip();
+      int from = random.nextInt(bytes.length), to = from+random.nextInt(bytes.length-from+1);
+      int expected = naiveFind(heap, from, to);
+      assertEquals(expected, StartCodeScanner.find(heap, from, to));
+      assertEquals(expected, StartCodeScanner.find(direct, from, to));
+    }
+  }
+}
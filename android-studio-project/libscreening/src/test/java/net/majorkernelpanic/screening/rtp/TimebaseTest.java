@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package net.majorkernelpanic.screening.rtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TimebaseTest {
+
+  private static final long NANOS = 1000000000L;
+  private static final long MASK = 0xFFFFFFFFL;
+
+  private final Timebase mTimebase = new Timebase();
+  private final long mOrigin = mTimebase.getOrigin();
+
+  @Test
+  public void rtpTimestampsAreExact() {
+    assertEquals(0, mTimebase.toRtp(mOrigin, 90000, 0));
+    assertEquals(90000, mTimebase.toRtp(mOrigin+NANOS, 90000, 0));
+    assertEquals(45000+7, mTimebase.toRtp(mOrigin+NANOS/2, 90000, 7));
+    // A tick of the 90 kHz clock is 11111.1 ns, timestamps are rounded down
+    assertEquals(0, mTimebase.toRtp(mOrigin+11111, 90000, 0));
+    assertEquals(1, mTimebase.toRtp(mOrigin+11112, 90000, 0));
+    assertEquals(1024, mTimebase.toRtp(mOrigin+1024*NANOS/44100+1, 44100, 0));
+    // Far from the origin, where time*clock would not fit in 64 bits
+    long time = mOrigin + 1000000*NANOS + NANOS/2;
+    assertEquals((1000000*90000L + 45000) & MASK, mTimebase.toRtp(time, 90000, 0));
+  }
+
+  @Test
+  public void rtpTimestampsWrapAround() {
+    assertEquals(MASK, mTimebase.toRtp(mOrigin, 90000, MASK));
+    assertEquals(0, mTimebase.toRtp(mOrigin+11112, 90000, MASK));
+    // 2^32 ticks of a 48 kHz clock later
+    long period = (MASK+1)*NANOS/48000;
+    assertEquals(0, mTimebase.toRtp(mOrigin+period+1, 48000, 0));
+    assertEquals(12, mTimebase.toRtp(mOrigin+period+1+12*NANOS/48000+1, 48000, 0));
+  }
+
+  @Test
+  public void timesBeforeTheOriginKeepTheirSpacing() {
+    assertEquals(999, mTimebase.toRtp(mOrigin-1, 90000, 1000));
+    assertEquals((MASK+1) - 90000, mTimebase.toRtp(mOrigin-NANOS, 90000, 0));
+    assertEquals((MASK+1) - 45000, mTimebase.toRtp(mOrigin-NANOS/2, 90000, 0));
+    for (long time = mOrigin-3*NANOS; time < mOrigin+3*NANOS; time += NANOS/7) {
+      long delta = mTimebase.toRtp(time+NANOS, 90000, 0) - mTimebase.toRtp(time, 90000, 0);
+      assertEquals(90000, delta & MASK);
+    }
+  }
+
+  @Test
+  public void ntpTimestampsFollowTheMonotonicClock() {
+    long now = System.nanoTime();
+    long ntp = Timebase.toNtp(now);
+    long seconds = System.currentTimeMillis()/1000 + Timebase.NTP_UNIX_OFFSET;
+    assertTrue(Math.abs((ntp >>> 32) - seconds) <= 2);
+
+    assertEquals(1L << 32, Timebase.toNtp(now+NANOS) - ntp);
+    long half = Timebase.toNtp(now+NANOS/2) - ntp;
+    assertTrue(Math.abs(half - (1L << 31)) <= 1);
+    assertEquals((ntp >>> 16) & MASK, Timebase.toCompactNtp(now));
+  }
+
+  /**
+   * A player maps the RTP timestamps of each track to the NTP timestamp of the first sender report,
+   * its audio and video must not drift apart over an hour of stream.
+   */
+  @Test
+  public void audioAndVideoDoNotDriftOverAnHour() {
+    long start = mOrigin + 123456789L;
+    long hour = 3600*NANOS;
+    // Offsets close to 2^32, so that both clocks wrap around during the hour
+    Track audio = new Track(44100, MASK-1000000, start);
+    Track video = new Track(90000, MASK-2000000, start);
+
+    long worst = 0;
+    long audioTime = start, videoTime = start;
+    for (long frame=0; audioTime < start+hour || videoTime < start+hour; ) {
+      // AAC frames of 1024 samples, and 30 frames per second of video
+      if (audioTime <= videoTime) {
+        worst = Math.max(worst, Math.abs(audio.play(audioTime) - audioTime));
+        audioTime = start + (++audio.frames)*1024*NANOS/44100;
+      } else {
+        worst = Math.max(worst, Math.abs(video.play(videoTime) - videoTime));
+        videoTime = start + (++frame)*NANOS/30;
+      }
+      // The audio and the video played at the same time are less than 20 ms apart
+      assertTrue(Math.abs(audio.error - video.error) < 20000000L);
+    }
+    // Within one tick of the slowest clock
+    assertTrue("Drift of "+worst+" ns", worst <= NANOS/44100+1);
+  }
+
+  /** The times a player gives to the packets of a track, from their RTP timestamps. */
+  private class Track {
+    final long clock, offset, referenceTime;
+    long frames = 0, elapsed = 0, last, error = 0;
+
+    Track(long clock, long offset, long time) {
+      this.clock = clock;
+      this.offset = offset;
+      // The RTP and NTP timestamps of the first sender report
+      last = mTimebase.toRtp(time, clock, offset);
+      referenceTime = time;
+    }
+
+    /** Returns the time at which the packet captured at the given time is played. */
+    long play(long time) {
+      long rtp = mTimebase.toRtp(time, clock, offset);
+      // Unwraps the timestamps
+      elapsed += (rtp - last) & MASK;
+      last = rtp;
+      long played = referenceTime + elapsed*NANOS/clock;
+      error = played - time;
+      return played;
+    }
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2011-2014 GUIGUI Simon, fyhertz@gmail.com
+ *
+ * This file is part of libstreaming (https://github.com/fyhertz/libstreaming)
+ *
+ * Spydroid is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+
+
+package net.majorkernelpanic.screening.rtsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.majorkernelpanic.screening.FakeVideoStream;
+import net.majorkernelpanic.screening.SdpCache;
+import net.majorkernelpanic.screening.Session;
+import net.majorkernelpanic.screening.video.VideoQuality;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the RTSP server on the loopback interface with a fake video track, and a clock
+ * the tests move forward to go past the timeouts of the server.
+ */
+public class RtspServerTest {
+
+  private static final String URI = "rtsp://127.0.0.1/";
+
+  /** The server, with the time given by the tests. */
+  private static class TestServer extends RtspServer {
+    volatile long time = 1000000;
+    // Holds the DESCRIBE requests of the URIs ending with "slow" until released
+    final CountDownLatch slow = new CountDownLatch(1);
+    // Length of the packets interleaved by the client
+    final List<Integer> packets = new CopyOnWriteArrayList<Integer>();
+
+    TestServer(int port) {
+      mPort = port;
+    }
+
+    @Override
+    long now() {
+      return time;
+    }
+
+    @Override
+    protected void onInterleavedPacket(Session session, int trackId, byte[] buffer, int offset, int length) {
+      packets.add(length);
+    }
+
+    @Override
+    protected Session handleRequest(String uri, Socket client) {
+      if (uri.endsWith("slow")) {
+        try {
+          slow.await();
+        } catch (InterruptedException ignore) {}
+      }
+      return FakeVideoStream.newSession(client.getInetAddress().getHostAddress());
+    }
+  }
+
+  /** A response of the server: its status line, its headers in lower case and its content. */
+  private static class Reply {
+    String status;
+    final Map<String,String> headers = new HashMap<String,String>();
+    String content = "";
+  }
+
+  private TestServer mServer;
+  private Socket mClient;
+  private BufferedReader mReader;
+  private int mSequence = 0;
+
+  @Before
+  public void start() throws IOException {
+    VideoQuality.init(1280, 720, 320);
+    SdpCache.invalidate();
+    FakeVideoStream.sConfigurations.set(0);
+    // A port that was free a moment ago
+    ServerSocket probe = new ServerSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    mServer = new TestServer(port);
+    mServer.start();
+    mClient = new Socket(InetAddress.getLoopbackAddress(), port);
+    mClient.setSoTimeout(5000);
+    mReader = new BufferedReader(new InputStreamReader(mClient.getInputStream(), "UTF-8"));
+  }
+
+  @After
+  public void stop() throws IOException {
+    mServer.slow.countDown();
+    mClient.close();
+    mServer.stop();
+  }
+
+  private Reply request(String method, String uri, String headers) throws IOException {
+    OutputStream output = mClient.getOutputStream();
+    output.write((method+" "+uri+" RTSP/1.0\r\nCSeq: "+(++mSequence)+"\r\n"+headers+"\r\n").getBytes("UTF-8"));
+    output.flush();
+    return read();
+  }
+
+  /** Reads a response, or returns null if the server closed the connection. */
+  private Reply read() throws IOException {
+    String line = mReader.readLine();
+    if (line == null) return null;
+    Reply reply = new Reply();
+    reply.status = line.substring(line.indexOf(' ')+1);
+    while (!(line = mReader.readLine()).isEmpty()) {
+      int colon = line.indexOf(':');
+      reply.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon+1).trim());
+    }
+    String length = reply.headers.get("content-length");
+    if (length != null) {
+      char[] content = new char[Integer.parseInt(length)];
+      for (int read = 0; read < content.length; ) read += mReader.read(content, read, content.length-read);
+      reply.content = new String(content);
+    }
+    return reply;
+  }
+
+  /** Describes the stream, sets its video track up and plays it, returns the session identifier. */
+  private String play() throws IOException {
+    assertEquals("200 OK", request("DESCRIBE", URI, "").status);
+    Reply setup = request("SETUP", URI+"trackID=1", "Transport: RTP/AVP;unicast;client_port=5000-5001\r\n");
+    assertEquals("200 OK", setup.status);
+    String session = setup.headers.get("session").split(";")[0];
+    assertEquals("200 OK", request("PLAY", URI, "Session: "+session+"\r\n").status);
+    return session;
+  }
+
+  /** Sends an RTP packet of the length given on an interleaved channel. */
+  private void interleave(int channel, int length) throws IOException {
+    byte[] packet = new byte[4+length];
+    packet[0] = '$';
+    packet[1] = (byte) channel;
+    packet[2] = (byte) (length>>8);
+    packet[3] = (byte) length;
+    packet[4] = (byte) 0x80;
+    packet[5] = 96;
+    mClient.getOutputStream().write(packet);
+  }
+
+  /** Lets the selector thread of the server go through its timeouts at least once. */
+  private void advance(long ms) throws InterruptedException {
+    mServer.time += ms;
+    Thread.sleep(1500);
+  }
+
+  /** Whether the server has closed the connection, without reading anything else. */
+  private boolean isClosed() throws IOException {
+    mClient.setSoTimeout(200);
+    try {
+      return mReader.read() < 0;
+    } catch (SocketTimeoutException e) {
+      return false;
+    } finally {
+      mClient.setSoTimeout(5000);
+    }
+  }
+
+  @Test
+  public void closesIdleConnections() throws Exception {
+    assertEquals("200 OK", request("OPTIONS", URI, "").status);
+    advance(RtspServer.DEFAULT_IDLE_TIMEOUT+1);
+    assertTrue(isClosed());
+  }
+
+  @Test
+  public void keepsPausedSessionsUntilTheSessionTimeout() throws Exception {
+    String session = play();
+    assertEquals("200 OK", request("PAUSE", URI, "Session: "+session+"\r\n").status);
+
+    // Past the idle timeout, but within the session timeout the client was given
+    advance(RtspServer.DEFAULT_IDLE_TIMEOUT+5000);
+    assertFalse(isClosed());
+    Reply reply = request("PLAY", URI, "Session: "+session+"\r\n");
+    assertNotNull("Connection closed while paused", reply);
+    assertEquals("200 OK", reply.status);
+  }
+
+  @Test
+  public void tearsDownSessionsThatAreNotKeptAlive() throws Exception {
+    String session = play();
+    assertEquals("200 OK", request("PAUSE", URI, "Session: "+session+"\r\n").status);
+    advance(RtspServer.DEFAULT_SESSION_TIMEOUT*1000L+1);
+    assertTrue(isClosed());
+    assertNull(read());
+  }
+
+  @Test
+  public void keepAlivesRenewPausedSessions() throws Exception {
+    String session = play();
+    assertEquals("200 OK", request("PAUSE", URI, "Session: "+session+"\r\n").status);
+    // GET_PARAMETER every 50 s, as the timeout of 60 s advertised allows
+    for (int i=0; i<3; i++) {
+      advance(50000);
+      Reply reply = request("GET_PARAMETER", URI, "Session: "+session+"\r\n");
+      assertNotNull("Connection closed after "+(i+1)*50+" s", reply);
+      assertEquals("200 OK", reply.status);
+    }
+    assertEquals("200 OK", request("PLAY", URI, "Session: "+session+"\r\n").status);
+  }
+
+  @Test
+  public void slowRequestsOnlyHoldTheirConnection() throws Exception {
+    OutputStream output = mClient.getOutputStream();
+    output.write(("DESCRIBE "+URI+"slow RTSP/1.0\r\nCSeq: "+(++mSequence)+"\r\n\r\n").getBytes("UTF-8"));
+    output.write(("OPTIONS "+URI+" RTSP/1.0\r\nCSeq: "+(++mSequence)+"\r\n\r\n").getBytes("UTF-8"));
+    output.flush();
+
+    // Another client is served while the DESCRIBE is configuring the session
+    Socket other = new Socket(InetAddress.getLoopbackAddress(), mClient.getPort());
+    try {
+      other.setSoTimeout(2000);
+      other.getOutputStream().write(("OPTIONS "+URI+" RTSP/1.0\r\nCSeq: 1\r\n\r\n").getBytes("UTF-8"));
+      BufferedReader reader = new BufferedReader(new InputStreamReader(other.getInputStream(), "UTF-8"));
+      assertEquals("RTSP/1.0 200 OK", reader.readLine());
+    } finally {
+      other.close();
+    }
+
+    // While the requests of the slow client are answered in order
+    assertFalse(isClosed());
+    mServer.slow.countDown();
+    Reply describe = read();
+    assertEquals("200 OK", describe.status);
+    assertEquals(String.valueOf(mSequence-1), describe.headers.get("cseq"));
+    Reply options = read();
+    assertEquals("200 OK", options.status);
+    assertEquals(String.valueOf(mSequence), options.headers.get("cseq"));
+  }
+
+  @Test
+  public void receivesInterleavedPacketsLargerThanRequests() throws Exception {
+    assertEquals("200 OK", request("DESCRIBE", URI, "").status);
+    assertEquals("200 OK", request("SETUP", URI+"trackID=1", "Transport: RTP/AVP/TCP;unicast;interleaved=2-3\r\n").status);
+
+    // The length of an interleaved packet is coded on 16 bits
+    interleave(2, 65535);
+    interleave(2, RtspServer.MAX_REQUEST_LENGTH);
+    interleave(2, 16);
+
+    Reply reply = request("OPTIONS", URI, "");
+    assertNotNull("Connection closed", reply);
+    assertEquals("200 OK", reply.status);
+    assertEquals(Arrays.asList(65535, RtspServer.MAX_REQUEST_LENGTH, 16), mServer.packets);
+  }
+
+  @Test
+  public void describesCachedSessionsWithoutConfiguringThem() throws Exception {
+    long hits = SdpCache.getHitCount();
+    Reply first = request("DESCRIBE", URI, "");
+    assertEquals("200 OK", first.status);
+    assertEquals(1, FakeVideoStream.sConfigurations.get());
+
+    // A new session like the first one is only configured when it is set up
+    Reply second = request("DESCRIBE", URI, "");
+    assertEquals("200 OK", second.status);
+    assertEquals(first.content, second.content);
+    assertEquals(1, FakeVideoStream.sConfigurations.get());
+
+    Reply setup = request("SETUP", URI+"trackID=1", "Transport: RTP/AVP;unicast;client_port=5000-5001\r\n");
+    assertEquals("200 OK", setup.status);
+    assertEquals(2, FakeVideoStream.sConfigurations.get());
+    String session = setup.headers.get("session").split(";")[0];
+    assertEquals("200 OK", request("PLAY", URI, "Session: "+session+"\r\n").status);
+    assertEquals(hits+1, SdpCache.getHitCount());
+  }
+
+  @Test
+  public void answersWithTheProfileOfTheClient() throws Exception {
+    assertEquals("200 OK", request("DESCRIBE", URI, "").status);
+    Reply udp = request("SETUP", URI+"trackID=1", "Transport: RTP/AVPF/UDP;unicast;client_port=5000-5001\r\n");
+    assertEquals("200 OK", udp.status);
+    assertTrue(udp.headers.get("transport"), udp.headers.get("transport").startsWith("RTP/AVPF/UDP;unicast;"));
+
+    assertEquals("200 OK", request("DESCRIBE", URI, "").status);
+    Reply tcp = request("SETUP", URI+"trackID=1", "Transport: RTP/AVPF/TCP;unicast;interleaved=2-3\r\n");
+    assertEquals("200 OK", tcp.status);
+    assertTrue(tcp.headers.get("transport"), tcp.headers.get("transport").startsWith("RTP/AVPF/TCP;unicast;interleaved=2-3;"));
+
+    assertEquals("200 OK", request("DESCRIBE", URI, "").status);
+    Reply avp = request("SETUP", URI+"trackID=1", "Transport: RTP/AVP;unicast;client_port=5000-5001\r\n");
+    assertTrue(avp.headers.get("transport"), avp.headers.get("transport").startsWith("RTP/AVP/UDP;unicast;"));
+  }
+}